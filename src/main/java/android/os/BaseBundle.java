@@ -23,27 +23,90 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * A mapping from String values to various types.
+ * A mapping from String values to various types. Keys are stored as their
+ * {@link Symbols}, and each accessor has a form taking the symbol of the key
+ * for code that uses the same key often.
  */
 @SuppressWarnings("unchecked")
 /*
- * Compiler warns about three instances of unchecked casts, but all are
- * surrounded by try{...}catch(ClassCastException){...}
+ * Compiler warns about three unchecked casts to ArrayLists, whose elements
+ * are not checked
  */
 public class BaseBundle implements Serializable {
     private static final long serialVersionUID = 1;
 
     static final int BUNDLE_MAGIC = 0x4C444E42; // 'B' 'N' 'D' 'L'
 
-    HashMap<String, Object> mMap = null;
+    /**
+     * Bundles are serialized as a HashMap of boxed values, as they were before
+     * they stored primitive values unboxed, so that saves stay compatible.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("mMap", HashMap.class) };
+
+    // The kinds of value an entry can hold. Primitive values are kept as
+    // their bits in mBits, so that putting and getting them does not box
+    // them; everything else, including null, is kept in mValues.
+    static final byte KIND_OBJECT = 0;
+    static final byte KIND_BOOLEAN = 1;
+    static final byte KIND_BYTE = 2;
+    static final byte KIND_CHAR = 3;
+    static final byte KIND_SHORT = 4;
+    static final byte KIND_INT = 5;
+    static final byte KIND_LONG = 6;
+    static final byte KIND_FLOAT = 7;
+    static final byte KIND_DOUBLE = 8;
+    /** Marks a key of the base of an overlay that the overlay has removed */
+    static final byte KIND_REMOVED = -1;
+
+    /**
+     * The number of typed gets of each key, by symbol, that found a value of
+     * another type
+     */
+    private static final ConcurrentHashMap<Integer, LongAdder> typeMismatches =
+            new ConcurrentHashMap<Integer, LongAdder>();
+
+    private static final int[] EMPTY_KEYS = {};
+    private static final byte[] EMPTY_KINDS = {};
+    private static final long[] EMPTY_BITS = {};
+    private static final Object[] EMPTY_VALUES = {};
+    /**
+     * The most entries kept in packed arrays. Most bundles hold only a few
+     * entries, for which a scan is as fast as hashing and takes no extra
+     * space.
+     */
+    static final int SMALL_CAPACITY = 8;
+
+    // Up to SMALL_CAPACITY entries are kept packed in slots 0 to mSize - 1
+    // of arrays at most SMALL_CAPACITY long, and found by comparing keys in
+    // turn. Beyond that the arrays are an open-addressed hash table with
+    // linear probing, whose length is a power of two above SMALL_CAPACITY.
+    // Slot i holds the key whose symbol is mKeys[i], or is free if that is
+    // Symbols.NONE.
+    transient int[] mKeys = EMPTY_KEYS;
+    transient byte[] mKinds = EMPTY_KINDS;
+    transient long[] mBits = EMPTY_BITS;
+    transient Object[] mValues = EMPTY_VALUES;
+    transient int mSize = 0;
+    /** Whether this Bundle can no longer be changed */
+    transient boolean mFrozen = false;
+    /**
+     * The frozen Bundle this one is an overlay of, holding the entries this
+     * one has not put or removed, or null
+     */
+    transient BaseBundle mBase = null;
 
     /**
      * Constructs a new, empty Bundle.
@@ -60,34 +123,188 @@ public class BaseBundle implements Serializable {
      *            the initial capacity of the Bundle
      */
     public BaseBundle(int capacity) {
-        mMap = capacity > 0 ? new HashMap<String, Object>(capacity) : new HashMap<String, Object>();
+        if (capacity > 0) {
+            allocate(capacity <= SMALL_CAPACITY ? capacity : tableLength(capacity));
+        }
     }
 
     /**
      * Constructs a Bundle containing a copy of the mappings from the given
-     * Bundle.
+     * Bundle. The copy of a frozen Bundle is an overlay of it.
      *
      * @param b
      *            a Bundle to be copied.
      */
     public BaseBundle(BaseBundle b) {
-        if (b.mMap != null) {
-            mMap = new HashMap<String, Object>(b.mMap);
+        if (b.mFrozen) {
+            mBase = b;
         } else {
-            mMap = null;
+            copyFrom(b);
         }
     }
 
+    /**
+     * Returns a copy of the given Bundle that shares no mutable state with it.
+     * Values of the types supported by the typed put methods are copied
+     * directly: primitives and Strings are immutable and are shared,
+     * arrays are cloned and ArrayLists of Integers, Strings and
+     * CharSequences are copied. Any other value is copied by serialization.
+     * The copy of a frozen Bundle is an overlay of it, which copies nothing.
+     *
+     * @param b
+     *            a Bundle to be copied, or null
+     * @return the copy, or null if b was null
+     */
     public static BaseBundle deepcopy(BaseBundle b) {
+        if (b == null) {
+            return null;
+        }
+        if (b.mFrozen) {
+            return b.newOverlay();
+        }
+        BaseBundle copy = new BaseBundle(0);
+        copy.copyFrom(b);
+        for (int i = 0; i < copy.mValues.length; ++i) {
+            if (copy.mValues[i] != null) {
+                copy.mValues[i] = deepcopyValue(copy.mValues[i]);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Copies the given Bundle by writing it through an ObjectOutputStream and
+     * reading it back. Kept for values deepcopy does not recognise and for
+     * comparison with it.
+     *
+     * @param b
+     *            a Bundle to be copied, or null
+     * @return the copy, or null if b was null
+     */
+    static BaseBundle serialcopy(BaseBundle b) {
+        return (BaseBundle) serialcopyValue(b);
+    }
+
+    /**
+     * Returns a frozen copy of this Bundle, which cannot be changed and so can
+     * be shared between threads and between the instances of a template
+     * without being copied. Values are copied as by
+     * {@link #deepcopy(BaseBundle)}. Mutable values such as arrays and lists
+     * are copied again each time they are got from the frozen Bundle, and the
+     * first time they are got from an overlay of it, so the frozen values
+     * are never handed out.
+     *
+     * @return this Bundle if it is frozen, or else a frozen copy of it
+     */
+    public BaseBundle freeze() {
+        if (mFrozen) {
+            return this;
+        }
+        BaseBundle r_frozen;
+        if (mBase == null) {
+            r_frozen = deepcopy(this);
+        } else {
+            HashMap<String, Object> map = toMap();
+            r_frozen = new BaseBundle(map.size());
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                r_frozen.putObject(entry.getKey(), deepcopyValue(entry.getValue()));
+            }
+        }
+        r_frozen.mFrozen = true;
+        return r_frozen;
+    }
+
+    public boolean isFrozen() {
+        return mFrozen;
+    }
+
+    /**
+     * Returns a new, mutable overlay of this frozen Bundle. The overlay reads
+     * through to this Bundle, and records only the entries put in or removed
+     * from it.
+     *
+     * @throws IllegalStateException
+     *             if this Bundle is not frozen
+     */
+    public BaseBundle newOverlay() {
+        if (!mFrozen) {
+            throw new IllegalStateException("Only frozen bundles can have overlays");
+        }
+        BaseBundle r_overlay = new BaseBundle(0);
+        r_overlay.mBase = this;
+        return r_overlay;
+    }
+
+    /**
+     * @return true if o is null or of an immutable type that deepcopy shares
+     */
+    static boolean isImmutable(Object o) {
+        return o == null || o instanceof String || o instanceof Boolean || o instanceof Integer || o instanceof Long
+                || o instanceof Double || o instanceof Float || o instanceof Short || o instanceof Byte
+                || o instanceof Character;
+    }
+
+    static Object deepcopyValue(Object o) {
+        if (isImmutable(o)) {
+            return o;
+        }
+        if (o instanceof ArrayList) {
+            ArrayList<?> list = (ArrayList<?>) o;
+            for (Object element : list) {
+                if (element != null && !(element instanceof String) && !(element instanceof Integer)) {
+                    return serialcopyValue(o);
+                }
+            }
+            return new ArrayList<Object>(list);
+        }
+        if (o instanceof int[]) {
+            return ((int[]) o).clone();
+        }
+        if (o instanceof boolean[]) {
+            return ((boolean[]) o).clone();
+        }
+        if (o instanceof byte[]) {
+            return ((byte[]) o).clone();
+        }
+        if (o instanceof char[]) {
+            return ((char[]) o).clone();
+        }
+        if (o instanceof short[]) {
+            return ((short[]) o).clone();
+        }
+        if (o instanceof long[]) {
+            return ((long[]) o).clone();
+        }
+        if (o instanceof float[]) {
+            return ((float[]) o).clone();
+        }
+        if (o instanceof double[]) {
+            return ((double[]) o).clone();
+        }
+        if (o.getClass() == String[].class) {
+            return ((String[]) o).clone();
+        }
+        if (o.getClass() == CharSequence[].class) {
+            for (CharSequence element : (CharSequence[]) o) {
+                if (element != null && !(element instanceof String)) {
+                    return serialcopyValue(o);
+                }
+            }
+            return ((CharSequence[]) o).clone();
+        }
+        return serialcopyValue(o);
+    }
+
+    static Object serialcopyValue(Object o) {
         try {
             ByteArrayOutputStream buffer = new ByteArrayOutputStream();
             ObjectOutputStream oos = new ObjectOutputStream(buffer);
-            oos.writeObject(b);
+            oos.writeObject(o);
             ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray()));
 
-            return (BaseBundle) ois.readObject();
+            return ois.readObject();
         } catch (IOException | ClassNotFoundException e) {
-            throw new RuntimeException();
+            throw new RuntimeException(e);
         }
     }
 
@@ -98,7 +315,19 @@ public class BaseBundle implements Serializable {
      */
     public int size() {
 
-        return mMap.size();
+        if (mBase == null) {
+            return mSize;
+        }
+        int r_size = mBase.mSize;
+        for (int i = 0; i < mKeys.length; ++i) {
+            if (mKeys[i] != Symbols.NONE && mBase.slotOf(mKeys[i]) >= 0) {
+                // Replaces or removes an entry of the base
+                r_size -= mKinds[i] == KIND_REMOVED ? 1 : 0;
+            } else if (mKeys[i] != Symbols.NONE) {
+                ++r_size;
+            }
+        }
+        return r_size;
     }
 
     /**
@@ -106,7 +335,7 @@ public class BaseBundle implements Serializable {
      */
     public boolean isEmpty() {
 
-        return mMap.isEmpty();
+        return size() == 0;
     }
 
     /**
@@ -114,7 +343,13 @@ public class BaseBundle implements Serializable {
      */
     public void clear() {
 
-        mMap.clear();
+        if (mFrozen) {
+            throw new UnsupportedOperationException("Bundle is frozen");
+        }
+        mBase = null;
+        Arrays.fill(mKeys, Symbols.NONE);
+        Arrays.fill(mValues, null);
+        mSize = 0;
     }
 
     /**
@@ -126,11 +361,25 @@ public class BaseBundle implements Serializable {
      */
     public boolean containsKey(String key) {
 
-        return mMap.containsKey(key);
+        return containsKey(Symbols.lookup(key));
     }
 
     /**
-     * Returns the entry with the given key as an object.
+     * Returns true if the key with the given symbol is contained in the
+     * mapping of this Bundle.
+     *
+     * @param symbol
+     *            the symbol of a key, from {@link Symbols#of(String)}
+     * @return true if the key is part of the mapping, false otherwise
+     */
+    public boolean containsKey(int symbol) {
+
+        return indexOf(symbol) >= 0;
+    }
+
+    /**
+     * Returns the entry with the given key as an object. Primitive values are
+     * boxed.
      *
      * @param key
      *            a String key
@@ -138,7 +387,61 @@ public class BaseBundle implements Serializable {
      */
     public Object get(String key) {
 
-        return mMap.get(key);
+        return get(Symbols.lookup(key));
+    }
+
+    /**
+     * Returns the entry with the key of the given symbol as an object.
+     * Primitive values are boxed.
+     *
+     * @param symbol
+     *            the symbol of a key
+     * @return an Object, or null
+     */
+    public Object get(int symbol) {
+
+        int i = indexOf(symbol);
+        if (i < 0) {
+            return null;
+        }
+        return handOut(symbol, i, valueAt(i));
+    }
+
+    /**
+     * Returns the entry with the key of the given symbol as {@link #get(int)}
+     * does if it is null or of the given type. An entry of another type is
+     * returned uncopied, for the typed get to reject, so that a get of the
+     * wrong type does not copy it into an overlay, where it would be seen as
+     * a change.
+     */
+    private Object getOfType(int symbol, Class<?> type) {
+        int i = indexOf(symbol);
+        if (i < 0) {
+            return null;
+        }
+        Object value = valueAt(i);
+        if (value != null && !type.isInstance(value)) {
+            return value;
+        }
+        return handOut(symbol, i, value);
+    }
+
+    /**
+     * Returns value, held in slot i for the key of symbol, copied if it could
+     * otherwise be changed by the caller while shared with other bundles.
+     */
+    private Object handOut(int symbol, int i, Object value) {
+        Object r_value = value;
+        if ((mFrozen || i >= mKeys.length) && !isImmutable(r_value)) {
+            // Values of a frozen Bundle are shared by all its overlays, so
+            // are copied before they are handed out. An overlay keeps its
+            // copy, so that changes to it are seen by later gets.
+            r_value = deepcopyValue(r_value);
+            if (!mFrozen) {
+                putReference(symbol, r_value);
+            }
+        }
+        return r_value;
     }
 
     /**
@@ -149,7 +452,32 @@ public class BaseBundle implements Serializable {
      */
     public void remove(String key) {
 
-        mMap.remove(key);
+        remove(Symbols.lookup(key));
+    }
+
+    /**
+     * Removes any entry with the key of the given symbol from the mapping of
+     * this Bundle.
+     *
+     * @param symbol
+     *            the symbol of a key
+     */
+    public void remove(int symbol) {
+
+        if (mFrozen) {
+            throw new UnsupportedOperationException("Bundle is frozen");
+        }
+        int i = slotOf(symbol);
+        if (mBase != null && mBase.slotOf(symbol) >= 0) {
+            // Hides the entry of the base
+            if (i < 0) {
+                i = insert(symbol);
+            }
+            mKinds[i] = KIND_REMOVED;
+            mValues[i] = null;
+        } else if (i >= 0) {
+            removeAt(i);
+        }
     }
 
     /**
@@ -159,27 +487,359 @@ public class BaseBundle implements Serializable {
      *            a Map
      */
     public void putAll(Map<? extends String, ? extends Object> map) {
-        mMap.putAll(map);
+        for (Map.Entry<? extends String, ? extends Object> entry : map.entrySet()) {
+            putObject(entry.getKey(), entry.getValue());
+        }
     }
 
     /**
-     * Returns a Set containing the Strings used as keys in this Bundle.
+     * Returns a Set containing the Strings used as keys in this Bundle. The
+     * Set is a copy, so the Bundle may be changed while it is iterated over.
      *
      * @return a Set of String keys
      */
     public Set<String> keySet() {
 
-        return mMap.keySet();
+        if (mBase != null) {
+            return new HashSet<String>(toMap().keySet());
+        }
+        HashSet<String> keys = new HashSet<String>(mSize * 4 / 3 + 1);
+        for (int symbol : mKeys) {
+            if (symbol != Symbols.NONE) {
+                keys.add(Symbols.name(symbol));
+            }
+        }
+        return keys;
     }
 
     /**
      * Returns a Set containing the Objects used as values in this Bundle.
+     * Primitive values are boxed.
      *
      * @return a Set of String keys
      */
     public Set<Object> valueSet() {
 
-        return new HashSet<Object>(mMap.values());
+        HashSet<Object> values = new HashSet<Object>(mSize * 4 / 3 + 1);
+        if (mBase != null || mFrozen) {
+            // Copies shared values as get does
+            for (String key : keySet()) {
+                values.add(get(key));
+            }
+            return values;
+        }
+        for (int i = 0; i < mKeys.length; ++i) {
+            if (mKeys[i] != Symbols.NONE) {
+                values.add(valueAt(i));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns the mappings of this Bundle as a HashMap, with primitive values
+     * boxed.
+     */
+    HashMap<String, Object> toMap() {
+        HashMap<String, Object> map = mBase == null ? new HashMap<String, Object>(mSize * 4 / 3 + 1)
+                : mBase.toMap();
+        for (int i = 0; i < mKeys.length; ++i) {
+            if (mKeys[i] == Symbols.NONE) {
+                continue;
+            }
+            String key = Symbols.name(mKeys[i]);
+            if (mKinds[i] == KIND_REMOVED) {
+                map.remove(key);
+            } else {
+                map.put(key, valueAt(i));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Inserts a value of any type, storing boxed primitives unboxed.
+     */
+    void putObject(String key, Object value) {
+        putObject(Symbols.of(key), value);
+    }
+
+    private void putObject(int key, Object value) {
+        if (value instanceof Integer) {
+            putBits(key, KIND_INT, (Integer) value);
+        } else if (value instanceof Boolean) {
+            putBits(key, KIND_BOOLEAN, (Boolean) value ? 1 : 0);
+        } else if (value instanceof Double) {
+            putBits(key, KIND_DOUBLE, Double.doubleToRawLongBits((Double) value));
+        } else if (value instanceof Long) {
+            putBits(key, KIND_LONG, (Long) value);
+        } else if (value instanceof Float) {
+            putBits(key, KIND_FLOAT, Float.floatToRawIntBits((Float) value));
+        } else if (value instanceof Byte) {
+            putBits(key, KIND_BYTE, (Byte) value);
+        } else if (value instanceof Character) {
+            putBits(key, KIND_CHAR, (Character) value);
+        } else if (value instanceof Short) {
+            putBits(key, KIND_SHORT, (Short) value);
+        } else {
+            putReference(key, value);
+        }
+    }
+
+    private void putBits(int key, byte kind, long bits) {
+        int i = insert(key);
+        mKinds[i] = kind;
+        mBits[i] = bits;
+        mValues[i] = null;
+    }
+
+    private void putReference(int key, Object value) {
+        int i = insert(key);
+        mKinds[i] = KIND_OBJECT;
+        mValues[i] = value;
+    }
+
+    /**
+     * @return the value of slot i, boxed if it is primitive
+     */
+    private Object valueAt(int i) {
+        if (i >= mKeys.length) {
+            return mBase.valueAt(i - mKeys.length);
+        }
+        long bits = mBits[i];
+        switch (mKinds[i]) {
+        case KIND_BOOLEAN:
+            return bits != 0;
+        case KIND_BYTE:
+            return (byte) bits;
+        case KIND_CHAR:
+            return (char) bits;
+        case KIND_SHORT:
+            return (short) bits;
+        case KIND_INT:
+            return (int) bits;
+        case KIND_LONG:
+            return bits;
+        case KIND_FLOAT:
+            return Float.intBitsToFloat((int) bits);
+        case KIND_DOUBLE:
+            return Double.longBitsToDouble(bits);
+        default:
+            return mValues[i];
+        }
+    }
+
+    /**
+     * Finds key in this Bundle or, for an overlay, in its base. Slots of the
+     * base are numbered after those of the overlay.
+     *
+     * @return the slot holding key, or -1 if there is none
+     */
+    private int indexOf(int key) {
+        int r_i = slotOf(key);
+        if (mBase == null) {
+            return r_i;
+        }
+        if (r_i >= 0) {
+            return mKinds[r_i] == KIND_REMOVED ? -1 : r_i;
+        }
+        r_i = mBase.slotOf(key);
+        return r_i < 0 ? -1 : mKeys.length + r_i;
+    }
+
+    private byte kindAt(int i) {
+        return i < mKeys.length ? mKinds[i] : mBase.mKinds[i - mKeys.length];
+    }
+
+    private long bitsAt(int i) {
+        return i < mKeys.length ? mBits[i] : mBase.mBits[i - mKeys.length];
+    }
+
+    /**
+     * @return the slot of this Bundle's own arrays holding key, or -1 if there
+     *         is none
+     */
+    private int slotOf(int key) {
+        if (mSize == 0 || key <= Symbols.NONE) {
+            // Names that have no symbol are in no Bundle
+            return -1;
+        }
+        if (mKeys.length <= SMALL_CAPACITY) {
+            for (int i = 0; i < mSize; ++i) {
+                if (mKeys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = mKeys.length - 1;
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            int k = mKeys[i];
+            if (k == key) {
+                return i;
+            }
+            if (k == Symbols.NONE) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @return the slot holding key, after giving it a free slot if it had
+     *         none
+     */
+    private int insert(int key) {
+        if (mFrozen) {
+            throw new UnsupportedOperationException("Bundle is frozen");
+        }
+        int r_i = slotOf(key);
+        if (r_i >= 0) {
+            return r_i;
+        }
+        // Checks that key is a symbol before storing it
+        Symbols.name(key);
+        if (mKeys.length <= SMALL_CAPACITY) {
+            if (mSize == mKeys.length) {
+                if (mSize < SMALL_CAPACITY) {
+                    grow(Math.min(SMALL_CAPACITY, Math.max(2, mSize * 2)));
+                } else {
+                    resize(tableLength(mSize + 1));
+                    return insert(key);
+                }
+            }
+            mKeys[mSize] = key;
+            return mSize++;
+        }
+        if ((mSize + 1) * 4 > mKeys.length * 3) {
+            resize(tableLength(mSize + 1));
+        }
+        int mask = mKeys.length - 1;
+        for (r_i = hash(key) & mask; mKeys[r_i] != Symbols.NONE; r_i = (r_i + 1) & mask) {
+        }
+        mKeys[r_i] = key;
+        ++mSize;
+        return r_i;
+    }
+
+    /**
+     * Frees slot i, moving back any entries that probed past it so that they
+     * can still be found.
+     */
+    private void removeAt(int i) {
+        if (mKeys.length <= SMALL_CAPACITY) {
+            // Keeps the entries packed
+            int last = --mSize;
+            mKeys[i] = mKeys[last];
+            mKinds[i] = mKinds[last];
+            mBits[i] = mBits[last];
+            mValues[i] = mValues[last];
+            mKeys[last] = Symbols.NONE;
+            mValues[last] = null;
+            return;
+        }
+        int mask = mKeys.length - 1;
+        for (int j = (i + 1) & mask; mKeys[j] != Symbols.NONE; j = (j + 1) & mask) {
+            int home = hash(mKeys[j]) & mask;
+            // Moves the entry in j to i unless its home slot lies cyclically
+            // in (i, j]
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                mKeys[i] = mKeys[j];
+                mKinds[i] = mKinds[j];
+                mBits[i] = mBits[j];
+                mValues[i] = mValues[j];
+                i = j;
+            }
+        }
+        mKeys[i] = Symbols.NONE;
+        mValues[i] = null;
+        --mSize;
+    }
+
+    private void resize(int length) {
+        int[] keys = mKeys;
+        byte[] kinds = mKinds;
+        long[] bits = mBits;
+        Object[] values = mValues;
+        allocate(length);
+        int mask = length - 1;
+        for (int j = 0; j < keys.length; ++j) {
+            if (keys[j] != Symbols.NONE) {
+                int i = hash(keys[j]) & mask;
+                while (mKeys[i] != Symbols.NONE) {
+                    i = (i + 1) & mask;
+                }
+                mKeys[i] = keys[j];
+                mKinds[i] = kinds[j];
+                mBits[i] = bits[j];
+                mValues[i] = values[j];
+            }
+        }
+    }
+
+    /**
+     * Lengthens the packed arrays.
+     */
+    private void grow(int length) {
+        mKeys = Arrays.copyOf(mKeys, length);
+        mKinds = Arrays.copyOf(mKinds, length);
+        mBits = Arrays.copyOf(mBits, length);
+        mValues = Arrays.copyOf(mValues, length);
+    }
+
+    private void allocate(int length) {
+        mKeys = new int[length];
+        mKinds = new byte[length];
+        mBits = new long[length];
+        mValues = new Object[length];
+    }
+
+    private void copyFrom(BaseBundle b) {
+        mBase = b.mBase;
+        mKeys = b.mKeys.clone();
+        mKinds = b.mKinds.clone();
+        mBits = b.mBits.clone();
+        mValues = b.mValues.clone();
+        mSize = b.mSize;
+    }
+
+    /**
+     * @return the smallest hash table length above SMALL_CAPACITY that holds
+     *         size entries within the load factor of 3/4
+     */
+    private static int tableLength(int size) {
+        int r_length = SMALL_CAPACITY * 2;
+        while (r_length * 3 < size * 4) {
+            r_length <<= 1;
+        }
+        return r_length;
+    }
+
+    private static int hash(int key) {
+        // Symbols are consecutive, so are spread over the table
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("mMap", toMap());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        HashMap<String, Object> map = (HashMap<String, Object>) fields.get("mMap", null);
+        mKeys = EMPTY_KEYS;
+        mKinds = EMPTY_KINDS;
+        mBits = EMPTY_BITS;
+        mValues = EMPTY_VALUES;
+        mSize = 0;
+        mFrozen = false;
+        mBase = null;
+        if (map != null && !map.isEmpty()) {
+            allocate(map.size() <= SMALL_CAPACITY ? map.size() : tableLength(map.size()));
+            putAll(map);
+        }
     }
 
     /**
@@ -193,7 +853,21 @@ public class BaseBundle implements Serializable {
      */
     public void putBoolean(String key, boolean value) {
 
-        mMap.put(key, value);
+        putBits(Symbols.of(key), KIND_BOOLEAN, value ? 1 : 0);
+    }
+
+    /**
+     * Inserts a boolean value into this Bundle under the key of the given
+     * symbol, replacing any existing value for the key.
+     *
+     * @param symbol
+     *            the symbol of a key, from {@link Symbols#of(String)}
+     * @param value
+     *            a boolean
+     */
+    public void putBoolean(int symbol, boolean value) {
+
+        putBits(symbol, KIND_BOOLEAN, value ? 1 : 0);
     }
 
     /**
@@ -207,7 +881,7 @@ public class BaseBundle implements Serializable {
      */
     public void putByte(String key, byte value) {
 
-        mMap.put(key, value);
+        putBits(Symbols.of(key), KIND_BYTE, value);
     }
 
     /**
@@ -221,7 +895,7 @@ public class BaseBundle implements Serializable {
      */
     public void putChar(String key, char value) {
 
-        mMap.put(key, value);
+        putBits(Symbols.of(key), KIND_CHAR, value);
     }
 
     /**
@@ -235,7 +909,7 @@ public class BaseBundle implements Serializable {
      */
     public void putShort(String key, short value) {
 
-        mMap.put(key, value);
+        putBits(Symbols.of(key), KIND_SHORT, value);
     }
 
     /**
@@ -249,7 +923,21 @@ public class BaseBundle implements Serializable {
      */
     public void putInt(String key, int value) {
 
-        mMap.put(key, value);
+        putBits(Symbols.of(key), KIND_INT, value);
+    }
+
+    /**
+     * Inserts an int value into this Bundle under the key of the given
+     * symbol, replacing any existing value for the key.
+     *
+     * @param symbol
+     *            the symbol of a key, from {@link Symbols#of(String)}
+     * @param value
+     *            an int
+     */
+    public void putInt(int symbol, int value) {
+
+        putBits(symbol, KIND_INT, value);
     }
 
     /**
@@ -263,7 +951,21 @@ public class BaseBundle implements Serializable {
      */
     public void putLong(String key, long value) {
 
-        mMap.put(key, value);
+        putBits(Symbols.of(key), KIND_LONG, value);
+    }
+
+    /**
+     * Inserts a long value into this Bundle under the key of the given
+     * symbol, replacing any existing value for the key.
+     *
+     * @param symbol
+     *            the symbol of a key, from {@link Symbols#of(String)}
+     * @param value
+     *            a long
+     */
+    public void putLong(int symbol, long value) {
+
+        putBits(symbol, KIND_LONG, value);
     }
 
     /**
@@ -277,7 +979,7 @@ public class BaseBundle implements Serializable {
      */
     public void putFloat(String key, float value) {
 
-        mMap.put(key, value);
+        putBits(Symbols.of(key), KIND_FLOAT, Float.floatToRawIntBits(value));
     }
 
     /**
@@ -291,7 +993,21 @@ public class BaseBundle implements Serializable {
      */
     public void putDouble(String key, double value) {
 
-        mMap.put(key, value);
+        putBits(Symbols.of(key), KIND_DOUBLE, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Inserts a double value into this Bundle under the key of the given
+     * symbol, replacing any existing value for the key.
+     *
+     * @param symbol
+     *            the symbol of a key, from {@link Symbols#of(String)}
+     * @param value
+     *            a double
+     */
+    public void putDouble(int symbol, double value) {
+
+        putBits(symbol, KIND_DOUBLE, Double.doubleToRawLongBits(value));
     }
 
     /**
@@ -305,7 +1021,21 @@ public class BaseBundle implements Serializable {
      */
     public void putString(String key, String value) {
 
-        mMap.put(key, value);
+        putReference(Symbols.of(key), value);
+    }
+
+    /**
+     * Inserts a String value into the mapping of this Bundle under the key of
+     * the given symbol, replacing any existing value for the key.
+     *
+     * @param symbol
+     *            the symbol of a key, from {@link Symbols#of(String)}
+     * @param value
+     *            a String, or null
+     */
+    public void putString(int symbol, String value) {
+
+        putReference(symbol, value);
     }
 
     /**
@@ -319,7 +1049,7 @@ public class BaseBundle implements Serializable {
      */
     public void putCharSequence(String key, CharSequence value) {
 
-        mMap.put(key, value);
+        putReference(Symbols.of(key), value);
     }
 
     /**
@@ -334,7 +1064,7 @@ public class BaseBundle implements Serializable {
      */
     public void putIntegerArrayList(String key, ArrayList<Integer> value) {
 
-        mMap.put(key, value);
+        putReference(Symbols.of(key), value);
     }
 
     /**
@@ -349,7 +1079,7 @@ public class BaseBundle implements Serializable {
      */
     public void putStringArrayList(String key, ArrayList<String> value) {
 
-        mMap.put(key, value);
+        putReference(Symbols.of(key), value);
     }
 
     /**
@@ -364,7 +1094,7 @@ public class BaseBundle implements Serializable {
      */
     public void putCharSequenceArrayList(String key, ArrayList<CharSequence> value) {
 
-        mMap.put(key, value);
+        putReference(Symbols.of(key), value);
     }
 
     /**
@@ -378,7 +1108,7 @@ public class BaseBundle implements Serializable {
      */
     public void putBooleanArray(String key, boolean[] value) {
 
-        mMap.put(key, value);
+        putReference(Symbols.of(key), value);
     }
 
     /**
@@ -392,7 +1122,7 @@ public class BaseBundle implements Serializable {
      */
     public void putByteArray(String key, byte[] value) {
 
-        mMap.put(key, value);
+        putReference(Symbols.of(key), value);
     }
 
     /**
@@ -406,7 +1136,7 @@ public class BaseBundle implements Serializable {
      */
     public void putShortArray(String key, short[] value) {
 
-        mMap.put(key, value);
+        putReference(Symbols.of(key), value);
     }
 
     /**
@@ -420,7 +1150,7 @@ public class BaseBundle implements Serializable {
      */
     public void putCharArray(String key, char[] value) {
 
-        mMap.put(key, value);
+        putReference(Symbols.of(key), value);
     }
 
     /**
@@ -434,7 +1164,7 @@ public class BaseBundle implements Serializable {
      */
     public void putIntArray(String key, int[] value) {
 
-        mMap.put(key, value);
+        putReference(Symbols.of(key), value);
     }
 
     /**
@@ -448,7 +1178,7 @@ public class BaseBundle implements Serializable {
      */
     public void putLongArray(String key, long[] value) {
 
-        mMap.put(key, value);
+        putReference(Symbols.of(key), value);
     }
 
     /**
@@ -462,7 +1192,7 @@ public class BaseBundle implements Serializable {
      */
     public void putFloatArray(String key, float[] value) {
 
-        mMap.put(key, value);
+        putReference(Symbols.of(key), value);
     }
 
     /**
@@ -476,7 +1206,7 @@ public class BaseBundle implements Serializable {
      */
     public void putDoubleArray(String key, double[] value) {
 
-        mMap.put(key, value);
+        putReference(Symbols.of(key), value);
     }
 
     /**
@@ -490,7 +1220,7 @@ public class BaseBundle implements Serializable {
      */
     public void putStringArray(String key, String[] value) {
 
-        mMap.put(key, value);
+        putReference(Symbols.of(key), value);
     }
 
     /**
@@ -505,7 +1235,7 @@ public class BaseBundle implements Serializable {
      */
     public void putCharSequenceArray(String key, CharSequence[] value) {
 
-        mMap.put(key, value);
+        putReference(Symbols.of(key), value);
     }
 
     /**
@@ -520,24 +1250,58 @@ public class BaseBundle implements Serializable {
         return getBoolean(key, false);
     }
 
-    // Log a message if the value was non-null but not of the expected type
-    void typeWarning(String key, Object value, String className, Object defaultValue, ClassCastException e) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("Key ");
-        sb.append(key);
-        sb.append(" expected ");
-        sb.append(className);
-        sb.append(" but value was a ");
-        sb.append(value.getClass().getName());
-        sb.append(".  The default value ");
-        sb.append(defaultValue);
-        sb.append(" was returned.");
-        System.err.println(sb.toString());
-        System.err.println("Attempt to cast generated internal exception:" + e.getMessage());
+    /**
+     * Counts a typed get of the key of symbol, held in slot i, as a type
+     * mismatch, unless the slot holds null.
+     */
+    private void mismatch(int i, int symbol) {
+        if (kindAt(i) != KIND_OBJECT || valueAt(i) != null) {
+            countTypeMismatch(symbol);
+        }
+    }
+
+    static void countTypeMismatch(int symbol) {
+        LongAdder count = typeMismatches.get(symbol);
+        if (count == null) {
+            count = typeMismatches.computeIfAbsent(symbol, k -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    /**
+     * Returns the number of times a typed get of the given key has found a
+     * value of another type, and so returned the default, since the counts
+     * were last reset.
+     *
+     * @param key
+     *            a String, or null
+     * @return the number of mismatches
+     */
+    public static long getTypeMismatchCount(String key) {
+        LongAdder count = typeMismatches.get(Symbols.lookup(key));
+        return count == null ? 0 : count.sum();
     }
 
-    void typeWarning(String key, Object value, String className, ClassCastException e) {
-        typeWarning(key, value, className, "<null>", e);
+    /**
+     * Returns the number of type mismatches of each key that has had any, for
+     * logging or exporting as a metric. Counts are kept for all Bundles
+     * together, as a mismatch usually means a property of the content has
+     * the wrong type wherever it appears.
+     *
+     * @param reset
+     *            whether to reset the counts as they are read, so that reading
+     *            them periodically gives the mismatches of each period
+     * @return a new Map from keys to counts
+     */
+    public static Map<String, Long> getTypeMismatchCounts(boolean reset) {
+        HashMap<String, Long> r_counts = new HashMap<String, Long>();
+        for (Map.Entry<Integer, LongAdder> entry : typeMismatches.entrySet()) {
+            long count = reset ? entry.getValue().sumThenReset() : entry.getValue().sum();
+            if (count > 0) {
+                r_counts.put(Symbols.name(entry.getKey()), count);
+            }
+        }
+        return r_counts;
     }
 
     /**
@@ -552,16 +1316,43 @@ public class BaseBundle implements Serializable {
      */
     public boolean getBoolean(String key, boolean defaultValue) {
 
-        Object o = mMap.get(key);
-        if (o == null) {
+        return getBoolean(Symbols.lookup(key), defaultValue);
+    }
+
+    /**
+     * Returns the value associated with the key of the given symbol, or
+     * defaultValue if no mapping of the desired type exists for the key.
+     *
+     * @param symbol
+     *            the symbol of a key
+     * @param defaultValue
+     *            Value to return if key does not exist
+     * @return a boolean value
+     */
+    public boolean getBoolean(int symbol, boolean defaultValue) {
+
+        int i = indexOf(symbol);
+        if (i < 0) {
             return defaultValue;
         }
-        try {
-            return (Boolean) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "Boolean", defaultValue, e);
-            return defaultValue;
+        if (kindAt(i) == KIND_BOOLEAN) {
+            return bitsAt(i) != 0;
         }
+        mismatch(i, symbol);
+        return defaultValue;
+    }
+
+    /**
+     * Returns the value associated with the key of the given symbol, or
+     * false if no mapping of the desired type exists for the key.
+     *
+     * @param symbol
+     *            the symbol of a key
+     * @return a boolean value
+     */
+    public boolean getBoolean(int symbol) {
+
+        return getBoolean(symbol, false);
     }
 
     /**
@@ -590,16 +1381,16 @@ public class BaseBundle implements Serializable {
 
     public Byte getByte(String key, byte defaultValue) {
 
-        Object o = mMap.get(key);
-        if (o == null) {
+        int symbol = Symbols.lookup(key);
+        int i = indexOf(symbol);
+        if (i < 0) {
             return defaultValue;
         }
-        try {
-            return (Byte) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "Byte", defaultValue, e);
-            return defaultValue;
+        if (kindAt(i) == KIND_BYTE) {
+            return (byte) bitsAt(i);
         }
+        mismatch(i, symbol);
+        return defaultValue;
     }
 
     /**
@@ -628,16 +1419,16 @@ public class BaseBundle implements Serializable {
 
     public char getChar(String key, char defaultValue) {
 
-        Object o = mMap.get(key);
-        if (o == null) {
+        int symbol = Symbols.lookup(key);
+        int i = indexOf(symbol);
+        if (i < 0) {
             return defaultValue;
         }
-        try {
-            return (Character) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "Character", defaultValue, e);
-            return defaultValue;
+        if (kindAt(i) == KIND_CHAR) {
+            return (char) bitsAt(i);
         }
+        mismatch(i, symbol);
+        return defaultValue;
     }
 
     /**
@@ -666,16 +1457,16 @@ public class BaseBundle implements Serializable {
 
     public short getShort(String key, short defaultValue) {
 
-        Object o = mMap.get(key);
-        if (o == null) {
+        int symbol = Symbols.lookup(key);
+        int i = indexOf(symbol);
+        if (i < 0) {
             return defaultValue;
         }
-        try {
-            return (Short) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "Short", defaultValue, e);
-            return defaultValue;
+        if (kindAt(i) == KIND_SHORT) {
+            return (short) bitsAt(i);
         }
+        mismatch(i, symbol);
+        return defaultValue;
     }
 
     /**
@@ -703,16 +1494,43 @@ public class BaseBundle implements Serializable {
      */
     public int getInt(String key, int defaultValue) {
 
-        Object o = mMap.get(key);
-        if (o == null) {
+        return getInt(Symbols.lookup(key), defaultValue);
+    }
+
+    /**
+     * Returns the value associated with the key of the given symbol, or
+     * defaultValue if no mapping of the desired type exists for the key.
+     *
+     * @param symbol
+     *            the symbol of a key
+     * @param defaultValue
+     *            Value to return if key does not exist
+     * @return an int value
+     */
+    public int getInt(int symbol, int defaultValue) {
+
+        int i = indexOf(symbol);
+        if (i < 0) {
             return defaultValue;
         }
-        try {
-            return (Integer) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "Integer", defaultValue, e);
-            return defaultValue;
+        if (kindAt(i) == KIND_INT) {
+            return (int) bitsAt(i);
         }
+        mismatch(i, symbol);
+        return defaultValue;
+    }
+
+    /**
+     * Returns the value associated with the key of the given symbol, or
+     * 0 if no mapping of the desired type exists for the key.
+     *
+     * @param symbol
+     *            the symbol of a key
+     * @return an int value
+     */
+    public int getInt(int symbol) {
+
+        return getInt(symbol, 0);
     }
 
     /**
@@ -740,16 +1558,43 @@ public class BaseBundle implements Serializable {
      */
     public long getLong(String key, long defaultValue) {
 
-        Object o = mMap.get(key);
-        if (o == null) {
+        return getLong(Symbols.lookup(key), defaultValue);
+    }
+
+    /**
+     * Returns the value associated with the key of the given symbol, or
+     * defaultValue if no mapping of the desired type exists for the key.
+     *
+     * @param symbol
+     *            the symbol of a key
+     * @param defaultValue
+     *            Value to return if key does not exist
+     * @return a long value
+     */
+    public long getLong(int symbol, long defaultValue) {
+
+        int i = indexOf(symbol);
+        if (i < 0) {
             return defaultValue;
         }
-        try {
-            return (Long) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "Long", defaultValue, e);
-            return defaultValue;
+        if (kindAt(i) == KIND_LONG) {
+            return bitsAt(i);
         }
+        mismatch(i, symbol);
+        return defaultValue;
+    }
+
+    /**
+     * Returns the value associated with the key of the given symbol, or
+     * 0L if no mapping of the desired type exists for the key.
+     *
+     * @param symbol
+     *            the symbol of a key
+     * @return a long value
+     */
+    public long getLong(int symbol) {
+
+        return getLong(symbol, 0L);
     }
 
     /**
@@ -777,16 +1622,16 @@ public class BaseBundle implements Serializable {
      */
     public float getFloat(String key, float defaultValue) {
 
-        Object o = mMap.get(key);
-        if (o == null) {
+        int symbol = Symbols.lookup(key);
+        int i = indexOf(symbol);
+        if (i < 0) {
             return defaultValue;
         }
-        try {
-            return (Float) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "Float", defaultValue, e);
-            return defaultValue;
+        if (kindAt(i) == KIND_FLOAT) {
+            return Float.intBitsToFloat((int) bitsAt(i));
         }
+        mismatch(i, symbol);
+        return defaultValue;
     }
 
     /**
@@ -814,16 +1659,43 @@ public class BaseBundle implements Serializable {
      */
     public double getDouble(String key, double defaultValue) {
 
-        Object o = mMap.get(key);
-        if (o == null) {
+        return getDouble(Symbols.lookup(key), defaultValue);
+    }
+
+    /**
+     * Returns the value associated with the key of the given symbol, or
+     * defaultValue if no mapping of the desired type exists for the key.
+     *
+     * @param symbol
+     *            the symbol of a key
+     * @param defaultValue
+     *            Value to return if key does not exist
+     * @return a double value
+     */
+    public double getDouble(int symbol, double defaultValue) {
+
+        int i = indexOf(symbol);
+        if (i < 0) {
             return defaultValue;
         }
-        try {
-            return (Double) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "Double", defaultValue, e);
-            return defaultValue;
+        if (kindAt(i) == KIND_DOUBLE) {
+            return Double.longBitsToDouble(bitsAt(i));
         }
+        mismatch(i, symbol);
+        return defaultValue;
+    }
+
+    /**
+     * Returns the value associated with the key of the given symbol, or
+     * 0.0 if no mapping of the desired type exists for the key.
+     *
+     * @param symbol
+     *            the symbol of a key
+     * @return a double value
+     */
+    public double getDouble(int symbol) {
+
+        return getDouble(symbol, 0.0);
     }
 
     /**
@@ -837,13 +1709,26 @@ public class BaseBundle implements Serializable {
      */
     public String getString(String key) {
 
-        final Object o = mMap.get(key);
-        try {
+        return getString(Symbols.lookup(key));
+    }
+
+    /**
+     * Returns the value associated with the key of the given symbol, or null
+     * if no mapping of the desired type exists for the key or a null value is
+     * explicitly associated with the key.
+     *
+     * @param symbol
+     *            the symbol of a key
+     * @return a String value, or null
+     */
+    public String getString(int symbol) {
+
+        final Object o = getOfType(symbol, String.class);
+        if (o == null || o instanceof String) {
             return (String) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "String", e);
-            return null;
         }
+        countTypeMismatch(symbol);
+        return null;
     }
 
     /**
@@ -875,13 +1760,12 @@ public class BaseBundle implements Serializable {
      */
     public CharSequence getCharSequence(String key) {
 
-        final Object o = mMap.get(key);
-        try {
+        final Object o = getOfType(Symbols.lookup(key), CharSequence.class);
+        if (o == null || o instanceof CharSequence) {
             return (CharSequence) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "CharSequence", e);
-            return null;
         }
+        countTypeMismatch(Symbols.lookup(key));
+        return null;
     }
 
     /**
@@ -913,16 +1797,15 @@ public class BaseBundle implements Serializable {
      * @return an ArrayList<String> value, or null
      */
     public ArrayList<Integer> getIntegerArrayList(String key) {
-        Object o = mMap.get(key);
+        Object o = getOfType(Symbols.lookup(key), ArrayList.class);
         if (o == null) {
             return null;
         }
-        try {
+        if (o instanceof ArrayList) {
             return (ArrayList<Integer>) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "ArrayList<Integer>", e);
-            return null;
         }
+        countTypeMismatch(Symbols.lookup(key));
+        return null;
     }
 
     /**
@@ -936,16 +1819,15 @@ public class BaseBundle implements Serializable {
      */
     public ArrayList<String> getStringArrayList(String key) {
 
-        Object o = mMap.get(key);
+        Object o = getOfType(Symbols.lookup(key), ArrayList.class);
         if (o == null) {
             return null;
         }
-        try {
+        if (o instanceof ArrayList) {
             return (ArrayList<String>) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "ArrayList<String>", e);
-            return null;
         }
+        countTypeMismatch(Symbols.lookup(key));
+        return null;
     }
 
     /**
@@ -959,16 +1841,15 @@ public class BaseBundle implements Serializable {
      */
     public ArrayList<CharSequence> getCharSequenceArrayList(String key) {
 
-        Object o = mMap.get(key);
+        Object o = getOfType(Symbols.lookup(key), ArrayList.class);
         if (o == null) {
             return null;
         }
-        try {
+        if (o instanceof ArrayList) {
             return (ArrayList<CharSequence>) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "ArrayList<CharSequence>", e);
-            return null;
         }
+        countTypeMismatch(Symbols.lookup(key));
+        return null;
     }
 
     /**
@@ -982,16 +1863,15 @@ public class BaseBundle implements Serializable {
      */
     public boolean[] getBooleanArray(String key) {
 
-        Object o = mMap.get(key);
+        Object o = getOfType(Symbols.lookup(key), boolean[].class);
         if (o == null) {
             return null;
         }
-        try {
+        if (o instanceof boolean[]) {
             return (boolean[]) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "byte[]", e);
-            return null;
         }
+        countTypeMismatch(Symbols.lookup(key));
+        return null;
     }
 
     /**
@@ -1005,16 +1885,15 @@ public class BaseBundle implements Serializable {
      */
     public byte[] getByteArray(String key) {
 
-        Object o = mMap.get(key);
+        Object o = getOfType(Symbols.lookup(key), byte[].class);
         if (o == null) {
             return null;
         }
-        try {
+        if (o instanceof byte[]) {
             return (byte[]) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "byte[]", e);
-            return null;
         }
+        countTypeMismatch(Symbols.lookup(key));
+        return null;
     }
 
     /**
@@ -1028,16 +1907,15 @@ public class BaseBundle implements Serializable {
      */
     public short[] getShortArray(String key) {
 
-        Object o = mMap.get(key);
+        Object o = getOfType(Symbols.lookup(key), short[].class);
         if (o == null) {
             return null;
         }
-        try {
+        if (o instanceof short[]) {
             return (short[]) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "short[]", e);
-            return null;
         }
+        countTypeMismatch(Symbols.lookup(key));
+        return null;
     }
 
     /**
@@ -1051,16 +1929,15 @@ public class BaseBundle implements Serializable {
      */
     public char[] getCharArray(String key) {
 
-        Object o = mMap.get(key);
+        Object o = getOfType(Symbols.lookup(key), char[].class);
         if (o == null) {
             return null;
         }
-        try {
+        if (o instanceof char[]) {
             return (char[]) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "char[]", e);
-            return null;
         }
+        countTypeMismatch(Symbols.lookup(key));
+        return null;
     }
 
     /**
@@ -1074,16 +1951,15 @@ public class BaseBundle implements Serializable {
      */
     public int[] getIntArray(String key) {
 
-        Object o = mMap.get(key);
+        Object o = getOfType(Symbols.lookup(key), int[].class);
         if (o == null) {
             return null;
         }
-        try {
+        if (o instanceof int[]) {
             return (int[]) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "int[]", e);
-            return null;
         }
+        countTypeMismatch(Symbols.lookup(key));
+        return null;
     }
 
     /**
@@ -1097,16 +1973,15 @@ public class BaseBundle implements Serializable {
      */
     public long[] getLongArray(String key) {
 
-        Object o = mMap.get(key);
+        Object o = getOfType(Symbols.lookup(key), long[].class);
         if (o == null) {
             return null;
         }
-        try {
+        if (o instanceof long[]) {
             return (long[]) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "long[]", e);
-            return null;
         }
+        countTypeMismatch(Symbols.lookup(key));
+        return null;
     }
 
     /**
@@ -1120,16 +1995,15 @@ public class BaseBundle implements Serializable {
      */
     public float[] getFloatArray(String key) {
 
-        Object o = mMap.get(key);
+        Object o = getOfType(Symbols.lookup(key), float[].class);
         if (o == null) {
             return null;
         }
-        try {
+        if (o instanceof float[]) {
             return (float[]) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "float[]", e);
-            return null;
         }
+        countTypeMismatch(Symbols.lookup(key));
+        return null;
     }
 
     /**
@@ -1143,16 +2017,15 @@ public class BaseBundle implements Serializable {
      */
     public double[] getDoubleArray(String key) {
 
-        Object o = mMap.get(key);
+        Object o = getOfType(Symbols.lookup(key), double[].class);
         if (o == null) {
             return null;
         }
-        try {
+        if (o instanceof double[]) {
             return (double[]) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "double[]", e);
-            return null;
         }
+        countTypeMismatch(Symbols.lookup(key));
+        return null;
     }
 
     /**
@@ -1166,16 +2039,15 @@ public class BaseBundle implements Serializable {
      */
     public String[] getStringArray(String key) {
 
-        Object o = mMap.get(key);
+        Object o = getOfType(Symbols.lookup(key), String[].class);
         if (o == null) {
             return null;
         }
-        try {
+        if (o instanceof String[]) {
             return (String[]) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "String[]", e);
-            return null;
         }
+        countTypeMismatch(Symbols.lookup(key));
+        return null;
     }
 
     /**
@@ -1189,15 +2061,14 @@ public class BaseBundle implements Serializable {
      */
     public CharSequence[] getCharSequenceArray(String key) {
 
-        Object o = mMap.get(key);
+        Object o = getOfType(Symbols.lookup(key), CharSequence[].class);
         if (o == null) {
             return null;
         }
-        try {
+        if (o instanceof CharSequence[]) {
             return (CharSequence[]) o;
-        } catch (ClassCastException e) {
-            typeWarning(key, o, "CharSequence[]", e);
-            return null;
         }
+        countTypeMismatch(Symbols.lookup(key));
+        return null;
     }
 }
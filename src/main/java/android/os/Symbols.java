@@ -0,0 +1,107 @@
+package android.os;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The table of property names shared by the whole process. Each name is given
+ * a small positive integer, its symbol, the first time it is used, and keeps
+ * it until the process exits. Bundles store the symbols of their keys rather
+ * than the keys themselves, so each name is held once however many bundles
+ * use it, and code that uses a key often can resolve it once and pass the
+ * symbol to the accessors of {@code BaseBundle} that take one, which do not
+ * hash the name.
+ *
+ * <pre>
+ * private static final int SCORE = Symbols.of("Score");
+ * ...
+ * bundle.putInt(SCORE, bundle.getInt(SCORE) + 1);
+ * </pre>
+ *
+ * Names are never removed, so the table grows with the number of different
+ * names ever stored in a bundle; looking a name up does not add it. For
+ * narratives these are the names in the files loaded, which besides the
+ * properties designed include a key such as {@code Mood=Happy} for each
+ * property value the editor has given a colour. Code that builds keys from
+ * data chosen at run time should not store them in bundles.
+ */
+public final class Symbols {
+    /** Marks a free slot of a bundle; no name has it */
+    static final int NONE = 0;
+    /** The symbol of the null key */
+    static final int NULL = 1;
+
+    private static final ConcurrentHashMap<String, Integer> symbols = new ConcurrentHashMap<String, Integer>();
+    /** The name of each symbol, replaced when it grows */
+    private static volatile String[] names = new String[256];
+    /** Guarded by the class */
+    private static int count = 2;
+
+    private Symbols() {
+    }
+
+    /**
+     * Returns the symbol of {@code name}, giving it one if it has none.
+     *
+     * @param name
+     *            a property name, or null
+     * @return the symbol, which is positive
+     */
+    public static int of(String name) {
+        if (name == null) {
+            return NULL;
+        }
+        Integer r_symbol = symbols.get(name);
+        return r_symbol != null ? r_symbol : add(name);
+    }
+
+    /**
+     * Returns the symbol of {@code name} without giving it one, for looking up
+     * keys that may never have been used.
+     *
+     * @return the symbol, or -1 if {@code name} has none
+     */
+    public static int lookup(String name) {
+        if (name == null) {
+            return NULL;
+        }
+        Integer r_symbol = symbols.get(name);
+        return r_symbol != null ? r_symbol : -1;
+    }
+
+    /**
+     * @return the name of {@code symbol}, which is null for the symbol of the
+     *         null key
+     * @throws IllegalArgumentException
+     *             if {@code symbol} is not a symbol
+     */
+    public static String name(int symbol) {
+        String[] table = names;
+        if (symbol <= NONE || symbol >= table.length || (symbol != NULL && table[symbol] == null)) {
+            throw new IllegalArgumentException("Unknown symbol " + symbol);
+        }
+        return table[symbol];
+    }
+
+    /**
+     * @return the number of names with a symbol
+     */
+    public static synchronized int size() {
+        return count - 2;
+    }
+
+    private static synchronized int add(String name) {
+        Integer r_symbol = symbols.get(name);
+        if (r_symbol != null) {
+            return r_symbol;
+        }
+        String[] table = names;
+        if (count == table.length) {
+            table = Arrays.copyOf(table, count * 2);
+        }
+        table[count] = name;
+        names = table;
+        symbols.put(name, count);
+        return count++;
+    }
+}
@@ -0,0 +1,41 @@
+package uk.ac.cam.echo2016.multinarrative;
+
+import java.util.Collections;
+import java.util.SortedMap;
+
+/**
+ * The outcome of applying a list of {@code NarrativeEvent}s to a
+ * {@code NarrativeInstance}.
+ * 
+ * @version 1.0
+ * @see NarrativeInstance#apply(java.util.List)
+ */
+public class BatchResult {
+    private final GameChoice choice;
+    private final SortedMap<Integer, GraphElementNotFoundException> failures;
+
+    BatchResult(GameChoice choice, SortedMap<Integer, GraphElementNotFoundException> failures) {
+        this.choice = choice;
+        this.failures = Collections.unmodifiableSortedMap(failures);
+    }
+
+    /**
+     * @return the choice following the last route ended, or null if no route
+     *         was ended
+     */
+    public GameChoice getChoice() {
+        return choice;
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    /**
+     * @return the events that could not be applied, by their index in the list
+     *         of events
+     */
+    public SortedMap<Integer, GraphElementNotFoundException> getFailures() {
+        return failures;
+    }
+}
@@ -26,15 +26,22 @@ public class ChoiceNode extends Node { // TODO Documentation
         return new ChoiceNode(id);
     }
 
+    @Deprecated
     public BaseBundle startRoute(Route option) {
         return option.getProperties();
+    }
+
+    @Override
+    public BaseBundle startRoute(Route option, NarrativeInstance instance) {
+        return instance.getRouteProperties(option);
     };
 
     public GameChoice onEntry(Route completed, NarrativeInstance instance) throws GraphElementNotFoundException {
-        if (!this.getEntering().contains(completed)) {
+        if (completed.getEnd() != this || instance.getRoute(completed.getId()) != completed) {
             throw new GraphElementNotFoundException(completed.getId());
         }
-        GameChoice gameChoice = new GameChoice(true, getId(), GameChoice.ACTION_MAJOR_DECISION, getExiting());
+        GameChoice gameChoice = new GameChoice(true, getId(), GameChoice.ACTION_MAJOR_DECISION,
+                instance.getExiting(this));
 
         return gameChoice;
     }
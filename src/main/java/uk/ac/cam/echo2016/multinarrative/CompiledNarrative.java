@@ -0,0 +1,234 @@
+package uk.ac.cam.echo2016.multinarrative;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable, integer-indexed form of a {@code MultiNarrative} graph, used by
+ * {@code NarrativeInstance} at runtime. Nodes and routes are given dense ids
+ * starting at 0 and the adjacency of the graph is stored in compressed sparse
+ * row form, so that following a route or listing the routes of a node needs
+ * no hashing.
+ * 
+ * <p>
+ * Routes are numbered in the order they appear in the exiting routes of their
+ * start node, so the routes exiting node {@code n} are exactly the ids from
+ * {@code getFirstExit(n)} (inclusive) to {@code getFirstExit(n + 1)}
+ * (exclusive). The routes entering node {@code n} are listed in
+ * {@code entries} between {@code entryOffsets[n]} and
+ * {@code entryOffsets[n + 1]}.
+ * 
+ * <p>
+ * The {@code Node} and {@code Route} objects of the graph are referenced, not
+ * copied, so the graph must not be modified once it has been compiled.
+ * 
+ * @version 1.0
+ * @see NarrativeTemplate#compile()
+ * @see NarrativeInstance
+ */
+public class CompiledNarrative implements Serializable {
+    private static final long serialVersionUID = 1;
+    final Node[] nodes;
+    final Route[] routes;
+    final HashMap<String, Integer> nodeIds;
+    final HashMap<String, Integer> routeIds;
+    /** Start node of each route */
+    final int[] routeStart;
+    /** End node of each route */
+    final int[] routeEnd;
+    /** Offsets of the exiting routes of each node, with one extra entry */
+    final int[] exitOffsets;
+    /** Offsets into {@code entries} of each node, with one extra entry */
+    final int[] entryOffsets;
+    /** Routes entering each node, grouped by node */
+    final int[] entries;
+    final boolean[] choice;
+    final int start;
+
+    private CompiledNarrative(Node[] nodes, Route[] routes, HashMap<String, Integer> nodeIds,
+            HashMap<String, Integer> routeIds, int[] routeStart, int[] routeEnd, int[] exitOffsets,
+            int[] entryOffsets, int[] entries, boolean[] choice, int start) {
+        this.nodes = nodes;
+        this.routes = routes;
+        this.nodeIds = nodeIds;
+        this.routeIds = routeIds;
+        this.routeStart = routeStart;
+        this.routeEnd = routeEnd;
+        this.exitOffsets = exitOffsets;
+        this.entryOffsets = entryOffsets;
+        this.entries = entries;
+        this.choice = choice;
+        this.start = start;
+    }
+
+    /**
+     * Compiles the graph formed by {@code nodes} and {@code routes}. Every
+     * route must start and end at a node in {@code nodes}, and be listed in
+     * the exiting routes of its start node.
+     * 
+     * @param nodes
+     *            the nodes of the graph, by identifier
+     * @param routes
+     *            the routes of the graph, by identifier
+     * @param start
+     *            the start node, or null
+     * @return the compiled graph
+     * @throws InvalidGraphException
+     *             if the routes and nodes are not consistent with each other
+     */
+    public static CompiledNarrative compile(Map<String, Node> nodes, Map<String, Route> routes, Node start)
+            throws InvalidGraphException {
+        int nodeCount = nodes.size();
+        int routeCount = routes.size();
+        Node[] r_nodes = new Node[nodeCount];
+        Route[] r_routes = new Route[routeCount];
+        HashMap<String, Integer> nodeIds = new HashMap<String, Integer>((int) (nodeCount / 0.75f) + 1);
+        HashMap<String, Integer> routeIds = new HashMap<String, Integer>((int) (routeCount / 0.75f) + 1);
+
+        int n = 0;
+        for (Node node : nodes.values()) {
+            r_nodes[n] = node;
+            nodeIds.put(node.getId(), n);
+            ++n;
+        }
+
+        // Number the routes node by node so that exiting routes are contiguous
+        int[] routeStart = new int[routeCount];
+        int[] exitOffsets = new int[nodeCount + 1];
+        int r = 0;
+        for (n = 0; n < nodeCount; ++n) {
+            exitOffsets[n] = r;
+            for (Route route : r_nodes[n].getExiting()) {
+                if (routes.get(route.getId()) != route || routeIds.containsKey(route.getId())) {
+                    throw new InvalidGraphException("Error: Route " + route.getId() + " is not in the graph.");
+                }
+                r_routes[r] = route;
+                routeIds.put(route.getId(), r);
+                routeStart[r] = n;
+                ++r;
+            }
+        }
+        exitOffsets[nodeCount] = r;
+        if (r != routeCount) {
+            throw new InvalidGraphException("Error: Routes are missing from the exiting routes of their start node.");
+        }
+
+        int[] routeEnd = new int[routeCount];
+        int[] entryOffsets = new int[nodeCount + 1];
+        for (r = 0; r < routeCount; ++r) {
+            Integer end = nodeIds.get(r_routes[r].getEnd().getId());
+            if (end == null || r_nodes[end] != r_routes[r].getEnd()) {
+                throw new InvalidGraphException("Error: Route " + r_routes[r].getId() + " ends outside the graph.");
+            }
+            routeEnd[r] = end;
+            ++entryOffsets[end + 1];
+        }
+        for (n = 0; n < nodeCount; ++n) {
+            entryOffsets[n + 1] += entryOffsets[n];
+        }
+        // Entering routes keep the order of each node's own list
+        int[] entries = new int[routeCount];
+        boolean[] choice = new boolean[nodeCount];
+        for (n = 0; n < nodeCount; ++n) {
+            int i = entryOffsets[n];
+            for (Route route : r_nodes[n].getEntering()) {
+                Integer id = routeIds.get(route.getId());
+                if (id != null && routeEnd[id] == n && i < entryOffsets[n + 1]) {
+                    entries[i++] = id;
+                }
+            }
+            if (i != entryOffsets[n + 1]) {
+                throw new InvalidGraphException(
+                        "Error: Entering routes of " + r_nodes[n].getId() + " are inconsistent.");
+            }
+            choice[n] = r_nodes[n] instanceof ChoiceNode;
+        }
+
+        int r_start = -1;
+        if (start != null) {
+            Integer id = nodeIds.get(start.getId());
+            if (id == null) {
+                throw new InvalidGraphException("Error: Start node is not in the graph.");
+            }
+            r_start = id;
+        }
+        return new CompiledNarrative(r_nodes, r_routes, nodeIds, routeIds, routeStart, routeEnd, exitOffsets,
+                entryOffsets, entries, choice, r_start);
+    }
+
+    public int getNodeCount() {
+        return nodes.length;
+    }
+
+    public int getRouteCount() {
+        return routes.length;
+    }
+
+    /**
+     * @return the id of the node with identifier {@code id}, or -1 if there is
+     *         no such node
+     */
+    public int getNodeId(String id) {
+        Integer n = nodeIds.get(id);
+        return n == null ? -1 : n;
+    }
+
+    /**
+     * @return the id of the route with identifier {@code id}, or -1 if there is
+     *         no such route
+     */
+    public int getRouteId(String id) {
+        Integer r = routeIds.get(id);
+        return r == null ? -1 : r;
+    }
+
+    public Node getNode(int node) {
+        return nodes[node];
+    }
+
+    public Route getRoute(int route) {
+        return routes[route];
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getRouteStart(int route) {
+        return routeStart[route];
+    }
+
+    public int getRouteEnd(int route) {
+        return routeEnd[route];
+    }
+
+    /**
+     * @return the first route exiting {@code node}; the routes exiting
+     *         {@code node} end before {@code getFirstExit(node + 1)}
+     */
+    public int getFirstExit(int node) {
+        return exitOffsets[node];
+    }
+
+    /**
+     * @return the index of the first route entering {@code node} for
+     *         {@link #getEntry(int)}; the routes entering {@code node} end
+     *         before {@code getFirstEntry(node + 1)}
+     */
+    public int getFirstEntry(int node) {
+        return entryOffsets[node];
+    }
+
+    /**
+     * @return the route at {@code index} in the routes entering the nodes,
+     *         which are grouped by node
+     */
+    public int getEntry(int index) {
+        return entries[index];
+    }
+
+    public boolean isChoice(int node) {
+        return choice[node];
+    }
+}
@@ -348,7 +348,53 @@ public class GUINarrative extends EditableNarrative { // TODO Finish
     }
 
     public void saveTemplate(String filename) throws NonUniqueStartException, IOException {
-        SaveWriter.saveObject(filename, generateTemplate());
+        SaveWriter.saveTemplate(filename, generateTemplate());
+    }
+
+    /**
+     * Makes a deep copy of this narrative, including the GUI properties of its
+     * nodes and the property types, which later changes to this narrative do
+     * not affect. Used to take a snapshot for saving in the background.
+     * 
+     * @return the copy
+     */
+    public GUINarrative copy() {
+        GUINarrative r_copy = new GUINarrative();
+        for (Node node : nodes.values()) {
+            Node r_node = node.clone();
+            r_node.setExiting(new ArrayList<Route>(node.getExiting().size()));
+            r_node.setEntering(new ArrayList<Route>(node.getEntering().size()));
+            r_copy.nodes.put(node.getId(), r_node);
+        }
+        for (Route route : routes.values()) {
+            Route r_route = route.clone();
+            r_route.setStart(r_copy.nodes.get(route.getStart().getId()));
+            r_route.setEnd(r_copy.nodes.get(route.getEnd().getId()));
+            r_copy.routes.put(route.getId(), r_route);
+        }
+        // Keep the order of the routes of each node
+        for (Node node : nodes.values()) {
+            Node r_node = r_copy.nodes.get(node.getId());
+            for (Route route : node.getExiting()) {
+                r_node.getExiting().add(r_copy.routes.get(route.getId()));
+            }
+            for (Route route : node.getEntering()) {
+                r_node.getEntering().add(r_copy.routes.get(route.getId()));
+            }
+        }
+        if (start != null) {
+            r_copy.start = (SynchronizationNode) r_copy.nodes.get(start.getId());
+        }
+        r_copy.properties = BaseBundle.deepcopy(properties);
+        if (propertyMapping == null) {
+            r_copy.propertyMapping = null;
+        } else {
+            for (Map.Entry<String, BaseBundle> entry : propertyMapping.entrySet()) {
+                r_copy.propertyMapping.put(entry.getKey(), BaseBundle.deepcopy(entry.getValue()));
+            }
+        }
+        r_copy.typemap.putAll(typemap);
+        return r_copy;
     }
 
     public Map<String, BaseBundle> getPropertyMapping() {
@@ -0,0 +1,106 @@
+package uk.ac.cam.echo2016.multinarrative;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Keeps finished {@code NarrativeInstance}s of a template so that they can be
+ * reset and used again, rather than generating a new instance for every
+ * playthrough. Useful where many short playthroughs are run one after another,
+ * such as in tests and simulations.
+ * 
+ * @version 1.0
+ * @see NarrativeInstance#reset()
+ */
+public class InstancePool {
+    private final NarrativeTemplate template;
+    private final ArrayDeque<NarrativeInstance> free = new ArrayDeque<NarrativeInstance>();
+    /**
+     * The instances in {@code free} and those being reset to join it, by
+     * identity, so that an instance released twice is not handed out twice.
+     * Guarded by {@code free}.
+     */
+    private final Set<NarrativeInstance> released = Collections
+            .newSetFromMap(new IdentityHashMap<NarrativeInstance, Boolean>());
+    private final int capacity;
+
+    /**
+     * @param template
+     *            the template to generate instances of
+     * @param capacity
+     *            the most instances to keep for reuse
+     */
+    public InstancePool(NarrativeTemplate template, int capacity) {
+        this.template = template;
+        this.capacity = capacity;
+    }
+
+    public NarrativeTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * Returns an instance of the template in its initial state, reusing a
+     * released instance if there is one.
+     * 
+     * @throws InvalidGraphException
+     *             if a new instance has to be generated and the template is
+     *             not valid
+     */
+    public NarrativeInstance acquire() throws InvalidGraphException {
+        NarrativeInstance instance;
+        synchronized (free) {
+            instance = free.poll();
+            if (instance != null)
+                released.remove(instance);
+        }
+        return instance == null ? template.generateSharedInstance() : instance;
+    }
+
+    /**
+     * Resets {@code instance} and keeps it for a later call to
+     * {@link #acquire()}, unless the pool is full. The instance must not be
+     * used by the caller afterwards.
+     * 
+     * @param instance
+     *            an instance acquired from this pool
+     * @throws IllegalStateException
+     *             if {@code instance} has been released and not acquired
+     *             again since
+     */
+    public void release(NarrativeInstance instance) {
+        if (instance.getTemplate() != template)
+            throw new IllegalArgumentException("Instance was not generated from this pool's template");
+        synchronized (free) {
+            if (!released.add(instance))
+                throw new IllegalStateException("Instance has already been released to this pool");
+            if (released.size() > capacity) {
+                released.remove(instance);
+                return;
+            }
+        }
+        boolean reset = false;
+        try {
+            instance.reset();
+            reset = true;
+        } finally {
+            synchronized (free) {
+                if (reset)
+                    free.push(instance);
+                else
+                    released.remove(instance);
+            }
+        }
+    }
+
+    /**
+     * @return the number of instances waiting to be reused
+     */
+    public int size() {
+        synchronized (free) {
+            return free.size();
+        }
+    }
+}
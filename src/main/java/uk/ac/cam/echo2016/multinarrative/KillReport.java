@@ -0,0 +1,59 @@
+package uk.ac.cam.echo2016.multinarrative;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Lists the nodes and routes killed by one operation on a
+ * {@code NarrativeInstance}, such as {@code kill} or starting a route from a
+ * {@code ChoiceNode}. Elements are given both as the handles of the
+ * instance's {@code CompiledNarrative} and as identifiers.
+ *
+ * @version 1.0
+ * @see NarrativeInstance#getLastKilled()
+ */
+public class KillReport {
+    private final CompiledNarrative graph;
+    private final int[] routes;
+    private final int[] nodes;
+
+    KillReport(CompiledNarrative graph, int[] routes, int routeCount, int[] nodes, int nodeCount) {
+        this.graph = graph;
+        this.routes = Arrays.copyOf(routes, routeCount);
+        this.nodes = Arrays.copyOf(nodes, nodeCount);
+    }
+
+    public boolean isEmpty() {
+        return routes.length == 0 && nodes.length == 0;
+    }
+
+    /**
+     * @return the handles of the killed routes, which must not be modified
+     */
+    public int[] getRoutes() {
+        return routes;
+    }
+
+    /**
+     * @return the handles of the killed nodes, which must not be modified
+     */
+    public int[] getNodes() {
+        return nodes;
+    }
+
+    public ArrayList<String> getRouteIds() {
+        ArrayList<String> ids = new ArrayList<String>(routes.length);
+        for (int route : routes) {
+            ids.add(graph.routes[route].getId());
+        }
+        return ids;
+    }
+
+    public ArrayList<String> getNodeIds() {
+        ArrayList<String> ids = new ArrayList<String>(nodes.length);
+        for (int node : nodes) {
+            ids.add(graph.nodes[node].getId());
+        }
+        return ids;
+    }
+}
@@ -42,6 +42,13 @@ public abstract class MultiNarrative implements Serializable { // TODO
         return routes.get(id);
     }
 
+    /**
+     * @return the start node, or null if it has not been set
+     */
+    public SynchronizationNode getStart() {
+        return start;
+    }
+
     public BaseBundle getGlobalProperties() {
         return properties;
     }
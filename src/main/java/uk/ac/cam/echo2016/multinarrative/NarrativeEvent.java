@@ -0,0 +1,57 @@
+package uk.ac.cam.echo2016.multinarrative;
+
+import java.io.Serializable;
+
+/**
+ * A route being started or ended by the player, or an element of the graph
+ * being killed, for applying progress to a {@code NarrativeInstance} in bulk.
+ * 
+ * @version 1.0
+ * @see NarrativeInstance#apply(java.util.List)
+ */
+public class NarrativeEvent implements Serializable {
+    private static final long serialVersionUID = 1;
+
+    public static final int START_ROUTE = 0;
+    public static final int END_ROUTE = 1;
+    /** A route or node killed with {@link NarrativeInstance#kill(String)} */
+    public static final int KILL = 2;
+
+    private final int type;
+    private final String id;
+
+    public NarrativeEvent(int type, String id) {
+        if (type != START_ROUTE && type != END_ROUTE && type != KILL)
+            throw new IllegalArgumentException("Unknown event type " + type);
+        this.type = type;
+        this.id = id;
+    }
+
+    public static NarrativeEvent start(String routeId) {
+        return new NarrativeEvent(START_ROUTE, routeId);
+    }
+
+    public static NarrativeEvent end(String routeId) {
+        return new NarrativeEvent(END_ROUTE, routeId);
+    }
+
+    public static NarrativeEvent kill(String id) {
+        return new NarrativeEvent(KILL, id);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return the identifier of the route, or of the route or node killed
+     */
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return (type == START_ROUTE ? "start " : type == END_ROUTE ? "end " : "kill ") + id;
+    }
+}
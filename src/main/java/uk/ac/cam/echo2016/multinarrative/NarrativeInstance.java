@@ -1,9 +1,19 @@
 package uk.ac.cam.echo2016.multinarrative;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import android.os.BaseBundle;
+import android.os.Symbols;
 import uk.ac.cam.echo2016.multinarrative.dev.Debug;
 
 /**
@@ -11,15 +21,80 @@ import uk.ac.cam.echo2016.multinarrative.dev.Debug;
  * Represents an actual play through of the story. Instantiated from the
  * template.
  * 
+ * <p>
+ * An instance either owns a copy of the template graph (see
+ * {@link NarrativeTemplate#generateInstance()}) or shares the graph of its
+ * template read-only (see {@link NarrativeTemplate#generateSharedInstance()}).
+ * A shared instance never modifies the template's {@code Node}s and
+ * {@code Route}s: killed elements are recorded by the instance, and property
+ * bundles are copied into the instance the first time they are requested.
+ * Game code should therefore go through {@link #getRouteProperties(Route)},
+ * {@link #getEntering(Node)} and {@link #getExiting(Node)} rather than the
+ * methods on {@code Node} and {@code Route} directly.
+ * 
+ * <p>
+ * State owned by the engine, such as whether a route has been completed, is
+ * kept in bitsets rather than in the property bundles, and is read through
+ * methods such as {@link #isCompleted(Route)}.
+ * 
+ * <p>
+ * At runtime the instance works on a {@link CompiledNarrative}, in which every
+ * node and route has an integer handle. The methods taking an {@code int}
+ * avoid looking up identifiers altogether; the methods taking a
+ * {@code String} look the identifier up once and then call them. The graph of
+ * an instance must not be modified other than through this class, and nodes
+ * should only be made active through {@link #setActive(Node)}.
+ * 
  * @author tr39
  * @author rjm232
  * @author jr650
  * @version 1.0
- *
+ * 
  */
 public class NarrativeInstance extends MultiNarrative { // TODO Documentation
     private static final long serialVersionUID = 1;
+    private static final int LOG_START = 0;
+    private static final int LOG_END = 1;
+    private static final int LOG_KILL_ROUTE = 2;
+    private static final int LOG_KILL_NODE = 3;
+    /**
+     * The symbol of {@code System.isCompleted}, which older saves kept in the
+     * properties of completed routes
+     */
+    static final int IS_COMPLETED = Symbols.of("System.isCompleted");
     protected ArrayList<Node> activeNodes = new ArrayList<Node>();
+    /** The template whose graph is shared, or null if this instance owns its graph. */
+    protected NarrativeTemplate template = null;
+    /** Copies of the shared property bundles that this instance has requested. */
+    protected HashMap<String, BaseBundle> localProperties = null;
+    /** Compiled on first use if the instance was not generated from a template. */
+    protected CompiledNarrative graph = null;
+    protected BitSet killedNodes = new BitSet();
+    protected BitSet killedRoutes = new BitSet();
+    protected BitSet completedRoutes = new BitSet();
+    /**
+     * Every route started and ended and every element killed, in order, each
+     * stored as {@code handle << 2 | LOG_*}.
+     */
+    protected int[] eventLog = new int[16];
+    protected int eventCount = 0;
+    /**
+     * The uncompleted routes exiting the active nodes, in the order the nodes
+     * became active. Kept up to date as routes are started, ended and killed.
+     */
+    protected ArrayList<Route> playableRoutes = null;
+    /** A read-only view of {@code playableRoutes}, which is never replaced once made */
+    private transient List<Route> playableView = null;
+    /** Kills still to be carried out: a route as its handle, a node as ~handle. */
+    private transient int[] killStack = null;
+    private transient int killCount = 0;
+    private transient KillReport lastKilled = null;
+    /** Number of live routes entering each node, counted on first use. */
+    private transient int[] liveEntries = null;
+    /** Number of live routes exiting each node, counted on first use. */
+    private transient int[] liveExits = null;
+    /** Number of live routes entering each node that are not yet completed. */
+    private transient int[] incompleteEntries = null;
 
     public NarrativeInstance(HashMap<String, Route> routes, HashMap<String, Node> nodes, SynchronizationNode start,
             BaseBundle properties) {
@@ -32,43 +107,373 @@ public class NarrativeInstance extends MultiNarrative { // TODO Documentation
     public NarrativeInstance() {
     }
 
+    /**
+     * Creates an instance that shares the graph of {@code template}. Only the
+     * global properties are copied.
+     * 
+     * @param template
+     *            the template to share, which must not be modified afterwards
+     * @throws InvalidGraphException
+     *             if the template cannot be compiled
+     */
+    protected NarrativeInstance(NarrativeTemplate template) throws InvalidGraphException {
+        this.template = template;
+        this.graph = template.compile();
+        this.routes = template.routes;
+        this.nodes = template.nodes;
+        this.start = template.start;
+        this.properties = BaseBundle.deepcopy(template.properties);
+        this.localProperties = new HashMap<String, BaseBundle>();
+    }
+
+    /**
+     * @return true if this instance shares the graph of its template rather
+     *         than owning a copy
+     */
+    public boolean isShared() {
+        return template != null;
+    }
+
+    public NarrativeTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * Returns the compiled form of this instance's graph, compiling the graph
+     * first if needed.
+     */
+    public CompiledNarrative getGraph() {
+        if (graph == null) {
+            try {
+                graph = CompiledNarrative.compile(nodes, routes, start);
+            } catch (InvalidGraphException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * @return the handle of the node with identifier {@code id}, or -1 if the
+     *         node does not exist or has been killed
+     */
+    public int getNodeHandle(String id) {
+        int node = getGraph().getNodeId(id);
+        return node < 0 || killedNodes.get(node) ? -1 : node;
+    }
+
+    /**
+     * @return the handle of the route with identifier {@code id}, or -1 if the
+     *         route does not exist or has been killed
+     */
+    public int getRouteHandle(String id) {
+        int route = getGraph().getRouteId(id);
+        return route < 0 || killedRoutes.get(route) ? -1 : route;
+    }
+
+    /**
+     * @return the node with handle {@code node}, or null if it has been killed
+     */
+    public Node getNode(int node) {
+        return killedNodes.get(node) ? null : getGraph().nodes[node];
+    }
+
+    /**
+     * @return the route with handle {@code route}, or null if it has been
+     *         killed
+     */
+    public Route getRoute(int route) {
+        return killedRoutes.get(route) ? null : getGraph().routes[route];
+    }
+
+    @Override
+    public Node getNode(String id) {
+        if (template == null)
+            return nodes.get(id);
+        int node = getNodeHandle(id);
+        return node < 0 ? null : graph.nodes[node];
+    }
+
+    @Override
+    public Route getRoute(String id) {
+        if (template == null)
+            return routes.get(id);
+        int route = getRouteHandle(id);
+        return route < 0 ? null : graph.routes[route];
+    }
+
+    /**
+     * For a shared instance this is a snapshot of the nodes still alive, built
+     * on each call.
+     */
+    @Override
+    public HashMap<String, Node> getNodes() {
+        if (template == null)
+            return nodes;
+        HashMap<String, Node> r_nodes = new HashMap<String, Node>();
+        for (int node = 0; node < graph.nodes.length; ++node) {
+            if (!killedNodes.get(node))
+                r_nodes.put(graph.nodes[node].getId(), graph.nodes[node]);
+        }
+        return r_nodes;
+    }
+
+    /**
+     * For a shared instance this is a snapshot of the routes still alive, built
+     * on each call.
+     */
+    @Override
+    public HashMap<String, Route> getRoutes() {
+        if (template == null)
+            return routes;
+        HashMap<String, Route> r_routes = new HashMap<String, Route>();
+        for (int route = 0; route < graph.routes.length; ++route) {
+            if (!killedRoutes.get(route))
+                r_routes.put(graph.routes[route].getId(), graph.routes[route]);
+        }
+        return r_routes;
+    }
+
+    @Override
+    public BaseBundle getRouteProperties(String id) {
+        return getRouteProperties(getRoute(id));
+    }
+
+    @Override
+    public BaseBundle getNodeProperties(String id) {
+        return getNodeProperties(getNode(id));
+    }
+
+    /**
+     * Returns the properties of {@code route} that belong to this instance,
+     * copying them from the template first if the graph is shared. Whether
+     * the route has been completed is not part of its properties; use
+     * {@link #isCompleted(Route)}.
+     */
+    public BaseBundle getRouteProperties(Route route) {
+        if (template == null)
+            return route.getProperties();
+        return getLocalProperties(route.getId(), route.getProperties());
+    }
+
+    /**
+     * Returns the properties of {@code node} that belong to this instance,
+     * copying them from the template first if the graph is shared.
+     */
+    public BaseBundle getNodeProperties(Node node) {
+        if (template == null)
+            return node.getProperties();
+        return getLocalProperties(node.getId(), node.getProperties());
+    }
+
+    /**
+     * Returns the routes entering {@code node} that are still alive in this
+     * instance. For a shared instance this is a new list on each call, which
+     * is empty if {@code node} is not in this instance.
+     */
+    public ArrayList<Route> getEntering(Node node) {
+        if (template == null)
+            return node.getEntering();
+        int n = graph.getNodeId(node.getId());
+        ArrayList<Route> r_routes = new ArrayList<Route>();
+        if (n < 0)
+            return r_routes;
+        for (int i = graph.entryOffsets[n]; i < graph.entryOffsets[n + 1]; ++i) {
+            if (!killedRoutes.get(graph.entries[i]))
+                r_routes.add(graph.routes[graph.entries[i]]);
+        }
+        return r_routes;
+    }
+
+    /**
+     * Returns the routes exiting {@code node} that are still alive in this
+     * instance. For a shared instance this is a new list on each call, which
+     * is empty if {@code node} is not in this instance.
+     */
+    public ArrayList<Route> getExiting(Node node) {
+        if (template == null)
+            return node.getExiting();
+        int n = graph.getNodeId(node.getId());
+        ArrayList<Route> r_routes = new ArrayList<Route>();
+        if (n < 0)
+            return r_routes;
+        for (int route = graph.exitOffsets[n]; route < graph.exitOffsets[n + 1]; ++route) {
+            if (!killedRoutes.get(route))
+                r_routes.add(graph.routes[route]);
+        }
+        return r_routes;
+    }
+
+    public boolean isCompleted(Route route) {
+        int r = getGraph().getRouteId(route.getId());
+        return r >= 0 && completedRoutes.get(r);
+    }
+
+    /**
+     * Returns true if every route entering {@code node} has been completed.
+     * Completion is tracked with a counter per node, updated as routes are
+     * ended and killed. False if {@code node} is not in this instance.
+     */
+    public boolean isCompleted(Node node) {
+        int n = getGraph().getNodeId(node.getId());
+        return n >= 0 && isNodeCompleted(n);
+    }
+
+    /**
+     * @return the number of routes entering {@code node} that are still
+     *         alive, or 0 if it is not in this instance
+     */
+    public int getEnteringCount(Node node) {
+        int n = getGraph().getNodeId(node.getId());
+        return n < 0 ? 0 : countEntering(n);
+    }
+
+    /**
+     * @return the number of routes exiting {@code node} that are still alive,
+     *         or 0 if it is not in this instance
+     */
+    public int getExitingCount(Node node) {
+        int n = getGraph().getNodeId(node.getId());
+        return n < 0 ? 0 : countExiting(n);
+    }
+
     public BaseBundle startRoute(String id) throws GraphElementNotFoundException {
-        Route route = getRoute(id);
-        if (route == null)
+        int route = getRouteHandle(id);
+        if (route < 0)
             throw new GraphElementNotFoundException(id);
-        Node startNode = route.getStart();
-        if (startNode instanceof ChoiceNode) {
-            activeNodes.remove(startNode);
-            for (Route deadRoute : startNode.getExiting()) {
-                if (deadRoute != route) {
-                    kill(deadRoute);
+        return startRoute(route);
+    }
+
+    /**
+     * {@link NarrativeInstance#startRoute(String)}
+     * 
+     * @see NarrativeInstance#startRoute(String)
+     */
+    public BaseBundle startRoute(int route) throws GraphElementNotFoundException {
+        checkRoute(route);
+        beginRoute(route);
+        return graph.nodes[graph.routeStart[route]].startRoute(graph.routes[route], this);
+    }
+
+    private void beginRoute(int route) {
+        logEvent(route, LOG_START);
+        int startNode = graph.routeStart[route];
+        if (graph.choice[startNode]) {
+            setInactive(startNode);
+            int lastExit = graph.exitOffsets[startNode + 1];
+            for (int deadRoute = graph.exitOffsets[startNode]; deadRoute < lastExit; ++deadRoute) {
+                if (deadRoute != route && !killedRoutes.get(deadRoute)) {
+                    pushKill(deadRoute);
                 }
             }
+            runKills();
         } else {
-            if (startNode.getExiting().size() == 1) {
-                activeNodes.remove(startNode);
+            lastKilled = null;
+            if (countExiting(startNode) == 1) {
+                setInactive(startNode);
             }
         }
-        return startNode.startRoute(route);
     }
 
     public GameChoice endRoute(String id) throws GraphElementNotFoundException {
-        Route route = getRoute(id);
-        if (route == null)
+        int route = getRouteHandle(id);
+        if (route < 0)
             throw new GraphElementNotFoundException(id);
-        Node endNode = route.getEnd();
-        if (endNode instanceof ChoiceNode || ((SynchronizationNode) endNode).isCompleted()) {
-            setActive(endNode);
+        return endRoute(route);
+    }
+
+    /**
+     * {@link NarrativeInstance#endRoute(String)}
+     * 
+     * @see NarrativeInstance#endRoute(String)
+     */
+    public GameChoice endRoute(int route) throws GraphElementNotFoundException {
+        checkRoute(route);
+        completeRoute(route);
+        return graph.nodes[graph.routeEnd[route]].onEntry(graph.routes[route], this);
+    }
+
+    private void completeRoute(int route) {
+        logEvent(route, LOG_END);
+        int endNode = graph.routeEnd[route];
+        if (graph.choice[endNode] || isNodeCompleted(endNode)) {
+            setActive(graph.nodes[endNode]);
         }
-        route.getProperties().putBoolean("System.isCompleted", true);
-        return endNode.onEntry(route, this);
+        if (!completedRoutes.get(route)) {
+            completedRoutes.set(route);
+            --incompleteEntries[endNode];
+        }
+        if (playableRoutes != null)
+            playableRoutes.remove(graph.routes[route]);
     }
 
     /**
-     * Recursively deletes an item from the graph according to the instance this
-     * method is called from. Only nodes and routes further down the tree are
+     * Starts and ends routes as listed in {@code events}, in order, as if
+     * {@link #startRoute(String)} and {@link #endRoute(String)} had been called
+     * for each event, or {@link #kill(String)} for {@code KILL} events. Events
+     * naming an element that does not exist or has been killed are skipped and
+     * reported in the result. The playable routes are only worked out again
+     * once all events have been applied, and a {@code GameChoice} is only
+     * created for the last route ended.
+     * 
+     * @param events
+     *            the events to apply
+     * @return the choice following the last route ended, and the events that
+     *         could not be applied
+     */
+    public BatchResult apply(List<NarrativeEvent> events) {
+        getGraph();
+        // Not kept up to date while the events are applied, but rebuilt at the
+        // end into the same list, as getPlayableRoutes() returns a view of it
+        ArrayList<Route> playable = playableRoutes;
+        playableRoutes = null;
+        TreeMap<Integer, GraphElementNotFoundException> failures =
+                new TreeMap<Integer, GraphElementNotFoundException>();
+        int lastEnded = -1;
+        for (int i = 0; i < events.size(); ++i) {
+            NarrativeEvent event = events.get(i);
+            if (event.getType() == NarrativeEvent.KILL) {
+                if (!kill(event.getId()))
+                    failures.put(i, new GraphElementNotFoundException(event.getId()));
+                continue;
+            }
+            int route = getRouteHandle(event.getId());
+            if (route < 0) {
+                failures.put(i, new GraphElementNotFoundException(event.getId()));
+            } else if (event.getType() == NarrativeEvent.START_ROUTE) {
+                beginRoute(route);
+            } else {
+                completeRoute(route);
+                lastEnded = route;
+            }
+        }
+        if (playable != null) {
+            playable.clear();
+            playableRoutes = playable;
+            for (Node node : activeNodes) {
+                addPlayable(graph.getNodeId(node.getId()));
+            }
+        }
+
+        GameChoice r_choice = null;
+        if (lastEnded >= 0 && !killedRoutes.get(lastEnded)) {
+            try {
+                r_choice = graph.nodes[graph.routeEnd[lastEnded]].onEntry(graph.routes[lastEnded], this);
+            } catch (GraphElementNotFoundException e) {
+                // Not possible, as the route is still alive
+                throw new IllegalStateException(e);
+            }
+        }
+        return new BatchResult(r_choice, failures);
+    }
+
+    /**
+     * Deletes an item from the graph according to the instance this method is
+     * called from, along with everything further down the tree that can no
+     * longer be reached. Only nodes and routes further down the tree are
      * deleted, so nodes must have no entering routes and routes must start from
-     * a node with other exiting routes available.
+     * a node with other exiting routes available. The elements deleted can be
+     * found with {@link #getLastKilled()}.
      * 
      * @param id
      *            string identifier for the item to be deleted
@@ -76,14 +481,14 @@ public class NarrativeInstance extends MultiNarrative { // TODO Documentation
      */
     public boolean kill(String id) { // TODO More Documentation, including
                                      // overloaded methods
-        Route route = getRoute(id);
-        if (route != null) {
-            kill(route);
+        int route = getRouteHandle(id);
+        if (route >= 0) {
+            killRoute(route);
             return true; // TODO change to throw GraphElementNotFoundException?
         } else {
-            Node node = getNode(id);
-            if (node != null) {
-                kill(node);
+            int node = getNodeHandle(id);
+            if (node >= 0) {
+                killNode(node);
                 return true;
             }
             return false; // TODO change to throw GraphElementNotFoundException?
@@ -98,52 +503,8 @@ public class NarrativeInstance extends MultiNarrative { // TODO Documentation
     public boolean kill(Route route) {
         if (route == null)
             return false;
-        Node nEnd = route.getEnd();
-
-        Debug.logInfo("Killing " + route.getId(), 4, Debug.SYSTEM_ALL);
-
-        nEnd.getEntering().remove(route);
-        // If there are now no routes entering the node, kill it
-        if (nEnd.getEntering().size() == 0) {
-            kill(nEnd);
-        } else if (route.getProperties() != null) {
-            // // Kills all methods leaving the end node if they have the same
-            // type and no entering routes also
-            // // have that property TODO specify in documentation
-            for (String key : route.getProperties().keySet()) {
-                if (this.getGlobalProperties().getStringArrayList("System.Types").contains(key)) { // TODO
-                                                                                                   // error
-                                                                                                   // if
-                                                                                                   // no
-                                                                                                   // global
-                                                                                                   // "Types"
-                                                                                                   // property
-                    Object type = route.getProperties().get(key);
-
-                    boolean similarRouteExists = false;
-                    for (Route entry : nEnd.getEntering()) {
-                        if (entry.getProperties().containsKey(key) && entry.getProperties().get(key).equals(type)) {
-                            similarRouteExists = true;
-                        }
-                    }
-                    if (!similarRouteExists) {
-                        for (Route option : new ArrayList<Route>(nEnd.getExiting())) {
-                            if (option.getProperties().containsKey(key)
-                                    && option.getProperties().get(key).equals(type)) {
-                                kill(option);
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        // Remove the route from the exiting routes of the node it comes from
-        Node nStart = route.getStart();
-        nStart.getExiting().remove(route); // Should return true, otherwise
-                                           // something's broken
-
-        routes.remove(route.getId());
-        return true;
+        int r = getGraph().getRouteId(route.getId());
+        return r >= 0 && killRoute(r);
     }
 
     /**
@@ -154,32 +515,476 @@ public class NarrativeInstance extends MultiNarrative { // TODO Documentation
     public boolean kill(Node node) {
         if (node == null)
             return false;
-        for (Route route : new ArrayList<Route>(node.getExiting())) {
-            kill(route); // Copy of ArrayList used to allow deletion of nodes
-                         // within the function
-        }
+        int n = getGraph().getNodeId(node.getId());
+        return n >= 0 && killNode(n);
+    }
+
+    /**
+     * {@link NarrativeInstance#kill(String)}
+     * 
+     * @see NarrativeInstance#kill(String)
+     */
+    public boolean killRoute(int route) {
+        if (killedRoutes.get(route))
+            return false;
+        getGraph();
+        logEvent(route, LOG_KILL_ROUTE);
+        pushKill(route);
+        runKills();
+        return true;
+    }
+
+    /**
+     * {@link NarrativeInstance#kill(String)}
+     * 
+     * @see NarrativeInstance#kill(String)
+     */
+    public boolean killNode(int node) {
+        if (killedNodes.get(node))
+            return false;
+        getGraph();
 
         // As specified in the javadoc
-        assert node.getEntering().size() == 0;
+        assert countEntering(node) == 0;
 
-        nodes.remove(node.getId());
+        logEvent(node, LOG_KILL_NODE);
+        pushKill(~node);
+        runKills();
         return true;
     }
 
-    public ArrayList<Route> getPlayableRoutes() {
-        ArrayList<Route> r_routes = new ArrayList<Route>();
-        for (Node node : activeNodes) {
-            for (Route route : node.getExiting()) {
-                if (!route.getProperties().getBoolean("System.isCompleted")) {
-                    r_routes.add(route);
-                }
+    /**
+     * Returns this shared instance to the state it was generated in, as if
+     * {@link NarrativeTemplate#generateSharedInstance()} had just been called,
+     * reusing its lists, bitsets and counters. Killed nodes and routes are
+     * revived, completed routes are cleared, the copied properties are dropped
+     * and the global properties are copied from the template again.
+     * 
+     * @throws IllegalStateException
+     *             if the instance owns its graph, as the template it was copied
+     *             from is not known
+     * @see InstancePool
+     */
+    public void reset() {
+        if (template == null)
+            throw new IllegalStateException("Only shared instances can be reset");
+        activeNodes.clear();
+        killedNodes.clear();
+        killedRoutes.clear();
+        completedRoutes.clear();
+        eventCount = 0;
+        lastKilled = null;
+        localProperties.clear();
+        properties = BaseBundle.deepcopy(template.properties);
+        if (incompleteEntries != null) {
+            for (int node = 0; node < graph.nodes.length; ++node) {
+                liveEntries[node] = graph.entryOffsets[node + 1] - graph.entryOffsets[node];
+                liveExits[node] = graph.exitOffsets[node + 1] - graph.exitOffsets[node];
+                incompleteEntries[node] = liveEntries[node];
             }
         }
-        return r_routes;
+        if (playableRoutes != null)
+            playableRoutes.clear();
+        setActive(start);
+    }
+
+    /**
+     * Replaces the state of this shared instance with a saved one: the given
+     * nodes and routes are killed, without killing anything else, the given
+     * routes are completed, and the given nodes are made active in order.
+     * Used to load saves that store the state of an instance rather than its
+     * events, so the event log is cleared. Properties are not changed.
+     * 
+     * @throws GraphElementNotFoundException
+     *             if an identifier is not in the graph
+     */
+    public void restoreState(Collection<String> killedNodeIds, Collection<String> killedRouteIds,
+            Collection<String> completedRouteIds, Collection<String> activeNodeIds)
+            throws GraphElementNotFoundException {
+        if (template == null)
+            throw new IllegalStateException("Only shared instances can be restored");
+        getGraph();
+        killedNodes.clear();
+        killedRoutes.clear();
+        completedRoutes.clear();
+        activeNodes.clear();
+        for (String id : killedNodeIds) {
+            killedNodes.set(findNode(id));
+        }
+        for (String id : killedRouteIds) {
+            killedRoutes.set(findRoute(id));
+        }
+        for (String id : completedRouteIds) {
+            completedRoutes.set(findRoute(id));
+        }
+        for (String id : activeNodeIds) {
+            Node node = graph.nodes[findNode(id)];
+            if (!activeNodes.contains(node))
+                activeNodes.add(node);
+        }
+        eventCount = 0;
+        lastKilled = null;
+        liveEntries = null;
+        liveExits = null;
+        incompleteEntries = null;
+        if (playableRoutes != null) {
+            playableRoutes.clear();
+            for (Node node : activeNodes) {
+                addPlayable(graph.getNodeId(node.getId()));
+            }
+        }
+    }
+
+    /**
+     * @return the active nodes, in the order they became active, as a
+     *         read-only view
+     */
+    public List<Node> getActiveNodes() {
+        return Collections.unmodifiableList(activeNodes);
+    }
+
+    /**
+     * @return the number of events recorded by this instance
+     */
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Returns the routes started and ended and the elements killed through
+     * this instance, in order, starting from event {@code from}. Applying
+     * them to a new instance of the same template with
+     * {@link #apply(List)} recreates the state of this instance, apart from
+     * any properties that have been changed.
+     * 
+     * @param from
+     *            the index of the first event to return
+     */
+    public ArrayList<NarrativeEvent> getEventLog(int from) {
+        ArrayList<NarrativeEvent> r_events = new ArrayList<NarrativeEvent>(Math.max(eventCount - from, 0));
+        for (int i = from; i < eventCount; ++i) {
+            int handle = eventLog[i] >>> 2;
+            switch (eventLog[i] & 3) {
+            case LOG_START:
+                r_events.add(NarrativeEvent.start(graph.routes[handle].getId()));
+                break;
+            case LOG_END:
+                r_events.add(NarrativeEvent.end(graph.routes[handle].getId()));
+                break;
+            case LOG_KILL_ROUTE:
+                r_events.add(NarrativeEvent.kill(graph.routes[handle].getId()));
+                break;
+            default:
+                r_events.add(NarrativeEvent.kill(graph.nodes[handle].getId()));
+            }
+        }
+        return r_events;
+    }
+
+    /**
+     * Returns the property bundles that this shared instance has copied from
+     * its template, by identifier of the node or route. These are the only
+     * node and route properties the game can have changed. An instance that
+     * owns its graph returns an empty map.
+     */
+    public Map<String, BaseBundle> getCopiedProperties() {
+        if (localProperties == null)
+            return Collections.emptyMap();
+        return Collections.unmodifiableMap(localProperties);
+    }
+
+    /**
+     * Returns the nodes and routes killed by the most recent call to
+     * {@code kill} or {@code startRoute}.
+     */
+    public KillReport getLastKilled() {
+        if (lastKilled == null)
+            lastKilled = new KillReport(getGraph(), new int[0], 0, new int[0], 0);
+        return lastKilled;
+    }
+
+    /**
+     * Returns the routes that can currently be played: the uncompleted routes
+     * exiting the active nodes. The list is a read-only view that is kept up
+     * to date as routes are played, so reading it costs nothing; copy it to
+     * keep the routes as they are, such as to play each of them in turn.
+     */
+    public List<Route> getPlayableRoutes() {
+        ArrayList<Route> playable = getPlayable();
+        if (playableView == null)
+            playableView = Collections.unmodifiableList(playable);
+        return playableView;
     }
 
     public void setActive(Node node) {
-        if (!activeNodes.contains(node))
+        if (!activeNodes.contains(node)) {
             activeNodes.add(node);
+            if (playableRoutes != null)
+                addPlayable(getGraph().getNodeId(node.getId()));
+        }
+    }
+
+    /**
+     * Returns the properties of {@code route} without copying them into a
+     * shared instance, so the result must not be modified.
+     */
+    protected BaseBundle peekProperties(Route route) {
+        if (template != null) {
+            BaseBundle local = localProperties.get(route.getId());
+            if (local != null)
+                return local;
+        }
+        return route.getProperties();
+    }
+
+    /**
+     * Returns the playable routes, finding them from the active nodes if they
+     * have not been tracked yet.
+     */
+    private ArrayList<Route> getPlayable() {
+        if (playableRoutes == null) {
+            playableRoutes = new ArrayList<Route>();
+            getGraph();
+            for (Node node : activeNodes) {
+                addPlayable(graph.getNodeId(node.getId()));
+            }
+        }
+        return playableRoutes;
+    }
+
+    private void addPlayable(int node) {
+        for (int route = graph.exitOffsets[node]; route < graph.exitOffsets[node + 1]; ++route) {
+            if (!killedRoutes.get(route) && !completedRoutes.get(route))
+                playableRoutes.add(graph.routes[route]);
+        }
+    }
+
+    private void setInactive(int node) {
+        if (activeNodes.remove(graph.nodes[node]) && playableRoutes != null) {
+            for (int route = graph.exitOffsets[node]; route < graph.exitOffsets[node + 1]; ++route) {
+                playableRoutes.remove(graph.routes[route]);
+            }
+        }
+    }
+
+    private void logEvent(int handle, int type) {
+        if (eventCount == eventLog.length)
+            eventLog = Arrays.copyOf(eventLog, eventCount * 2);
+        eventLog[eventCount++] = handle << 2 | type;
+    }
+
+    private void pushKill(int item) {
+        if (killStack == null) {
+            killStack = new int[16];
+        } else if (killCount == killStack.length) {
+            killStack = Arrays.copyOf(killStack, killCount * 2);
+        }
+        killStack[killCount++] = item;
+    }
+
+    /**
+     * Kills everything on the kill stack and everything that dies as a
+     * result. Elements are marked as killed as they are taken off the stack,
+     * and are only removed from the maps and lists of the graph once nothing
+     * else is left to kill.
+     */
+    private void runKills() {
+        countEntries();
+        int[] r_routes = new int[8];
+        int routeCount = 0;
+        int[] r_nodes = new int[4];
+        int nodeCount = 0;
+
+        while (killCount > 0) {
+            int item = killStack[--killCount];
+            if (item < 0) {
+                int node = ~item;
+                if (killedNodes.get(node))
+                    continue;
+                killedNodes.set(node);
+                if (nodeCount == r_nodes.length)
+                    r_nodes = Arrays.copyOf(r_nodes, nodeCount * 2);
+                r_nodes[nodeCount++] = node;
+                for (int route = graph.exitOffsets[node]; route < graph.exitOffsets[node + 1]; ++route) {
+                    if (!killedRoutes.get(route))
+                        pushKill(route);
+                }
+                continue;
+            }
+
+            int route = item;
+            if (killedRoutes.get(route))
+                continue;
+            killedRoutes.set(route);
+            if (routeCount == r_routes.length)
+                r_routes = Arrays.copyOf(r_routes, routeCount * 2);
+            r_routes[routeCount++] = route;
+
+            Route r_route = graph.routes[route];
+            int nEnd = graph.routeEnd[route];
+            --liveEntries[nEnd];
+            --liveExits[graph.routeStart[route]];
+            if (!completedRoutes.get(route))
+                --incompleteEntries[nEnd];
+
+            BaseBundle routeProperties = peekProperties(r_route);
+            // If there are now no routes entering the node, kill it
+            if (countEntering(nEnd) == 0) {
+                pushKill(~nEnd);
+            } else if (routeProperties != null) {
+                // // Kills all methods leaving the end node if they have the same
+                // type and no entering routes also
+                // // have that property TODO specify in documentation
+                // Without a global "System.Types" property no property is a type
+                ArrayList<String> types = this.getGlobalProperties().getStringArrayList("System.Types");
+                for (String key : routeProperties.keySet()) {
+                    if (types != null && types.contains(key)) {
+                        Object type = routeProperties.get(key);
+
+                        boolean similarRouteExists = false;
+                        for (int i = graph.entryOffsets[nEnd]; i < graph.entryOffsets[nEnd + 1]; ++i) {
+                            int entry = graph.entries[i];
+                            if (!killedRoutes.get(entry) && hasProperty(entry, key, type)) {
+                                similarRouteExists = true;
+                                break;
+                            }
+                        }
+                        if (!similarRouteExists) {
+                            int lastExit = graph.exitOffsets[nEnd + 1];
+                            for (int option = graph.exitOffsets[nEnd]; option < lastExit; ++option) {
+                                if (!killedRoutes.get(option) && hasProperty(option, key, type)) {
+                                    pushKill(option);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        // One line per call rather than per route, as a kill can reach the
+        // whole of a large graph
+        if (routeCount > 0)
+            Debug.logInfo("Killing " + graph.routes[r_routes[0]].getId() + " killed " + routeCount + " routes and "
+                    + nodeCount + " nodes", 4, Debug.SYSTEM_ALL);
+        lastKilled = new KillReport(graph, r_routes, routeCount, r_nodes, nodeCount);
+        if (routeCount > 0 && playableRoutes != null)
+            playableRoutes.removeIf(this::isKilled);
+        if (template == null) {
+            // This instance owns its graph, so the maps and the lists of the
+            // nodes are kept in step with the bitsets
+            BitSet touched = new BitSet();
+            for (int i = 0; i < routeCount; ++i) {
+                routes.remove(graph.routes[r_routes[i]].getId());
+                touched.set(graph.routeStart[r_routes[i]]);
+                touched.set(graph.routeEnd[r_routes[i]]);
+            }
+            for (int node = touched.nextSetBit(0); node >= 0; node = touched.nextSetBit(node + 1)) {
+                graph.nodes[node].getEntering().removeIf(this::isKilled);
+                graph.nodes[node].getExiting().removeIf(this::isKilled);
+            }
+            for (int i = 0; i < nodeCount; ++i) {
+                nodes.remove(graph.nodes[r_nodes[i]].getId());
+            }
+        }
+    }
+
+    private boolean isKilled(Route route) {
+        int r = graph.getRouteId(route.getId());
+        return r >= 0 && killedRoutes.get(r);
+    }
+
+    private void checkRoute(int route) throws GraphElementNotFoundException {
+        if (route < 0 || route >= getGraph().routes.length) {
+            throw new GraphElementNotFoundException(Integer.toString(route));
+        }
+        if (killedRoutes.get(route)) {
+            throw new GraphElementNotFoundException(graph.routes[route].getId());
+        }
+    }
+
+    private int findNode(String id) throws GraphElementNotFoundException {
+        int node = graph.getNodeId(id);
+        if (node < 0)
+            throw new GraphElementNotFoundException(id);
+        return node;
+    }
+
+    private int findRoute(String id) throws GraphElementNotFoundException {
+        int route = graph.getRouteId(id);
+        if (route < 0)
+            throw new GraphElementNotFoundException(id);
+        return route;
+    }
+
+    private boolean isNodeCompleted(int node) {
+        countEntries();
+        return incompleteEntries[node] == 0;
+    }
+
+    private int countEntering(int node) {
+        countEntries();
+        return liveEntries[node];
+    }
+
+    private int countExiting(int node) {
+        countEntries();
+        return liveExits[node];
+    }
+
+    /**
+     * Counts the live and incomplete routes of every node, if they have not
+     * been counted since the instance was created or loaded. From then on the
+     * counts are updated as routes are ended and killed.
+     */
+    private void countEntries() {
+        if (incompleteEntries != null)
+            return;
+        int nodeCount = getGraph().nodes.length;
+        liveEntries = new int[nodeCount];
+        liveExits = new int[nodeCount];
+        incompleteEntries = new int[nodeCount];
+        for (int route = 0; route < graph.routes.length; ++route) {
+            if (killedRoutes.get(route))
+                continue;
+            ++liveEntries[graph.routeEnd[route]];
+            ++liveExits[graph.routeStart[route]];
+            if (!completedRoutes.get(route))
+                ++incompleteEntries[graph.routeEnd[route]];
+        }
+    }
+
+    private boolean hasProperty(int route, String key, Object value) {
+        BaseBundle props = peekProperties(graph.routes[route]);
+        return props != null && props.containsKey(key) && props.get(key).equals(value);
+    }
+
+    private BaseBundle getLocalProperties(String id, BaseBundle shared) {
+        BaseBundle local = localProperties.get(id);
+        if (local == null) {
+            local = shared == null ? new BaseBundle(4) : BaseBundle.deepcopy(shared);
+            localProperties.put(id, local);
+        }
+        return local;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (killedNodes == null)
+            killedNodes = new BitSet();
+        if (killedRoutes == null)
+            killedRoutes = new BitSet();
+        if (eventLog == null)
+            eventLog = new int[16];
+        if (completedRoutes == null) {
+            // Saved when completion was stored in the route properties
+            completedRoutes = new BitSet();
+            getGraph();
+            for (int route = 0; route < graph.routes.length; ++route) {
+                BaseBundle props = peekProperties(graph.routes[route]);
+                if (props != null && props.getBoolean(IS_COMPLETED))
+                    completedRoutes.set(route);
+            }
+        }
     }
 }
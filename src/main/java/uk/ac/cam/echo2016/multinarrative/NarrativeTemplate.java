@@ -1,7 +1,9 @@
 package uk.ac.cam.echo2016.multinarrative;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.TreeSet;
 
 import android.os.BaseBundle;
 
@@ -31,6 +33,8 @@ import android.os.BaseBundle;
  */
 public class NarrativeTemplate extends MultiNarrative {
     private static final long serialVersionUID = 1;
+    private transient CompiledNarrative compiled = null;
+    private transient Long fingerprint = null;
 
     public NarrativeTemplate() {
     }
@@ -43,6 +47,97 @@ public class NarrativeTemplate extends MultiNarrative {
         this.properties = properties;
     }
 
+    /**
+     * Returns the compiled form of this template's graph, which is shared by
+     * every instance generated with {@link #generateSharedInstance()}. The
+     * graph is compiled on the first call, after which the template must not
+     * be modified.
+     * 
+     * @return the compiled graph
+     * @throws InvalidGraphException
+     *             if the nodes and routes of the template are inconsistent
+     */
+    public synchronized CompiledNarrative compile() throws InvalidGraphException {
+        if (compiled == null) {
+            compiled = CompiledNarrative.compile(nodes, routes, start);
+        }
+        return compiled;
+    }
+
+    /**
+     * Returns a 64-bit hash of the nodes, routes and properties of this
+     * template, used to check that a save file was made from the same
+     * template. It does not depend on the order of the maps, so templates
+     * loaded separately from the same file have the same fingerprint. Like
+     * {@link #compile()}, it is only worked out once.
+     */
+    public synchronized long getFingerprint() {
+        if (fingerprint == null) {
+            long hash = 0xcbf29ce484222325L;
+            hash = fingerprint(hash, properties);
+            for (String id : new TreeSet<String>(nodes.keySet())) {
+                Node node = nodes.get(id);
+                hash = fingerprint(hash, node.getClass().getName() + ":" + id);
+                hash = fingerprint(hash, node.getProperties());
+            }
+            for (String id : new TreeSet<String>(routes.keySet())) {
+                Route route = routes.get(id);
+                hash = fingerprint(hash, id + ":" + route.getStart().getId() + ">" + route.getEnd().getId());
+                hash = fingerprint(hash, route.getProperties());
+            }
+            fingerprint = hash;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Records the fingerprint of this template as worked out when it was
+     * saved, so that it is not worked out again from properties that may not
+     * have been loaded yet.
+     */
+    public synchronized void setFingerprint(long fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Freezes the global properties of this template and the properties of
+     * its nodes and routes, so that instances generated from it read them
+     * through overlays rather than copying them. The properties of the
+     * template cannot be changed afterwards.
+     * 
+     * @see BaseBundle#freeze()
+     */
+    public synchronized void freezeProperties() {
+        if (properties != null)
+            properties = properties.freeze();
+        // Properties that have not been decoded yet are frozen when they are
+        for (Node node : nodes.values()) {
+            node.transformProperties(b -> b == null ? null : b.freeze());
+        }
+        for (Route route : routes.values()) {
+            route.transformProperties(b -> b == null ? null : b.freeze());
+        }
+    }
+
+    private static long fingerprint(long hash, BaseBundle b) {
+        if (b == null)
+            return fingerprint(hash, "-");
+        for (String key : new TreeSet<String>(b.keySet())) {
+            // deepToString shows the contents of array values
+            hash = fingerprint(hash, key + "=" + Arrays.deepToString(new Object[] { b.get(key) }));
+        }
+        return fingerprint(hash, ";");
+    }
+
+    /** FNV-1a over the characters of {@code s} */
+    private static long fingerprint(long hash, String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
     // TODO Documentation
     /**
      *
@@ -86,6 +181,29 @@ public class NarrativeTemplate extends MultiNarrative {
         return instance;
     }
 
+    /**
+     * Creates a {@code NarrativeInstance} that shares this template's nodes,
+     * routes and property bundles instead of copying them. Only the global
+     * properties are copied up front; the instance copies any other bundle the
+     * first time it is requested, so the cost of a new playthrough does not
+     * depend on the size of the graph.
+     * 
+     * <p>
+     * The template must not be modified while shared instances of it exist.
+     * 
+     * @return a new instance sharing this template's graph
+     * @throws InvalidGraphException
+     *             if the template has no start node
+     * @see NarrativeInstance#isShared()
+     */
+    public NarrativeInstance generateSharedInstance() throws InvalidGraphException {
+        if (start == null)
+            throw new InvalidGraphException("Error: Graph does not have a start node.");
+        NarrativeInstance instance = new NarrativeInstance(this);
+        instance.setActive(instance.start);
+        return instance;
+    }
+
     public NarrativeInstance generateInstance2() throws InvalidGraphException {
         NarrativeInstance instance = new NarrativeInstance();
 
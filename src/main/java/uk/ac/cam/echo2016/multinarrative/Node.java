@@ -1,7 +1,10 @@
 package uk.ac.cam.echo2016.multinarrative;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.function.UnaryOperator;
 
 import android.os.BaseBundle;
 
@@ -20,6 +23,8 @@ public abstract class Node implements Serializable, Cloneable { // TODO
     private static final long serialVersionUID = 1;
     private final String id;
     private BaseBundle properties;
+    /** Loads {@code properties} on first use, if not null */
+    private transient volatile PropertyLoader propertyLoader;
     private ArrayList<Route> entryRoutes;
     private ArrayList<Route> exitRoutes;
 
@@ -33,7 +38,13 @@ public abstract class Node implements Serializable, Cloneable { // TODO
     public Node clone() {
         try {
             Node clone = (Node) super.clone();
-            clone.properties = BaseBundle.deepcopy(this.properties);
+            if (propertyLoader != null) {
+                // Copy the properties when the clone first needs them, rather
+                // than decoding them now
+                clone.setPropertyLoader(() -> BaseBundle.deepcopy(getProperties()));
+            } else {
+                clone.setProperties(BaseBundle.deepcopy(properties));
+            }
 
             return clone;
         } catch (CloneNotSupportedException e) {
@@ -51,8 +62,25 @@ public abstract class Node implements Serializable, Cloneable { // TODO
      */
     protected abstract Node create(String id);
 
+    /**
+     * @deprecated use {@link #startRoute(Route, NarrativeInstance)}, which
+     *             gives the properties of the route in the instance being
+     *             played rather than those shared with its template
+     */
+    @Deprecated
     public abstract BaseBundle startRoute(Route option);
 
+    /**
+     * Called when {@code option} is started in {@code instance}. By default
+     * this calls {@link #startRoute(Route)}, for subclasses written before
+     * instances kept their own route properties.
+     * 
+     * @return the properties of {@code option} in {@code instance}
+     */
+    public BaseBundle startRoute(Route option, NarrativeInstance instance) {
+        return startRoute(option);
+    }
+
     public abstract GameChoice onEntry(Route played, NarrativeInstance instance) throws GraphElementNotFoundException;
 
     public String getId() {
@@ -60,22 +88,67 @@ public abstract class Node implements Serializable, Cloneable { // TODO
     }
 
     public void createProperties() {
-        if (properties == null)
-            properties = new BaseBundle(4);
+        transformProperties(b -> b == null ? new BaseBundle(4) : b);
     }
 
     public void assignProperties(BaseBundle props) {
+        propertyLoader = null;
         properties = props;
     }
 
     public BaseBundle getProperties() {
+        if (propertyLoader != null)
+            loadProperties();
         return properties;
     }
 
     public void setProperties(BaseBundle b) {
+        propertyLoader = null;
         properties = b;
     }
 
+    /**
+     * Sets where the properties of this node are loaded from the first time
+     * they are requested, replacing any properties it has.
+     */
+    public void setPropertyLoader(PropertyLoader loader) {
+        properties = null;
+        propertyLoader = loader;
+    }
+
+    /**
+     * @return false if the properties of this node are still to be decoded by
+     *         its {@link PropertyLoader}
+     */
+    public boolean isPropertiesLoaded() {
+        return propertyLoader == null;
+    }
+
+    /**
+     * Replaces the properties of this node with {@code transform} applied to
+     * them, once they are loaded if they have not been yet.
+     */
+    synchronized void transformProperties(UnaryOperator<BaseBundle> transform) {
+        PropertyLoader loader = propertyLoader;
+        if (loader != null)
+            propertyLoader = () -> transform.apply(loader.loadProperties());
+        else
+            properties = transform.apply(properties);
+    }
+
+    private synchronized void loadProperties() {
+        PropertyLoader loader = propertyLoader;
+        if (loader != null) {
+            properties = loader.loadProperties();
+            propertyLoader = null;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getProperties();
+        out.defaultWriteObject();
+    }
+
     public ArrayList<Route> getEntering() {
         return entryRoutes;
     }
@@ -0,0 +1,21 @@
+package uk.ac.cam.echo2016.multinarrative;
+
+import android.os.BaseBundle;
+
+/**
+ * Supplies the properties of a {@code Node} or {@code Route} the first time
+ * they are requested, so that a template can be loaded without decoding every
+ * property bundle up front.
+ * 
+ * @version 1.0
+ * @see Node#setPropertyLoader(PropertyLoader)
+ * @see Route#setPropertyLoader(PropertyLoader)
+ */
+public interface PropertyLoader {
+    /**
+     * @return the properties, or null if there are none
+     * @throws java.io.UncheckedIOException
+     *             if the properties cannot be read
+     */
+    BaseBundle loadProperties();
+}
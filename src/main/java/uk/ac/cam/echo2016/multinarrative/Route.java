@@ -1,6 +1,9 @@
 package uk.ac.cam.echo2016.multinarrative;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.function.UnaryOperator;
 
 import android.os.BaseBundle;
 
@@ -22,6 +25,8 @@ public class Route implements Serializable, Cloneable { // TODO Documentation
     private Node start;
     private Node end;
     private BaseBundle properties;
+    /** Loads {@code properties} on first use, if not null */
+    private transient volatile PropertyLoader propertyLoader;
 
     public Route(String id, Node start, Node end) {
         this.id = id;
@@ -38,7 +43,13 @@ public class Route implements Serializable, Cloneable { // TODO Documentation
     public Route clone() {
         try {
             Route clone = (Route) super.clone();
-            clone.properties = BaseBundle.deepcopy(this.properties);
+            if (propertyLoader != null) {
+                // Copy the properties when the clone first needs them, rather
+                // than decoding them now
+                clone.setPropertyLoader(() -> BaseBundle.deepcopy(getProperties()));
+            } else {
+                clone.setProperties(BaseBundle.deepcopy(properties));
+            }
 
             return clone;
         } catch (CloneNotSupportedException e) {
@@ -67,19 +78,64 @@ public class Route implements Serializable, Cloneable { // TODO Documentation
     }
 
     public void createProperties() {
-        if (properties == null)
-            properties = new BaseBundle(4);
+        transformProperties(b -> b == null ? new BaseBundle(4) : b);
     }
 
     public void assignProperties(BaseBundle props) {
+        propertyLoader = null;
         properties = props;
     }
 
     public BaseBundle getProperties() {
+        if (propertyLoader != null)
+            loadProperties();
         return properties;
     }
 
     public void setProperties(BaseBundle b) {
+        propertyLoader = null;
         properties = b;
     }
+
+    /**
+     * Sets where the properties of this route are loaded from the first time
+     * they are requested, replacing any properties it has.
+     */
+    public void setPropertyLoader(PropertyLoader loader) {
+        properties = null;
+        propertyLoader = loader;
+    }
+
+    /**
+     * @return false if the properties of this route are still to be decoded by
+     *         its {@link PropertyLoader}
+     */
+    public boolean isPropertiesLoaded() {
+        return propertyLoader == null;
+    }
+
+    /**
+     * Replaces the properties of this route with {@code transform} applied to
+     * them, once they are loaded if they have not been yet.
+     */
+    synchronized void transformProperties(UnaryOperator<BaseBundle> transform) {
+        PropertyLoader loader = propertyLoader;
+        if (loader != null)
+            propertyLoader = () -> transform.apply(loader.loadProperties());
+        else
+            properties = transform.apply(properties);
+    }
+
+    private synchronized void loadProperties() {
+        PropertyLoader loader = propertyLoader;
+        if (loader != null) {
+            properties = loader.loadProperties();
+            propertyLoader = null;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getProperties();
+        out.defaultWriteObject();
+    }
 }
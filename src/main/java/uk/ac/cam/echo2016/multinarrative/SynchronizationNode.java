@@ -1,5 +1,7 @@
 package uk.ac.cam.echo2016.multinarrative;
 
+import java.util.ArrayList;
+
 import android.os.BaseBundle;
 
 /**
@@ -33,13 +35,26 @@ public class SynchronizationNode extends Node { // TODO Documentation
         return new SynchronizationNode(id);
     }
 
+    @Deprecated
     public BaseBundle startRoute(Route option) {
         return option.getProperties();
     }
 
+    @Override
+    public BaseBundle startRoute(Route option, NarrativeInstance instance) {
+        return instance.getRouteProperties(option);
+    }
+
+    /**
+     * @deprecated completion is tracked by the instance, so use
+     *             {@link NarrativeInstance#isCompleted(Node)}; this only sees
+     *             routes marked {@code System.isCompleted} in their properties,
+     *             as older saves did
+     */
+    @Deprecated
     public boolean isCompleted() {
         for (Route route : getEntering()) {
-            if (!route.getProperties().containsKey("System.isCompleted")) {
+            if (!route.getProperties().containsKey(NarrativeInstance.IS_COMPLETED)) {
                 return false;
             }
         }
@@ -48,17 +63,19 @@ public class SynchronizationNode extends Node { // TODO Documentation
     }
 
     public GameChoice onEntry(Route completed, NarrativeInstance instance) throws GraphElementNotFoundException {
-        if (!getEntering().contains(completed)) {
+        if (completed.getEnd() != this || instance.getRoute(completed.getId()) != completed) {
             throw new GraphElementNotFoundException(completed.getId());
         }
 
         GameChoice gameChoice;
-        if (getEntering().size() == 1 && getExiting().size() == 1) {
-            gameChoice = new GameChoice(true, getId(), GameChoice.ACTION_CONTINUE, getExiting());
-        } else if (isCompleted()) {
-            gameChoice = new GameChoice(true, getId(), GameChoice.ACTION_CHOOSE_ROUTE, instance.getPlayableRoutes());
+        if (instance.getEnteringCount(this) == 1 && instance.getExitingCount(this) == 1) {
+            gameChoice = new GameChoice(true, getId(), GameChoice.ACTION_CONTINUE, instance.getExiting(this));
+        } else if (instance.isCompleted(this)) {
+            gameChoice = new GameChoice(true, getId(), GameChoice.ACTION_CHOOSE_ROUTE,
+                    new ArrayList<Route>(instance.getPlayableRoutes()));
         } else {
-            gameChoice = new GameChoice(false, null, GameChoice.ACTION_CHOOSE_ROUTE, instance.getPlayableRoutes());
+            gameChoice = new GameChoice(false, null, GameChoice.ACTION_CHOOSE_ROUTE,
+                    new ArrayList<Route>(instance.getPlayableRoutes()));
         }
 
         return gameChoice;
@@ -179,6 +179,12 @@ public class FXMLController {
         } catch (UserErrorException uee) {
             return;
         }
+        try {
+            operations.finishSaving();
+        } catch (IOException ioe) {
+            // The callbacks of the saves will not run once the editor exits
+            showErrorDialog("Error when trying to save file.");
+        }
         System.exit(0);
     }
 
@@ -207,11 +213,10 @@ public class FXMLController {
         if (currentFile == null) {
             registerSaveAsClicked();
         } else {
-            try {
-                operations.saveNarrative(currentFile);
-            } catch (IOException ioe) {
+            operations.saveNarrative(currentFile).exceptionally(e -> {
                 showErrorDialog("Error when trying to save file.");
-            }
+                return null;
+            });
         }
     }
 
@@ -226,11 +231,10 @@ public class FXMLController {
         }
 
         currentFile = returnedFile;
-        try {
-            operations.saveNarrative(currentFile);
-        } catch (IOException ioe) {
+        operations.saveNarrative(currentFile).exceptionally(e -> {
             showErrorDialog("Error when trying to save file.");
-        }
+            return null;
+        });
     }
     
     /**
@@ -243,9 +247,10 @@ public class FXMLController {
            return;
        }
        try {
-           operations.exportNarrative(returnedFile);
-       } catch (IOException ioe) {
-           showErrorDialog("Error when trying to save file.");
+           operations.exportNarrative(returnedFile).exceptionally(e -> {
+               showErrorDialog("Error when trying to save file.");
+               return null;
+           });
        } catch (IllegalOperationException e) {
            showErrorDialog(e.getMessage());
     }
@@ -2,8 +2,10 @@ package uk.ac.cam.echo2016.multinarrative.gui;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 
 import android.os.BaseBundle;
+import javafx.application.Platform;
 import javafx.scene.control.CheckBox;
 import javafx.scene.paint.Color;
 import uk.ac.cam.echo2016.multinarrative.GUINarrative;
@@ -18,7 +20,7 @@ import uk.ac.cam.echo2016.multinarrative.gui.operations.Operation;
 import uk.ac.cam.echo2016.multinarrative.gui.operations.OperationGenerator;
 import uk.ac.cam.echo2016.multinarrative.gui.operations.UndoableOperationSequence;
 import uk.ac.cam.echo2016.multinarrative.io.SaveReader;
-import uk.ac.cam.echo2016.multinarrative.io.SaveWriter;
+import uk.ac.cam.echo2016.multinarrative.io.SaveService;
 
 public class OperationsManager {
 
@@ -27,6 +29,9 @@ public class OperationsManager {
     private NarrativeOperations narrativeOperations;
     private UndoableOperationSequence sequence;
     private Generator generator = new Generator();
+    private SaveService saveService = new SaveService();
+    /** Saves that may not have finished, checked before the editor exits */
+    private ArrayList<CompletableFuture<Void>> pendingSaves = new ArrayList<CompletableFuture<Void>>();
     
     public boolean dirtyFlag = false;
 
@@ -79,20 +84,85 @@ public class OperationsManager {
         dirtyFlag = false;
     }
 
-    public void saveNarrative(String filename) throws IOException {
+    /**
+     * Saves the narrative in the background. The narrative is copied straight
+     * away, so editing can carry on while the file is written. If the save
+     * fails the narrative is marked as changed again.
+     * 
+     * @param filename
+     *            the file to save to
+     * @return a future completed on the JavaFX application thread, so that
+     *         callers can update the interface from its callbacks, once the
+     *         file has been written, or with the {@code IOException} that
+     *         stopped it
+     */
+    public CompletableFuture<Void> saveNarrative(String filename) {
         GUINarrative narrative = narrativeOperations.getNarrative();
-        SaveWriter.saveObject(filename, narrative);
         dirtyFlag = false;
+        return track(saveService.saveNarrative(filename, narrative)).whenCompleteAsync((v, e) -> {
+            if (e != null)
+                dirtyFlag = true;
+        }, Platform::runLater);
     }
 
-    public void exportNarrative(String filename) throws IOException, IllegalOperationException {
+    /**
+     * Generates the template of the narrative and saves it in the background.
+     * A failed export is logged; the narrative itself is unaffected.
+     * 
+     * @param filename
+     *            the file to export to
+     * @return a future completed on the JavaFX application thread, so that
+     *         callers can update the interface from its callbacks, once the
+     *         file has been written, or with the {@code IOException} that
+     *         stopped it
+     * @throws IllegalOperationException
+     *             if the narrative does not have a unique start node
+     */
+    public CompletableFuture<Void> exportNarrative(String filename) throws IllegalOperationException {
         try {
-            narrativeOperations.getNarrative().saveTemplate(filename);
+            return track(saveService.exportTemplate(filename, narrativeOperations.getNarrative()))
+                    .whenCompleteAsync((v, e) -> {
+                        if (e != null)
+                            Debug.logError(e, 5, Debug.SYSTEM_GUI);
+                    }, Platform::runLater);
         } catch (NonUniqueStartException e) {
             throw new IllegalOperationException(Strings.NON_UNIQUE_START);
         }
     }
 
+    private CompletableFuture<Void> track(CompletableFuture<Void> save) {
+        // Saves that have finished have been reported by their callbacks
+        pendingSaves.removeIf(CompletableFuture::isDone);
+        pendingSaves.add(save);
+        return save;
+    }
+
+    /**
+     * Waits for saves in the background to finish, before the editor exits.
+     * 
+     * @throws IOException
+     *             if a save could not be written, or the wait was interrupted
+     */
+    public void finishSaving() throws IOException {
+        // The callbacks of saves still running will not get to report them
+        pendingSaves.removeIf(CompletableFuture::isDone);
+        saveService.close();
+        try {
+            saveService.awaitPending();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for saves to finish", e);
+        }
+        int failed = 0;
+        for (CompletableFuture<Void> save : pendingSaves) {
+            if (save.isCompletedExceptionally())
+                ++failed;
+        }
+        pendingSaves.clear();
+        if (failed > 0)
+            throw new IOException(failed + " save(s) could not be written");
+    }
+
     public NarrativeOperations narrativeOperations() {
         return narrativeOperations;
     }
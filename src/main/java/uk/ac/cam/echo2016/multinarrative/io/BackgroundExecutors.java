@@ -0,0 +1,63 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the background threads used by the classes of this package when
+ * they are not given an executor.
+ *
+ * @version 1.0
+ */
+final class BackgroundExecutors {
+    private BackgroundExecutors() {
+    }
+
+    /**
+     * Creates an executor that runs tasks in order on one thread, which stops
+     * when it has had nothing to do for a few seconds.
+     *
+     * @param name
+     *            the name of the thread
+     * @param daemon
+     *            whether the thread is a daemon, which does not keep the
+     *            program running
+     */
+    static ThreadPoolExecutor newSingleThread(String name, boolean daemon) {
+        ThreadPoolExecutor r_pool = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), runnable -> {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(daemon);
+                    return thread;
+                });
+        r_pool.allowCoreThreadTimeOut(true);
+        return r_pool;
+    }
+
+    /**
+     * Creates an executor that runs tasks on up to {@code threads} threads,
+     * each of which stops when it has had nothing to do for a few seconds.
+     * Tasks beyond those being run wait in an unbounded queue.
+     *
+     * @param name
+     *            the name of the threads, which are numbered after it
+     * @param threads
+     *            the most threads to run at once
+     * @param daemon
+     *            whether the threads are daemons, which do not keep the
+     *            program running
+     */
+    static ThreadPoolExecutor newFixedPool(String name, int threads, boolean daemon) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor r_pool = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                    thread.setDaemon(daemon);
+                    return thread;
+                });
+        r_pool.allowCoreThreadTimeOut(true);
+        return r_pool;
+    }
+}
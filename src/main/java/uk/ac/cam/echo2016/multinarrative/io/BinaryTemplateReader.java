@@ -0,0 +1,358 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import static uk.ac.cam.echo2016.multinarrative.io.BinaryTemplateWriter.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.os.BaseBundle;
+import uk.ac.cam.echo2016.multinarrative.ChoiceNode;
+import uk.ac.cam.echo2016.multinarrative.NarrativeTemplate;
+import uk.ac.cam.echo2016.multinarrative.Node;
+import uk.ac.cam.echo2016.multinarrative.PropertyLoader;
+import uk.ac.cam.echo2016.multinarrative.Route;
+import uk.ac.cam.echo2016.multinarrative.SynchronizationNode;
+
+/**
+ * Reads a template written by {@link BinaryTemplateWriter} from a buffer,
+ * usually a {@code MappedByteBuffer} of the template file. Only absolute reads
+ * are used, so the buffer's position is never changed, and strings are only
+ * decoded when they are first needed.
+ * 
+ * @version 1.0
+ */
+final class BinaryTemplateReader {
+    private final ByteBuffer buffer;
+    private final int stringCount;
+    private final int nodeCount;
+    private final int routeCount;
+    private final int start;
+    private final int globalProperties;
+    private final int stringsOffset;
+    private final int nodesOffset;
+    private final int routesOffset;
+    private final int adjacencyOffset;
+    private final int propertiesOffset;
+    private final long fingerprint;
+    private final String[] strings;
+
+    BinaryTemplateReader(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (!isBinaryTemplate(buffer))
+            throw new IOException("Not a binary template");
+        if (buffer.limit() < HEADER_SIZE)
+            throw new IOException("Truncated binary template header");
+        int version = buffer.getInt(4);
+        if (version != VERSION)
+            throw new IOException("Unsupported binary template version " + version);
+        stringCount = buffer.getInt(8);
+        nodeCount = buffer.getInt(12);
+        routeCount = buffer.getInt(16);
+        start = buffer.getInt(20);
+        globalProperties = buffer.getInt(24);
+        stringsOffset = buffer.getInt(28);
+        nodesOffset = buffer.getInt(32);
+        routesOffset = buffer.getInt(36);
+        adjacencyOffset = buffer.getInt(40);
+        propertiesOffset = buffer.getInt(44);
+        fingerprint = buffer.getLong(48);
+        if (stringCount < 0 || nodeCount < 0 || routeCount < 0 || start >= nodeCount
+                || propertiesOffset > buffer.limit())
+            throw new IOException("Corrupt binary template header");
+        strings = new String[stringCount];
+    }
+
+    static boolean isBinaryTemplate(ByteBuffer buffer) {
+        return buffer.limit() >= 4 && buffer.getInt(0) == MAGIC;
+    }
+
+    /**
+     * Builds the template, with its nodes, routes and properties.
+     * 
+     * @param lazy
+     *            whether to decode the properties of each node and route only
+     *            when they are first requested, in which case the buffer is
+     *            kept for as long as the template
+     * @throws IOException
+     *             if the buffer does not hold a valid template
+     */
+    NarrativeTemplate readTemplate(boolean lazy) throws IOException {
+        try {
+            HashMap<String, Node> nodes = new HashMap<String, Node>((int) (nodeCount / 0.75f) + 1);
+            HashMap<String, Route> routes = new HashMap<String, Route>((int) (routeCount / 0.75f) + 1);
+            Node[] r_nodes = new Node[nodeCount];
+            for (int n = 0; n < nodeCount; ++n) {
+                int p = nodesOffset + 12 * n;
+                String id = getString(buffer.getInt(p));
+                r_nodes[n] = buffer.getInt(p + 4) == 1 ? new ChoiceNode(id) : new SynchronizationNode(id);
+                setProperties(r_nodes[n], null, buffer.getInt(p + 8), lazy);
+                nodes.put(id, r_nodes[n]);
+            }
+
+            Route[] r_routes = new Route[routeCount];
+            for (int r = 0; r < routeCount; ++r) {
+                int p = routesOffset + 16 * r;
+                String id = getString(buffer.getInt(p));
+                r_routes[r] = new Route(id, r_nodes[buffer.getInt(p + 4)], r_nodes[buffer.getInt(p + 8)]);
+                setProperties(null, r_routes[r], buffer.getInt(p + 12), lazy);
+                routes.put(id, r_routes[r]);
+            }
+
+            int exitOffsets = adjacencyOffset;
+            int entryOffsets = exitOffsets + 4 * (nodeCount + 1);
+            int entries = entryOffsets + 4 * (nodeCount + 1);
+            for (int n = 0; n < nodeCount; ++n) {
+                int firstExit = buffer.getInt(exitOffsets + 4 * n);
+                int lastExit = buffer.getInt(exitOffsets + 4 * (n + 1));
+                ArrayList<Route> exiting = new ArrayList<Route>(lastExit - firstExit);
+                for (int r = firstExit; r < lastExit; ++r) {
+                    exiting.add(r_routes[r]);
+                }
+                r_nodes[n].setExiting(exiting);
+
+                int firstEntry = buffer.getInt(entryOffsets + 4 * n);
+                int lastEntry = buffer.getInt(entryOffsets + 4 * (n + 1));
+                ArrayList<Route> entering = new ArrayList<Route>(lastEntry - firstEntry);
+                for (int i = firstEntry; i < lastEntry; ++i) {
+                    entering.add(r_routes[buffer.getInt(entries + 4 * i)]);
+                }
+                r_nodes[n].setEntering(entering);
+            }
+
+            SynchronizationNode r_start = null;
+            if (start >= 0) {
+                if (!(r_nodes[start] instanceof SynchronizationNode))
+                    throw new IOException("Start node of binary template is not a synchronization node");
+                r_start = (SynchronizationNode) r_nodes[start];
+            }
+            NarrativeTemplate r_template = new NarrativeTemplate(routes, nodes, r_start,
+                    readProperties(globalProperties));
+            r_template.setFingerprint(fingerprint);
+            return r_template;
+        } catch (IndexOutOfBoundsException | BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException("Corrupt binary template", e);
+        }
+    }
+
+    private void setProperties(Node node, Route route, int offset, boolean lazy) throws IOException {
+        if (lazy && offset >= 0) {
+            PropertyLoader loader = () -> {
+                try {
+                    return readProperties(offset);
+                } catch (IOException | IndexOutOfBoundsException | BufferUnderflowException e) {
+                    throw new UncheckedIOException(new IOException("Corrupt binary template", e));
+                }
+            };
+            if (node != null)
+                node.setPropertyLoader(loader);
+            else
+                route.setPropertyLoader(loader);
+        } else if (node != null) {
+            node.setProperties(readProperties(offset));
+        } else {
+            route.setProperties(readProperties(offset));
+        }
+    }
+
+    String getString(int index) {
+        if (index < 0)
+            return null;
+        String string = strings[index];
+        if (string == null) {
+            int data = stringsOffset + 4 * (stringCount + 1);
+            int from = buffer.getInt(stringsOffset + 4 * index);
+            int to = buffer.getInt(stringsOffset + 4 * (index + 1));
+            string = new String(getBytes(data + from, to - from), StandardCharsets.UTF_8);
+            strings[index] = string;
+        }
+        return string;
+    }
+
+    private byte[] getBytes(int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Decodes the property block at {@code offset} in the properties section.
+     * 
+     * @return the properties, or null if {@code offset} is -1
+     */
+    BaseBundle readProperties(int offset) throws IOException {
+        if (offset < 0)
+            return null;
+        int p = propertiesOffset + offset;
+        int count = buffer.getInt(p);
+        p += 4;
+        HashMap<String, Object> values = new HashMap<String, Object>((int) (count / 0.75f) + 1);
+        for (int i = 0; i < count; ++i) {
+            String key = getString(buffer.getInt(p));
+            byte type = buffer.get(p + 4);
+            p += 5;
+            Object value;
+            int length;
+            switch (type) {
+            case TYPE_NULL:
+                value = null;
+                break;
+            case TYPE_BOOLEAN:
+                value = buffer.get(p) != 0;
+                p += 1;
+                break;
+            case TYPE_BYTE:
+                value = buffer.get(p);
+                p += 1;
+                break;
+            case TYPE_CHAR:
+                value = buffer.getChar(p);
+                p += 2;
+                break;
+            case TYPE_SHORT:
+                value = buffer.getShort(p);
+                p += 2;
+                break;
+            case TYPE_INT:
+                value = buffer.getInt(p);
+                p += 4;
+                break;
+            case TYPE_LONG:
+                value = buffer.getLong(p);
+                p += 8;
+                break;
+            case TYPE_FLOAT:
+                value = buffer.getFloat(p);
+                p += 4;
+                break;
+            case TYPE_DOUBLE:
+                value = buffer.getDouble(p);
+                p += 8;
+                break;
+            case TYPE_STRING:
+                value = getString(buffer.getInt(p));
+                p += 4;
+                break;
+            case TYPE_INTEGER_LIST: {
+                length = buffer.getInt(p);
+                p += 4;
+                ArrayList<Integer> list = new ArrayList<Integer>(length);
+                for (int j = 0; j < length; ++j, p += 4) {
+                    list.add(buffer.getInt(p));
+                }
+                value = list;
+                break;
+            }
+            case TYPE_STRING_LIST: {
+                length = buffer.getInt(p);
+                p += 4;
+                ArrayList<String> list = new ArrayList<String>(length);
+                for (int j = 0; j < length; ++j, p += 4) {
+                    list.add(getString(buffer.getInt(p)));
+                }
+                value = list;
+                break;
+            }
+            case TYPE_BOOLEAN_ARRAY: {
+                length = buffer.getInt(p);
+                p += 4;
+                boolean[] array = new boolean[length];
+                for (int j = 0; j < length; ++j, p += 1) {
+                    array[j] = buffer.get(p) != 0;
+                }
+                value = array;
+                break;
+            }
+            case TYPE_BYTE_ARRAY:
+                length = buffer.getInt(p);
+                value = getBytes(p + 4, length);
+                p += 4 + length;
+                break;
+            case TYPE_SHORT_ARRAY: {
+                length = buffer.getInt(p);
+                p += 4;
+                short[] array = new short[length];
+                for (int j = 0; j < length; ++j, p += 2) {
+                    array[j] = buffer.getShort(p);
+                }
+                value = array;
+                break;
+            }
+            case TYPE_CHAR_ARRAY: {
+                length = buffer.getInt(p);
+                p += 4;
+                char[] array = new char[length];
+                for (int j = 0; j < length; ++j, p += 2) {
+                    array[j] = buffer.getChar(p);
+                }
+                value = array;
+                break;
+            }
+            case TYPE_INT_ARRAY: {
+                length = buffer.getInt(p);
+                p += 4;
+                int[] array = new int[length];
+                for (int j = 0; j < length; ++j, p += 4) {
+                    array[j] = buffer.getInt(p);
+                }
+                value = array;
+                break;
+            }
+            case TYPE_LONG_ARRAY: {
+                length = buffer.getInt(p);
+                p += 4;
+                long[] array = new long[length];
+                for (int j = 0; j < length; ++j, p += 8) {
+                    array[j] = buffer.getLong(p);
+                }
+                value = array;
+                break;
+            }
+            case TYPE_FLOAT_ARRAY: {
+                length = buffer.getInt(p);
+                p += 4;
+                float[] array = new float[length];
+                for (int j = 0; j < length; ++j, p += 4) {
+                    array[j] = buffer.getFloat(p);
+                }
+                value = array;
+                break;
+            }
+            case TYPE_DOUBLE_ARRAY: {
+                length = buffer.getInt(p);
+                p += 4;
+                double[] array = new double[length];
+                for (int j = 0; j < length; ++j, p += 8) {
+                    array[j] = buffer.getDouble(p);
+                }
+                value = array;
+                break;
+            }
+            case TYPE_STRING_ARRAY: {
+                length = buffer.getInt(p);
+                p += 4;
+                String[] array = new String[length];
+                for (int j = 0; j < length; ++j, p += 4) {
+                    array[j] = getString(buffer.getInt(p));
+                }
+                value = array;
+                break;
+            }
+            case TYPE_SERIALIZED:
+                throw new IOException("Serialized property " + key + " in binary template");
+            default:
+                throw new IOException("Unknown property type " + type + " in binary template");
+            }
+            values.put(key, value);
+        }
+        BaseBundle r_bundle = new BaseBundle(count);
+        r_bundle.putAll(values);
+        return r_bundle;
+    }
+}
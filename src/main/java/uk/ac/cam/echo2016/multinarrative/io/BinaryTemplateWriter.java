@@ -0,0 +1,320 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import android.os.BaseBundle;
+import uk.ac.cam.echo2016.multinarrative.CompiledNarrative;
+import uk.ac.cam.echo2016.multinarrative.InvalidGraphException;
+import uk.ac.cam.echo2016.multinarrative.NarrativeTemplate;
+
+/**
+ * Writes a {@code NarrativeTemplate} in the binary template format read by
+ * {@link BinaryTemplateReader}. All values are big-endian and all offsets are
+ * from the start of the file:
+ * 
+ * <pre>
+ * header     magic, version, string count, node count, route count, start node,
+ *            global properties, the offsets of the five sections below, and
+ *            the fingerprint of the template
+ * strings    (string count + 1) offsets into the string data, then UTF-8 data
+ * nodes      per node: id string, kind (0 synchronization, 1 choice), properties
+ * routes     per route: id string, start node, end node, properties
+ * adjacency  (node count + 1) exit offsets, (node count + 1) entry offsets,
+ *            then the entering routes of each node in order
+ * properties property blocks, each a count then per entry a key string, a
+ *            type and the value
+ * </pre>
+ * 
+ * Routes are numbered as in {@link CompiledNarrative}, so the routes exiting a
+ * node are consecutive. Properties are given as offsets into the properties
+ * section, or -1 for none.
+ * 
+ * @version 1.0
+ */
+final class BinaryTemplateWriter {
+    static final int MAGIC = 0x4E544D50; // 'N' 'T' 'M' 'P'
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 56;
+
+    static final byte TYPE_NULL = 0;
+    static final byte TYPE_BOOLEAN = 1;
+    static final byte TYPE_BYTE = 2;
+    static final byte TYPE_CHAR = 3;
+    static final byte TYPE_SHORT = 4;
+    static final byte TYPE_INT = 5;
+    static final byte TYPE_LONG = 6;
+    static final byte TYPE_FLOAT = 7;
+    static final byte TYPE_DOUBLE = 8;
+    static final byte TYPE_STRING = 9;
+    static final byte TYPE_INTEGER_LIST = 10;
+    static final byte TYPE_STRING_LIST = 11;
+    static final byte TYPE_BOOLEAN_ARRAY = 12;
+    static final byte TYPE_BYTE_ARRAY = 13;
+    static final byte TYPE_SHORT_ARRAY = 14;
+    static final byte TYPE_CHAR_ARRAY = 15;
+    static final byte TYPE_INT_ARRAY = 16;
+    static final byte TYPE_LONG_ARRAY = 17;
+    static final byte TYPE_FLOAT_ARRAY = 18;
+    static final byte TYPE_DOUBLE_ARRAY = 19;
+    static final byte TYPE_STRING_ARRAY = 20;
+    /**
+     * Any other value. Never written, and rejected by readers, as reading it
+     * would deserialize whatever classes the file names
+     */
+    static final byte TYPE_SERIALIZED = 21;
+
+    private final LinkedHashMap<String, Integer> strings = new LinkedHashMap<String, Integer>();
+    private final ByteArrayOutputStream propertyBytes = new ByteArrayOutputStream();
+    private final DataOutputStream properties = new DataOutputStream(propertyBytes);
+
+    private BinaryTemplateWriter() {
+    }
+
+    static void write(DataOutputStream out, NarrativeTemplate template) throws IOException {
+        CompiledNarrative graph;
+        try {
+            graph = template.compile();
+        } catch (InvalidGraphException e) {
+            throw new IOException("Template is not a valid graph", e);
+        }
+        new BinaryTemplateWriter().write(out, template, graph);
+    }
+
+    private void write(DataOutputStream out, NarrativeTemplate template, CompiledNarrative graph)
+            throws IOException {
+        int nodeCount = graph.getNodeCount();
+        int routeCount = graph.getRouteCount();
+
+        // Ids first, so that the strings of the graph are together
+        for (int n = 0; n < nodeCount; ++n) {
+            string(graph.getNode(n).getId());
+        }
+        for (int r = 0; r < routeCount; ++r) {
+            string(graph.getRoute(r).getId());
+        }
+        int[] nodeProperties = new int[nodeCount];
+        for (int n = 0; n < nodeCount; ++n) {
+            nodeProperties[n] = writeBundle(graph.getNode(n).getProperties());
+        }
+        int[] routeProperties = new int[routeCount];
+        for (int r = 0; r < routeCount; ++r) {
+            routeProperties[r] = writeBundle(graph.getRoute(r).getProperties());
+        }
+        int globalProperties = writeBundle(template.getGlobalProperties());
+        properties.flush();
+
+        ByteArrayOutputStream stringData = new ByteArrayOutputStream();
+        int[] stringOffsets = new int[strings.size() + 1];
+        int s = 0;
+        for (String string : strings.keySet()) {
+            stringOffsets[s++] = stringData.size();
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            stringData.write(bytes, 0, bytes.length);
+        }
+        stringOffsets[s] = stringData.size();
+
+        int stringsOffset = HEADER_SIZE;
+        int nodesOffset = stringsOffset + 4 * stringOffsets.length + stringData.size();
+        int routesOffset = nodesOffset + 12 * nodeCount;
+        int adjacencyOffset = routesOffset + 16 * routeCount;
+        int propertiesOffset = adjacencyOffset + 4 * (2 * (nodeCount + 1) + routeCount);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(strings.size());
+        out.writeInt(nodeCount);
+        out.writeInt(routeCount);
+        out.writeInt(graph.getStart());
+        out.writeInt(globalProperties);
+        out.writeInt(stringsOffset);
+        out.writeInt(nodesOffset);
+        out.writeInt(routesOffset);
+        out.writeInt(adjacencyOffset);
+        out.writeInt(propertiesOffset);
+        out.writeLong(template.getFingerprint());
+
+        for (int offset : stringOffsets) {
+            out.writeInt(offset);
+        }
+        stringData.writeTo(out);
+
+        for (int n = 0; n < nodeCount; ++n) {
+            out.writeInt(strings.get(graph.getNode(n).getId()));
+            out.writeInt(GraphBuilder.kindOf(graph.getNode(n)));
+            out.writeInt(nodeProperties[n]);
+        }
+        for (int r = 0; r < routeCount; ++r) {
+            out.writeInt(strings.get(graph.getRoute(r).getId()));
+            out.writeInt(graph.getRouteStart(r));
+            out.writeInt(graph.getRouteEnd(r));
+            out.writeInt(routeProperties[r]);
+        }
+
+        for (int n = 0; n <= nodeCount; ++n) {
+            out.writeInt(n < nodeCount ? graph.getFirstExit(n) : routeCount);
+        }
+        for (int n = 0; n <= nodeCount; ++n) {
+            out.writeInt(n < nodeCount ? graph.getFirstEntry(n) : routeCount);
+        }
+        for (int i = 0; i < routeCount; ++i) {
+            out.writeInt(graph.getEntry(i));
+        }
+
+        propertyBytes.writeTo(out);
+    }
+
+    private int string(String string) {
+        if (string == null)
+            return -1;
+        Integer index = strings.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.put(string, index);
+        }
+        return index;
+    }
+
+    private int writeBundle(BaseBundle bundle) throws IOException {
+        if (bundle == null)
+            return -1;
+        int offset = properties.size();
+        properties.writeInt(bundle.size());
+        for (String key : bundle.keySet()) {
+            properties.writeInt(string(key));
+            writeValue(bundle.get(key));
+        }
+        return offset;
+    }
+
+    private void writeValue(Object o) throws IOException {
+        DataOutputStream out = properties;
+        o = PropertyValues.encodable(o);
+        byte type = PropertyValues.typeOf(o);
+        if (type == TYPE_SERIALIZED)
+            throw new IOException("Property values of " + o.getClass().getName()
+                    + " cannot be written to a binary template");
+        out.writeByte(type);
+        switch (type) {
+        case TYPE_NULL:
+            break;
+        case TYPE_BOOLEAN:
+            out.writeBoolean((Boolean) o);
+            break;
+        case TYPE_BYTE:
+            out.writeByte((Byte) o);
+            break;
+        case TYPE_CHAR:
+            out.writeChar((Character) o);
+            break;
+        case TYPE_SHORT:
+            out.writeShort((Short) o);
+            break;
+        case TYPE_INT:
+            out.writeInt((Integer) o);
+            break;
+        case TYPE_LONG:
+            out.writeLong((Long) o);
+            break;
+        case TYPE_FLOAT:
+            out.writeFloat((Float) o);
+            break;
+        case TYPE_DOUBLE:
+            out.writeDouble((Double) o);
+            break;
+        case TYPE_STRING:
+            out.writeInt(string((String) o));
+            break;
+        case TYPE_INTEGER_LIST: {
+            ArrayList<?> list = (ArrayList<?>) o;
+            out.writeInt(list.size());
+            for (Object element : list) {
+                out.writeInt((Integer) element);
+            }
+            break;
+        }
+        case TYPE_STRING_LIST: {
+            ArrayList<?> list = (ArrayList<?>) o;
+            out.writeInt(list.size());
+            for (Object element : list) {
+                out.writeInt(string((String) element));
+            }
+            break;
+        }
+        case TYPE_BOOLEAN_ARRAY: {
+            boolean[] array = (boolean[]) o;
+            out.writeInt(array.length);
+            for (boolean element : array) {
+                out.writeBoolean(element);
+            }
+            break;
+        }
+        case TYPE_BYTE_ARRAY: {
+            byte[] array = (byte[]) o;
+            out.writeInt(array.length);
+            out.write(array);
+            break;
+        }
+        case TYPE_SHORT_ARRAY: {
+            short[] array = (short[]) o;
+            out.writeInt(array.length);
+            for (short element : array) {
+                out.writeShort(element);
+            }
+            break;
+        }
+        case TYPE_CHAR_ARRAY: {
+            char[] array = (char[]) o;
+            out.writeInt(array.length);
+            for (char element : array) {
+                out.writeChar(element);
+            }
+            break;
+        }
+        case TYPE_INT_ARRAY: {
+            int[] array = (int[]) o;
+            out.writeInt(array.length);
+            for (int element : array) {
+                out.writeInt(element);
+            }
+            break;
+        }
+        case TYPE_LONG_ARRAY: {
+            long[] array = (long[]) o;
+            out.writeInt(array.length);
+            for (long element : array) {
+                out.writeLong(element);
+            }
+            break;
+        }
+        case TYPE_FLOAT_ARRAY: {
+            float[] array = (float[]) o;
+            out.writeInt(array.length);
+            for (float element : array) {
+                out.writeFloat(element);
+            }
+            break;
+        }
+        case TYPE_DOUBLE_ARRAY: {
+            double[] array = (double[]) o;
+            out.writeInt(array.length);
+            for (double element : array) {
+                out.writeDouble(element);
+            }
+            break;
+        }
+        case TYPE_STRING_ARRAY: {
+            String[] array = (String[]) o;
+            out.writeInt(array.length);
+            for (String element : array) {
+                out.writeInt(string(element));
+            }
+            break;
+        }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import uk.ac.cam.echo2016.multinarrative.NarrativeInstance;
+import uk.ac.cam.echo2016.multinarrative.NarrativeTemplate;
+import uk.ac.cam.echo2016.multinarrative.dev.Debug;
+
+/**
+ * Loads many saved instances at once, such as every save of a game server for
+ * analysis or migration. Files are decoded in parallel on an executor, and
+ * each instance is handed to a {@link Handler} as soon as it is ready, on the
+ * thread that started the load, so the handler need not be thread-safe. At
+ * most a fixed number of files are being decoded or waiting to be handled at
+ * once, which bounds the memory used however many files there are.
+ *
+ * <p>
+ * A file that cannot be loaded is reported to the handler and the rest are
+ * still loaded.
+ *
+ * @version 1.0
+ * @see SaveReader#loadNarrativeInstance(String)
+ */
+public class BulkLoader {
+    private final Executor executor;
+    private final int maxInFlight;
+
+    /**
+     * Reads one file, such as {@link SaveReader#loadNarrativeInstance(String)}
+     * or {@code filename -> SaveReader.loadInstanceDelta(filename, template)}.
+     * Called from the threads of the executor, so must be thread-safe.
+     */
+    @FunctionalInterface
+    public interface Decoder {
+        NarrativeInstance load(String filename) throws IOException;
+    }
+
+    /**
+     * Receives the results of a load. Both methods are called on the thread
+     * that started the load, one file at a time, in the order the files finish
+     * loading.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        void loaded(Path file, NarrativeInstance instance);
+
+        /**
+         * Called instead of {@link #loaded(Path, NarrativeInstance)} if
+         * {@code file} could not be loaded. By default the error is logged.
+         */
+        default void failed(Path file, IOException error) {
+            Debug.logError("Could not load " + file + ": " + error, 2, Debug.SYSTEM_IO);
+        }
+    }
+
+    /** The outcome of decoding one file */
+    private static class Result {
+        final Path file;
+        final NarrativeInstance instance;
+        final IOException error;
+
+        Result(Path file, NarrativeInstance instance, IOException error) {
+            this.file = file;
+            this.instance = instance;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Creates a loader that decodes on its own daemon threads, one for each
+     * processor, with up to twice as many files in flight as there are
+     * processors. Decoding blocks on reading files, so it is not done on the
+     * common fork-join pool, which other parts of the program share.
+     */
+    public BulkLoader() {
+        this(BackgroundExecutors.newFixedPool("BulkLoader", Runtime.getRuntime().availableProcessors(), true),
+                2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param executor
+     *            decodes the files
+     * @param maxInFlight
+     *            the most files to be decoding or waiting to be handled at
+     *            once
+     */
+    public BulkLoader(Executor executor, int maxInFlight) {
+        if (executor == null)
+            throw new NullPointerException("executor");
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Loads the instances saved with
+     * {@link SaveWriter#saveObject(String, Object)} in {@code files}.
+     *
+     * @return the number of files loaded
+     * @see #load(Iterable, Decoder, Handler)
+     */
+    public int load(Iterable<Path> files, Handler handler) throws InterruptedException {
+        return load(files, SaveReader::loadNarrativeInstance, handler);
+    }
+
+    /**
+     * Loads the instances saved with
+     * {@link SaveWriter#saveInstanceDelta(String, NarrativeInstance, NarrativeTemplate)}
+     * in {@code files}, against {@code template}.
+     *
+     * @return the number of files loaded
+     */
+    public int loadDeltas(Iterable<Path> files, NarrativeTemplate template, Handler handler)
+            throws InterruptedException {
+        return load(files, filename -> SaveReader.loadInstanceDelta(filename, template), handler);
+    }
+
+    /**
+     * Loads the files in {@code directory} whose names match {@code glob},
+     * such as {@code "*.sav"}. The directory is listed as the files are
+     * loaded rather than all at once.
+     *
+     * @return the number of files loaded
+     * @throws IOException
+     *             if the directory cannot be listed
+     */
+    public int loadDirectory(String directory, String glob, Decoder decoder, Handler handler)
+            throws IOException, InterruptedException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(directory), glob)) {
+            return load(files, decoder, handler);
+        }
+    }
+
+    /**
+     * Convenience for loading a list of file names.
+     *
+     * @return the number of files loaded
+     */
+    public int loadFiles(Collection<String> filenames, Decoder decoder, Handler handler) throws InterruptedException {
+        ArrayList<Path> files = new ArrayList<Path>(filenames.size());
+        for (String filename : filenames) {
+            files.add(Paths.get(filename));
+        }
+        return load(files, decoder, handler);
+    }
+
+    /**
+     * Decodes each of {@code files} with {@code decoder} and passes the
+     * result to {@code handler}. Returns once every file has been handled.
+     *
+     * @return the number of files loaded
+     * @throws InterruptedException
+     *             if the calling thread is interrupted, in which case no more
+     *             files are started, and those already started are decoded
+     *             but not handled
+     */
+    public int load(Iterable<Path> files, Decoder decoder, Handler handler) throws InterruptedException {
+        BlockingQueue<Result> finished = new LinkedBlockingQueue<Result>();
+        Iterator<Path> remaining = files.iterator();
+        int inFlight = 0;
+        int r_loaded = 0;
+        while (remaining.hasNext() || inFlight > 0) {
+            while (inFlight < maxInFlight && remaining.hasNext()) {
+                Path file = remaining.next();
+                try {
+                    executor.execute(() -> finished.add(decode(file, decoder)));
+                    ++inFlight;
+                } catch (RejectedExecutionException e) {
+                    handler.failed(file, new IOException("Could not schedule load of " + file, e));
+                }
+            }
+            if (inFlight == 0)
+                continue;
+            Result result = finished.take();
+            --inFlight;
+            if (result.error == null) {
+                ++r_loaded;
+                handler.loaded(result.file, result.instance);
+            } else {
+                handler.failed(result.file, result.error);
+            }
+        }
+        return r_loaded;
+    }
+
+    private static Result decode(Path file, Decoder decoder) {
+        try {
+            NarrativeInstance instance = decoder.load(file.toString());
+            if (instance == null)
+                return new Result(file, null, new IOException(file + " holds no instance"));
+            return new Result(file, instance, null);
+        } catch (IOException e) {
+            return new Result(file, null, e);
+        } catch (Throwable e) {
+            // Such as a ClassCastException from a file of another kind. Errors
+            // are caught too, as load() waits for a result from every file
+            return new Result(file, null, new IOException("Could not load " + file, e));
+        }
+    }
+}
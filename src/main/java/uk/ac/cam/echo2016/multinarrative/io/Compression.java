@@ -0,0 +1,29 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The compression applied to a save file. Files are recognised from their
+ * first bytes when they are read, so a file can be read whatever compression
+ * it was written with.
+ * 
+ * @version 1.0
+ * @see SaveStreams
+ */
+public enum Compression {
+    NONE, DEFLATE, GZIP;
+
+    OutputStream wrap(OutputStream out) throws IOException {
+        switch (this) {
+        case DEFLATE:
+            return new DeflaterOutputStream(out);
+        case GZIP:
+            return new GZIPOutputStream(out, SaveStreams.BUFFER_SIZE);
+        default:
+            return out;
+        }
+    }
+}
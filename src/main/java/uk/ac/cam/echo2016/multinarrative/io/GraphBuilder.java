@@ -0,0 +1,133 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+import android.os.BaseBundle;
+import uk.ac.cam.echo2016.multinarrative.ChoiceNode;
+import uk.ac.cam.echo2016.multinarrative.MultiNarrative;
+import uk.ac.cam.echo2016.multinarrative.NarrativeTemplate;
+import uk.ac.cam.echo2016.multinarrative.Node;
+import uk.ac.cam.echo2016.multinarrative.Route;
+import uk.ac.cam.echo2016.multinarrative.SynchronizationNode;
+
+/**
+ * Collects the nodes and routes of a narrative as a reader finds them, and
+ * connects them once the whole file has been read, as routes name their nodes
+ * by identifier and may come before them. Routes are connected in the order
+ * they were read, which gives the order they leave their start nodes; writers
+ * keep that order with {@link #routesInExitOrder(MultiNarrative)}.
+ *
+ * @version 1.0
+ */
+final class GraphBuilder {
+    /** The identifier of the start node, or null */
+    String start = null;
+    /** The global properties, or null to use an empty bundle */
+    BaseBundle properties = null;
+    final LinkedHashMap<String, Node> nodes = new LinkedHashMap<String, Node>();
+    private final ArrayList<Route> routes = new ArrayList<Route>();
+    /** The identifier, start and end node of each route */
+    private final ArrayList<String[]> routeEnds = new ArrayList<String[]>();
+
+    /**
+     * @return the routes of {@code narrative} in the order they leave their
+     *         start node, as the order of choices depends on it, followed by
+     *         any routes not reached that way
+     */
+    static LinkedHashSet<Route> routesInExitOrder(MultiNarrative narrative) {
+        LinkedHashSet<Route> r_routes = new LinkedHashSet<Route>();
+        for (Node node : narrative.getNodes().values()) {
+            for (Route route : node.getExiting()) {
+                if (narrative.getRoute(route.getId()) == route)
+                    r_routes.add(route);
+            }
+        }
+        r_routes.addAll(narrative.getRoutes().values());
+        return r_routes;
+    }
+
+    /**
+     * @return 1 for a choice node and 0 for a synchronization node, as the
+     *         formats store the kind of a node
+     * @throws IOException
+     *             if {@code node} is of any other class, as readers could not
+     *             create it again
+     */
+    static int kindOf(Node node) throws IOException {
+        if (node.getClass() == ChoiceNode.class)
+            return 1;
+        if (node.getClass() == SynchronizationNode.class)
+            return 0;
+        throw new IOException("Node " + node.getId() + " of " + node.getClass().getName() + " cannot be written");
+    }
+
+    /**
+     * @throws IOException
+     *             if a node with the same identifier has been added
+     */
+    void addNode(Node node) throws IOException {
+        if (nodes.put(node.getId(), node) != null)
+            throw new IOException("Node " + node.getId() + " is not unique");
+    }
+
+    /**
+     * Adds {@code route}, to be connected to the nodes named {@code start}
+     * and {@code end} once every node has been added.
+     */
+    void addRoute(Route route, String start, String end) {
+        routes.add(route);
+        routeEnds.add(new String[] { route.getId(), start, end });
+    }
+
+    /**
+     * Connects the routes to their nodes.
+     *
+     * @return the routes in the order they were added
+     * @throws IOException
+     *             if a route connects nodes that were not added, or its
+     *             identifier is not unique
+     */
+    ArrayList<Route> linkRoutes() throws IOException {
+        HashMap<String, Route> ids = new HashMap<String, Route>();
+        for (int i = 0; i < routes.size(); ++i) {
+            String[] ends = routeEnds.get(i);
+            Node startNode = nodes.get(ends[1]);
+            Node endNode = nodes.get(ends[2]);
+            if (startNode == null || endNode == null)
+                throw new IOException("Route " + ends[0] + " connects nodes that are not in the graph");
+            if (ids.put(ends[0], routes.get(i)) != null || nodes.containsKey(ends[0]))
+                throw new IOException("Route " + ends[0] + " is not unique");
+            Route route = routes.get(i);
+            route.setStart(startNode);
+            route.setEnd(endNode);
+            route.setup();
+        }
+        return routes;
+    }
+
+    /**
+     * Connects the routes and builds a template of the graph.
+     *
+     * @throws IOException
+     *             if the graph is inconsistent
+     */
+    NarrativeTemplate toTemplate() throws IOException {
+        HashMap<String, Route> r_routes = new HashMap<String, Route>();
+        for (Route route : linkRoutes()) {
+            r_routes.put(route.getId(), route);
+        }
+        SynchronizationNode r_start = null;
+        if (start != null) {
+            Node node = nodes.get(start);
+            if (!(node instanceof SynchronizationNode))
+                throw new IOException("Start node " + start + " is not a synchronization node in the graph");
+            r_start = (SynchronizationNode) node;
+        }
+        return new NarrativeTemplate(r_routes, new HashMap<String, Node>(nodes), r_start,
+                properties == null ? new BaseBundle() : properties);
+    }
+}
@@ -0,0 +1,513 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import android.os.BaseBundle;
+import uk.ac.cam.echo2016.multinarrative.ChoiceNode;
+import uk.ac.cam.echo2016.multinarrative.GUINarrative;
+import uk.ac.cam.echo2016.multinarrative.GraphElementNotFoundException;
+import uk.ac.cam.echo2016.multinarrative.InvalidGraphException;
+import uk.ac.cam.echo2016.multinarrative.NarrativeInstance;
+import uk.ac.cam.echo2016.multinarrative.NarrativeTemplate;
+import uk.ac.cam.echo2016.multinarrative.Node;
+import uk.ac.cam.echo2016.multinarrative.Route;
+import uk.ac.cam.echo2016.multinarrative.SynchronizationNode;
+
+/**
+ * Reads narratives written by {@link JsonNarrativeWriter} with Gson's
+ * streaming {@code JsonReader}. Nodes and routes are built as they are read,
+ * without building a tree of the document first. Members the reader does not
+ * know are skipped, and the members of the document may come in any order,
+ * so files produced by other tools can be read as long as they use the same
+ * names.
+ *
+ * @version 1.0
+ * @see JsonNarrativeWriter
+ */
+public final class JsonNarrativeReader {
+    private final GraphBuilder graph = new GraphBuilder();
+    private Map<String, BaseBundle> propertyMapping = null;
+    private final HashMap<String, String> typemap = new HashMap<String, String>();
+    private final ArrayList<List<String>> state = new ArrayList<List<String>>();
+
+    private JsonNarrativeReader() {
+    }
+
+    /**
+     * Reads a {@code GUINarrative} from any of the kinds of narrative written
+     * by {@code JsonNarrativeWriter}. {@code in} is not closed.
+     *
+     * @throws IOException
+     *             if the JSON is malformed or the graph is inconsistent
+     */
+    public static GUINarrative readGUINarrative(Reader in) throws IOException {
+        JsonNarrativeReader reader = read(in);
+        GUINarrative r_narrative = new GUINarrative();
+        if (reader.graph.properties != null) {
+            r_narrative.getGlobalProperties().clear();
+            putAll(r_narrative.getGlobalProperties(), reader.graph.properties);
+        }
+        for (Node node : reader.graph.nodes.values()) {
+            r_narrative.addNode(node);
+        }
+        for (Route route : reader.graph.linkRoutes()) {
+            r_narrative.addRoute(route);
+        }
+        if (reader.graph.start != null) {
+            try {
+                if (!r_narrative.setStartPoint(reader.graph.start))
+                    throw new IOException("Start node " + reader.graph.start + " is not a synchronization node");
+            } catch (GraphElementNotFoundException e) {
+                throw new IOException("Unknown start node " + e.getItem(), e);
+            }
+        }
+        if (reader.propertyMapping != null) {
+            r_narrative.createMapping();
+            r_narrative.getPropertyMapping().putAll(reader.propertyMapping);
+        }
+        for (Map.Entry<String, String> entry : reader.typemap.entrySet()) {
+            r_narrative.setPropertyType(entry.getKey(), entry.getValue());
+        }
+        return r_narrative;
+    }
+
+    /**
+     * Reads a {@code NarrativeTemplate} from any of the kinds of narrative
+     * written by {@code JsonNarrativeWriter}; editor-only members are skipped.
+     * {@code in} is not closed.
+     *
+     * @throws IOException
+     *             if the JSON is malformed or the graph is inconsistent
+     */
+    public static NarrativeTemplate readTemplate(Reader in) throws IOException {
+        return read(in).graph.toTemplate();
+    }
+
+    /**
+     * Reads a {@code NarrativeInstance}. The graph is read as a template, of
+     * which a shared instance is generated and put into the saved state, if
+     * there is one. {@code in} is not closed.
+     *
+     * @throws IOException
+     *             if the JSON is malformed, the graph is inconsistent or the
+     *             state refers to elements not in the graph
+     */
+    public static NarrativeInstance readInstance(Reader in) throws IOException {
+        JsonNarrativeReader reader = read(in);
+        NarrativeTemplate template = reader.graph.toTemplate();
+        try {
+            NarrativeInstance r_instance = template.generateSharedInstance();
+            if (!reader.state.isEmpty()) {
+                r_instance.restoreState(reader.state.get(0), reader.state.get(1), reader.state.get(2),
+                        reader.state.get(3));
+            }
+            return r_instance;
+        } catch (InvalidGraphException | GraphElementNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static JsonNarrativeReader read(Reader in) throws IOException {
+        JsonNarrativeReader r_reader = new JsonNarrativeReader();
+        JsonReader json = new JsonReader(in);
+        try {
+            r_reader.readDocument(json);
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Thrown by JsonReader when a value has the wrong type
+            throw new IOException("Malformed narrative: " + e.getMessage(), e);
+        }
+        return r_reader;
+    }
+
+    private void readDocument(JsonReader json) throws IOException {
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+            case "format":
+                if (!JsonNarrativeWriter.FORMAT.equals(json.nextString()))
+                    throw new IOException("Not a narrative");
+                break;
+            case "version":
+                int version = json.nextInt();
+                if (version > JsonNarrativeWriter.VERSION)
+                    throw new IOException("Unsupported narrative version " + version);
+                break;
+            case "start":
+                graph.start = nextStringOrNull(json);
+                break;
+            case "properties":
+                graph.properties = readBundle(json);
+                break;
+            case "nodes":
+                json.beginArray();
+                while (json.hasNext()) {
+                    readNode(json);
+                }
+                json.endArray();
+                break;
+            case "routes":
+                json.beginArray();
+                while (json.hasNext()) {
+                    readRoute(json);
+                }
+                json.endArray();
+                break;
+            case "propertyMapping":
+                if (json.peek() == JsonToken.NULL) {
+                    json.nextNull();
+                    break;
+                }
+                propertyMapping = new HashMap<String, BaseBundle>();
+                json.beginObject();
+                while (json.hasNext()) {
+                    String name = json.nextName();
+                    propertyMapping.put(name, readBundle(json));
+                }
+                json.endObject();
+                break;
+            case "typemap":
+                json.beginObject();
+                while (json.hasNext()) {
+                    String name = json.nextName();
+                    typemap.put(name, nextStringOrNull(json));
+                }
+                json.endObject();
+                break;
+            case "state":
+                readState(json);
+                break;
+            default:
+                json.skipValue();
+            }
+        }
+        json.endObject();
+    }
+
+    private void readNode(JsonReader json) throws IOException {
+        String id = null;
+        String type = "synchronization";
+        BaseBundle props = null;
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+            case "id":
+                id = json.nextString();
+                break;
+            case "type":
+                type = json.nextString();
+                break;
+            case "properties":
+                props = readBundle(json);
+                break;
+            default:
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        if (id == null)
+            throw new IOException("Node without an id");
+        Node r_node;
+        if (type.equals("choice")) {
+            r_node = new ChoiceNode(id);
+        } else if (type.equals("synchronization")) {
+            r_node = new SynchronizationNode(id);
+        } else {
+            throw new IOException("Unknown type " + type + " of node " + id);
+        }
+        r_node.setProperties(props);
+        graph.addNode(r_node);
+    }
+
+    private void readRoute(JsonReader json) throws IOException {
+        String[] ends = new String[3];
+        BaseBundle props = null;
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+            case "id":
+                ends[0] = json.nextString();
+                break;
+            case "start":
+                ends[1] = json.nextString();
+                break;
+            case "end":
+                ends[2] = json.nextString();
+                break;
+            case "properties":
+                props = readBundle(json);
+                break;
+            default:
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        if (ends[0] == null || ends[1] == null || ends[2] == null)
+            throw new IOException("Route without an id, start or end");
+        Route r_route = new Route(ends[0], null, null);
+        r_route.setProperties(props);
+        graph.addRoute(r_route, ends[1], ends[2]);
+    }
+
+    private void readState(JsonReader json) throws IOException {
+        String[] names = { "killedNodes", "killedRoutes", "completedRoutes", "activeNodes" };
+        for (int i = 0; i < names.length; ++i) {
+            state.add(new ArrayList<String>());
+        }
+        json.beginObject();
+        while (json.hasNext()) {
+            int index = Arrays.asList(names).indexOf(json.nextName());
+            if (index < 0) {
+                json.skipValue();
+                continue;
+            }
+            json.beginArray();
+            while (json.hasNext()) {
+                state.get(index).add(json.nextString());
+            }
+            json.endArray();
+        }
+        json.endObject();
+    }
+
+    /**
+     * @return the next string, or null if the next value is null
+     */
+    private static String nextStringOrNull(JsonReader json) throws IOException {
+        if (json.peek() == JsonToken.NULL) {
+            json.nextNull();
+            return null;
+        }
+        return json.nextString();
+    }
+
+    private static void putAll(BaseBundle target, BaseBundle source) {
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        for (String key : source.keySet()) {
+            values.put(key, source.get(key));
+        }
+        target.putAll(values);
+    }
+
+    static BaseBundle readBundle(JsonReader json) throws IOException {
+        if (json.peek() == JsonToken.NULL) {
+            json.nextNull();
+            return null;
+        }
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        json.beginObject();
+        while (json.hasNext()) {
+            String key = json.nextName();
+            values.put(key, readValue(json));
+        }
+        json.endObject();
+        BaseBundle r_bundle = new BaseBundle(values.size());
+        r_bundle.putAll(values);
+        return r_bundle;
+    }
+
+    private static Object readValue(JsonReader json) throws IOException {
+        if (json.peek() == JsonToken.NULL) {
+            json.nextNull();
+            return null;
+        }
+        json.beginObject();
+        if (!json.hasNext())
+            throw new IOException("Property value without a type");
+        String type = json.nextName();
+        Object r_value;
+        switch (type) {
+        case "boolean":
+            r_value = json.nextBoolean();
+            break;
+        case "byte":
+            r_value = (byte) checkRange(json.nextLong(), Byte.MIN_VALUE, Byte.MAX_VALUE, type);
+            break;
+        case "char":
+            r_value = nextChar(json);
+            break;
+        case "short":
+            r_value = (short) checkRange(json.nextLong(), Short.MIN_VALUE, Short.MAX_VALUE, type);
+            break;
+        case "int":
+            r_value = json.nextInt();
+            break;
+        case "long":
+            r_value = json.nextLong();
+            break;
+        case "float":
+            r_value = (float) nextDouble(json);
+            break;
+        case "double":
+            r_value = nextDouble(json);
+            break;
+        case "string":
+            r_value = nextStringOrNull(json);
+            break;
+        case "integerList": {
+            ArrayList<Integer> list = new ArrayList<Integer>();
+            json.beginArray();
+            while (json.hasNext()) {
+                list.add(json.nextInt());
+            }
+            json.endArray();
+            r_value = list;
+            break;
+        }
+        case "stringList": {
+            ArrayList<String> list = new ArrayList<String>();
+            json.beginArray();
+            while (json.hasNext()) {
+                list.add(nextStringOrNull(json));
+            }
+            json.endArray();
+            r_value = list;
+            break;
+        }
+        case "charArray":
+            r_value = json.nextString().toCharArray();
+            break;
+        case "stringArray": {
+            ArrayList<String> list = new ArrayList<String>();
+            json.beginArray();
+            while (json.hasNext()) {
+                list.add(nextStringOrNull(json));
+            }
+            json.endArray();
+            r_value = list.toArray(new String[list.size()]);
+            break;
+        }
+        default:
+            r_value = readPrimitiveArray(json, type);
+        }
+        while (json.hasNext()) {
+            json.nextName();
+            json.skipValue();
+        }
+        json.endObject();
+        return r_value;
+    }
+
+    private static char nextChar(JsonReader json) throws IOException {
+        String string = json.nextString();
+        if (string.length() != 1)
+            throw new IOException("Not a single character: " + string);
+        return string.charAt(0);
+    }
+
+    /**
+     * Reads an array of numbers or booleans of the given type, counting it
+     * into a growing primitive array rather than a list of boxed values.
+     */
+    private static Object readPrimitiveArray(JsonReader json, String type) throws IOException {
+        switch (type) {
+        case "booleanArray": {
+            json.beginArray();
+            boolean[] array = new boolean[8];
+            int n = 0;
+            for (; json.hasNext(); ++n) {
+                if (n == array.length)
+                    array = Arrays.copyOf(array, n * 2);
+                array[n] = json.nextBoolean();
+            }
+            json.endArray();
+            return Arrays.copyOf(array, n);
+        }
+        case "byteArray":
+        case "shortArray":
+        case "intArray":
+        case "longArray": {
+            json.beginArray();
+            long[] array = new long[8];
+            int n = 0;
+            for (; json.hasNext(); ++n) {
+                if (n == array.length)
+                    array = Arrays.copyOf(array, n * 2);
+                array[n] = json.nextLong();
+            }
+            json.endArray();
+            switch (type) {
+            case "byteArray": {
+                byte[] r_array = new byte[n];
+                for (int i = 0; i < n; ++i) {
+                    r_array[i] = (byte) checkRange(array[i], Byte.MIN_VALUE, Byte.MAX_VALUE, type);
+                }
+                return r_array;
+            }
+            case "shortArray": {
+                short[] r_array = new short[n];
+                for (int i = 0; i < n; ++i) {
+                    r_array[i] = (short) checkRange(array[i], Short.MIN_VALUE, Short.MAX_VALUE, type);
+                }
+                return r_array;
+            }
+            case "intArray": {
+                int[] r_array = new int[n];
+                for (int i = 0; i < n; ++i) {
+                    r_array[i] = (int) checkRange(array[i], Integer.MIN_VALUE, Integer.MAX_VALUE, type);
+                }
+                return r_array;
+            }
+            default:
+                return Arrays.copyOf(array, n);
+            }
+        }
+        case "floatArray":
+        case "doubleArray": {
+            json.beginArray();
+            double[] array = new double[8];
+            int n = 0;
+            for (; json.hasNext(); ++n) {
+                if (n == array.length)
+                    array = Arrays.copyOf(array, n * 2);
+                array[n] = nextDouble(json);
+            }
+            json.endArray();
+            if (type.equals("doubleArray"))
+                return Arrays.copyOf(array, n);
+            float[] r_array = new float[n];
+            for (int i = 0; i < n; ++i) {
+                r_array[i] = (float) array[i];
+            }
+            return r_array;
+        }
+        default:
+            throw new IOException("Unknown property type " + type);
+        }
+    }
+
+    /**
+     * Reads a number, which may be one of the strings {@code "NaN"},
+     * {@code "Infinity"} and {@code "-Infinity"} written for the values JSON
+     * has no numbers for.
+     */
+    private static double nextDouble(JsonReader json) throws IOException {
+        if (json.peek() != JsonToken.STRING)
+            return json.nextDouble();
+        String string = json.nextString();
+        switch (string) {
+        case "NaN":
+            return Double.NaN;
+        case "Infinity":
+            return Double.POSITIVE_INFINITY;
+        case "-Infinity":
+            return Double.NEGATIVE_INFINITY;
+        default:
+            throw new IOException("Not a number: " + string);
+        }
+    }
+
+    private static long checkRange(long value, long min, long max, String type) throws IOException {
+        if (value < min || value > max)
+            throw new IOException(value + " is out of range for " + type);
+        return value;
+    }
+}
@@ -0,0 +1,344 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.stream.JsonWriter;
+
+import android.os.BaseBundle;
+import uk.ac.cam.echo2016.multinarrative.CompiledNarrative;
+import uk.ac.cam.echo2016.multinarrative.GUINarrative;
+import uk.ac.cam.echo2016.multinarrative.MultiNarrative;
+import uk.ac.cam.echo2016.multinarrative.NarrativeInstance;
+import uk.ac.cam.echo2016.multinarrative.NarrativeTemplate;
+import uk.ac.cam.echo2016.multinarrative.Node;
+import uk.ac.cam.echo2016.multinarrative.Route;
+
+/**
+ * Writes narratives as JSON with Gson's streaming {@code JsonWriter}, so that
+ * they can be exchanged with other tools. Nothing is built in memory: each
+ * node, route and property is written as it is reached. The format is:
+ *
+ * <pre>
+ * {
+ *   "format": "DynamicNarrative", "version": 1, "kind": "GUINarrative",
+ *   "start": "start",
+ *   "properties": { bundle },
+ *   "nodes": [ { "id": "start", "type": "synchronization",
+ *                "properties": { bundle } }, ... ],
+ *   "routes": [ { "id": "link1", "start": "start", "end": "choice1",
+ *                 "properties": { bundle } }, ... ],
+ *   "propertyMapping": { "name": { bundle }, ... },   (GUINarrative only)
+ *   "typemap": { "property": "type", ... },           (GUINarrative only)
+ *   "state": { "killedNodes": [...], "killedRoutes": [...],
+ *              "completedRoutes": [...],
+ *              "activeNodes": [...] }              (NarrativeInstance only)
+ * }
+ * </pre>
+ *
+ * Each entry of a bundle is an object naming the type of the value, such as
+ * {@code "Score": {"int": 5}} or {@code "Names": {"stringList": ["a", "b"]}},
+ * so that values keep their type when read back. Other character sequences
+ * are written as strings, and NaN and infinite numbers as the strings
+ * {@code "NaN"}, {@code "Infinity"} and {@code "-Infinity"}, which JSON has
+ * no numbers for. Values of any other type cannot be written. The GUI
+ * coordinates of the editor are ordinary {@code GUI.X} and {@code GUI.Y}
+ * entries of the node and route bundles.
+ *
+ * @version 1.0
+ * @see JsonNarrativeReader
+ */
+public final class JsonNarrativeWriter {
+    static final String FORMAT = "DynamicNarrative";
+    static final int VERSION = 1;
+
+    private JsonNarrativeWriter() {
+    }
+
+    /**
+     * Writes {@code narrative}, including its property mapping and property
+     * types. {@code out} is flushed but not closed.
+     */
+    public static void write(Writer out, GUINarrative narrative) throws IOException {
+        JsonWriter json = open(out, "GUINarrative");
+        writeGraph(json, narrative);
+        json.name("propertyMapping");
+        if (narrative.getPropertyMapping() == null) {
+            json.nullValue();
+        } else {
+            json.beginObject();
+            for (Map.Entry<String, BaseBundle> entry : narrative.getPropertyMapping().entrySet()) {
+                json.name(entry.getKey());
+                writeBundle(json, entry.getValue());
+            }
+            json.endObject();
+        }
+        json.name("typemap").beginObject();
+        for (Map.Entry<String, String> entry : narrative.getPropertyTypes().entrySet()) {
+            json.name(entry.getKey()).value(entry.getValue());
+        }
+        json.endObject();
+        close(json);
+    }
+
+    /**
+     * Writes {@code template}. {@code out} is flushed but not closed.
+     */
+    public static void write(Writer out, NarrativeTemplate template) throws IOException {
+        JsonWriter json = open(out, "NarrativeTemplate");
+        writeGraph(json, template);
+        close(json);
+    }
+
+    /**
+     * Writes the whole graph of {@code instance}, including killed nodes and
+     * routes, with the properties as the instance sees them, followed by the
+     * state of the instance. The event log is not written. {@code out} is
+     * flushed but not closed.
+     */
+    public static void write(Writer out, NarrativeInstance instance) throws IOException {
+        JsonWriter json = open(out, "NarrativeInstance");
+        CompiledNarrative graph = instance.getGraph();
+        Map<String, BaseBundle> copied = instance.getCopiedProperties();
+
+        json.name("start");
+        json.value(graph.getStart() < 0 ? null : graph.getNode(graph.getStart()).getId());
+        json.name("properties");
+        writeBundle(json, instance.getGlobalProperties());
+        json.name("nodes").beginArray();
+        for (int node = 0; node < graph.getNodeCount(); ++node) {
+            Node r_node = graph.getNode(node);
+            BaseBundle props = copied.get(r_node.getId());
+            writeNode(json, r_node, props == null ? r_node.getProperties() : props);
+        }
+        json.endArray();
+        json.name("routes").beginArray();
+        for (int route = 0; route < graph.getRouteCount(); ++route) {
+            Route r_route = graph.getRoute(route);
+            BaseBundle props = copied.get(r_route.getId());
+            writeRoute(json, r_route, props == null ? r_route.getProperties() : props);
+        }
+        json.endArray();
+
+        json.name("state").beginObject();
+        json.name("killedNodes").beginArray();
+        for (int node = 0; node < graph.getNodeCount(); ++node) {
+            if (instance.getNode(node) == null)
+                json.value(graph.getNode(node).getId());
+        }
+        json.endArray();
+        json.name("killedRoutes").beginArray();
+        for (int route = 0; route < graph.getRouteCount(); ++route) {
+            if (instance.getRoute(route) == null)
+                json.value(graph.getRoute(route).getId());
+        }
+        json.endArray();
+        json.name("completedRoutes").beginArray();
+        for (int route = 0; route < graph.getRouteCount(); ++route) {
+            Route r_route = instance.getRoute(route);
+            if (r_route != null && instance.isCompleted(r_route))
+                json.value(r_route.getId());
+        }
+        json.endArray();
+        json.name("activeNodes").beginArray();
+        for (Node node : instance.getActiveNodes()) {
+            json.value(node.getId());
+        }
+        json.endArray();
+        json.endObject();
+        close(json);
+    }
+
+    private static JsonWriter open(Writer out, String kind) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.setIndent("  ");
+        json.beginObject();
+        json.name("format").value(FORMAT);
+        json.name("version").value(VERSION);
+        json.name("kind").value(kind);
+        return json;
+    }
+
+    private static void close(JsonWriter json) throws IOException {
+        json.endObject();
+        json.flush();
+    }
+
+    private static void writeGraph(JsonWriter json, MultiNarrative narrative) throws IOException {
+        json.name("start").value(narrative.getStart() == null ? null : narrative.getStart().getId());
+        json.name("properties");
+        writeBundle(json, narrative.getGlobalProperties());
+        json.name("nodes").beginArray();
+        for (Node node : narrative.getNodes().values()) {
+            writeNode(json, node, node.getProperties());
+        }
+        json.endArray();
+        json.name("routes").beginArray();
+        for (Route route : GraphBuilder.routesInExitOrder(narrative)) {
+            writeRoute(json, route, route.getProperties());
+        }
+        json.endArray();
+    }
+
+    private static void writeNode(JsonWriter json, Node node, BaseBundle properties) throws IOException {
+        json.beginObject();
+        json.name("id").value(node.getId());
+        json.name("type").value(GraphBuilder.kindOf(node) == 1 ? "choice" : "synchronization");
+        json.name("properties");
+        writeBundle(json, properties);
+        json.endObject();
+    }
+
+    private static void writeRoute(JsonWriter json, Route route, BaseBundle properties) throws IOException {
+        json.beginObject();
+        json.name("id").value(route.getId());
+        json.name("start").value(route.getStart().getId());
+        json.name("end").value(route.getEnd().getId());
+        json.name("properties");
+        writeBundle(json, properties);
+        json.endObject();
+    }
+
+    static void writeBundle(JsonWriter json, BaseBundle bundle) throws IOException {
+        if (bundle == null) {
+            json.nullValue();
+            return;
+        }
+        json.beginObject();
+        for (String key : bundle.keySet()) {
+            json.name(key);
+            writeValue(json, bundle.get(key));
+        }
+        json.endObject();
+    }
+
+    private static void writeValue(JsonWriter json, Object o) throws IOException {
+        if (o == null) {
+            json.nullValue();
+            return;
+        }
+        json.beginObject();
+        switch (PropertyValues.typeOf(o)) {
+        case BinaryTemplateWriter.TYPE_BOOLEAN:
+            json.name("boolean").value((Boolean) o);
+            break;
+        case BinaryTemplateWriter.TYPE_BYTE:
+            json.name("byte").value((Byte) o);
+            break;
+        case BinaryTemplateWriter.TYPE_CHAR:
+            json.name("char").value(o.toString());
+            break;
+        case BinaryTemplateWriter.TYPE_SHORT:
+            json.name("short").value((Short) o);
+            break;
+        case BinaryTemplateWriter.TYPE_INT:
+            json.name("int").value((Integer) o);
+            break;
+        case BinaryTemplateWriter.TYPE_LONG:
+            json.name("long").value((Long) o);
+            break;
+        case BinaryTemplateWriter.TYPE_FLOAT:
+            json.name("float");
+            writeNumber(json, (Float) o);
+            break;
+        case BinaryTemplateWriter.TYPE_DOUBLE:
+            json.name("double");
+            writeNumber(json, (Double) o);
+            break;
+        case BinaryTemplateWriter.TYPE_STRING:
+            json.name("string").value((String) o);
+            break;
+        case BinaryTemplateWriter.TYPE_INTEGER_LIST:
+            json.name("integerList").beginArray();
+            for (Object element : (List<?>) o) {
+                json.value((Integer) element);
+            }
+            json.endArray();
+            break;
+        case BinaryTemplateWriter.TYPE_STRING_LIST:
+            json.name("stringList").beginArray();
+            for (Object element : (List<?>) o) {
+                json.value((String) element);
+            }
+            json.endArray();
+            break;
+        case BinaryTemplateWriter.TYPE_BOOLEAN_ARRAY:
+            json.name("booleanArray").beginArray();
+            for (boolean element : (boolean[]) o) {
+                json.value(element);
+            }
+            json.endArray();
+            break;
+        case BinaryTemplateWriter.TYPE_BYTE_ARRAY:
+            json.name("byteArray").beginArray();
+            for (byte element : (byte[]) o) {
+                json.value(element);
+            }
+            json.endArray();
+            break;
+        case BinaryTemplateWriter.TYPE_SHORT_ARRAY:
+            json.name("shortArray").beginArray();
+            for (short element : (short[]) o) {
+                json.value(element);
+            }
+            json.endArray();
+            break;
+        case BinaryTemplateWriter.TYPE_CHAR_ARRAY:
+            json.name("charArray").value(new String((char[]) o));
+            break;
+        case BinaryTemplateWriter.TYPE_INT_ARRAY:
+            json.name("intArray").beginArray();
+            for (int element : (int[]) o) {
+                json.value(element);
+            }
+            json.endArray();
+            break;
+        case BinaryTemplateWriter.TYPE_LONG_ARRAY:
+            json.name("longArray").beginArray();
+            for (long element : (long[]) o) {
+                json.value(element);
+            }
+            json.endArray();
+            break;
+        case BinaryTemplateWriter.TYPE_FLOAT_ARRAY:
+            json.name("floatArray").beginArray();
+            for (float element : (float[]) o) {
+                writeNumber(json, element);
+            }
+            json.endArray();
+            break;
+        case BinaryTemplateWriter.TYPE_DOUBLE_ARRAY:
+            json.name("doubleArray").beginArray();
+            for (double element : (double[]) o) {
+                writeNumber(json, element);
+            }
+            json.endArray();
+            break;
+        default:
+            // Arrays of strings too, as those of other character sequences
+            if (o instanceof CharSequence) {
+                json.name("string").value(o.toString());
+            } else if (o instanceof CharSequence[]) {
+                json.name("stringArray").beginArray();
+                for (CharSequence element : (CharSequence[]) o) {
+                    json.value(element == null ? null : element.toString());
+                }
+                json.endArray();
+            } else {
+                throw new IOException("Property values of " + o.getClass().getName() + " cannot be written as JSON");
+            }
+        }
+        json.endObject();
+    }
+
+    private static void writeNumber(JsonWriter json, Number number) throws IOException {
+        double value = number.doubleValue();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            json.value(number.toString());
+        } else {
+            json.value(number);
+        }
+    }
+}
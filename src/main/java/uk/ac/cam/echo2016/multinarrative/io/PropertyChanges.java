@@ -0,0 +1,188 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+
+import android.os.BaseBundle;
+import uk.ac.cam.echo2016.multinarrative.CompiledNarrative;
+
+/**
+ * The property entries of an instance that differ from those it was compared
+ * with, by element, and their encoding, which instance event files and
+ * instance delta files share. The changes to each bundle are written as:
+ *
+ * <pre>
+ * kind     RECORD_GLOBAL, RECORD_ROUTE or RECORD_NODE of {@link SaveWriter}
+ * id       the identifier of the route or node, unless global
+ * changed  the length of a serialized bundle of the changed and added
+ *          entries, then the bundle
+ * removed  the number of keys removed, then each key
+ * </pre>
+ *
+ * @version 1.0
+ */
+final class PropertyChanges {
+    /** Changed entries by identifier, with null for the global properties */
+    private final LinkedHashMap<String, BaseBundle> changes = new LinkedHashMap<String, BaseBundle>();
+    private final HashMap<String, ArrayList<String>> removals = new HashMap<String, ArrayList<String>>();
+
+    /**
+     * Finds the bundle that the changes read for an element apply to.
+     */
+    @FunctionalInterface
+    interface Target {
+        /**
+         * @param record
+         *            the kind of element
+         * @param id
+         *            its identifier, or null for the global properties
+         * @return the bundle to change, or null to skip the changes
+         * @throws IOException
+         *             if the file cannot refer to the element
+         */
+        BaseBundle find(int record, String id) throws IOException;
+    }
+
+    /**
+     * Adds the entries of {@code current} that differ from {@code original},
+     * copied, and the keys that have been removed, as the changes to the
+     * element {@code id}.
+     */
+    void diff(String id, BaseBundle original, BaseBundle current) {
+        if (current != null) {
+            HashMap<String, Object> r_changed = null;
+            for (String key : current.keySet()) {
+                if (key.equals(SaveWriter.COMPLETED_KEY))
+                    continue;
+                Object value = current.get(key);
+                if (original != null && original.containsKey(key) && Objects.deepEquals(original.get(key), value))
+                    continue;
+                if (r_changed == null)
+                    r_changed = new HashMap<String, Object>();
+                r_changed.put(key, value);
+            }
+            if (r_changed != null) {
+                BaseBundle bundle = new BaseBundle(r_changed.size());
+                bundle.putAll(r_changed);
+                changes.put(id, BaseBundle.deepcopy(bundle));
+            }
+        }
+        if (original != null) {
+            ArrayList<String> r_removed = null;
+            for (String key : original.keySet()) {
+                if (current == null || !current.containsKey(key)) {
+                    if (r_removed == null)
+                        r_removed = new ArrayList<String>();
+                    r_removed.add(key);
+                }
+            }
+            if (r_removed != null)
+                removals.put(id, r_removed);
+        }
+    }
+
+    /**
+     * @return true if the element {@code id} has changes
+     */
+    boolean contains(String id) {
+        return changes.containsKey(id) || removals.containsKey(id);
+    }
+
+    /**
+     * @return the number of elements with changes
+     */
+    int size() {
+        return ids().size();
+    }
+
+    private LinkedHashSet<String> ids() {
+        LinkedHashSet<String> r_ids = new LinkedHashSet<String>(changes.keySet());
+        r_ids.addAll(removals.keySet());
+        return r_ids;
+    }
+
+    /**
+     * Writes the changes to each element, in the order they were found.
+     *
+     * @param graph
+     *            tells routes apart from nodes
+     */
+    void write(DataOutputStream out, CompiledNarrative graph) throws IOException {
+        for (String id : ids()) {
+            if (id == null) {
+                out.writeByte(SaveWriter.RECORD_GLOBAL);
+            } else {
+                out.writeByte(graph.getRouteId(id) >= 0 ? SaveWriter.RECORD_ROUTE : SaveWriter.RECORD_NODE);
+                out.writeUTF(id);
+            }
+            BaseBundle entries = changes.get(id);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(entries == null ? new BaseBundle() : entries);
+            }
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            ArrayList<String> removed = removals.get(id);
+            out.writeInt(removed == null ? 0 : removed.size());
+            if (removed != null) {
+                for (String key : removed) {
+                    out.writeUTF(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the changes to one element, whose kind has already been read as
+     * {@code record}, and applies them to the bundle {@code target} finds.
+     *
+     * @param name
+     *            the name of the file or slot being read, for error messages
+     * @throws IOException
+     *             if {@code record} is not a kind of element or the changes
+     *             are corrupt
+     */
+    static void read(DataInputStream in, int record, Target target, String name) throws IOException {
+        if (record != SaveWriter.RECORD_GLOBAL && record != SaveWriter.RECORD_ROUTE
+                && record != SaveWriter.RECORD_NODE)
+            throw new IOException("Unknown record " + record + " in " + name);
+        BaseBundle bundle = target.find(record, record == SaveWriter.RECORD_GLOBAL ? null : in.readUTF());
+        int length = in.readInt();
+        if (length < 0)
+            throw new IOException("Corrupt property bundle of " + length + " bytes in " + name);
+        BaseBundle changed;
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new ByteArrayInputStream(SaveStreams.readFully(in, length)))) {
+            changed = (BaseBundle) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Corrupt property bundle in " + name, e);
+        }
+        int removed = in.readInt();
+        if (removed < 0)
+            throw new IOException("Corrupt count of " + removed + " removed keys in " + name);
+        if (bundle == null) {
+            for (int i = 0; i < removed; ++i) {
+                in.readUTF();
+            }
+            return;
+        }
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        for (String key : changed.keySet()) {
+            values.put(key, changed.get(key));
+        }
+        bundle.putAll(values);
+        for (int i = 0; i < removed; ++i) {
+            bundle.remove(in.readUTF());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import static uk.ac.cam.echo2016.multinarrative.io.BinaryTemplateWriter.*;
+
+import java.util.ArrayList;
+
+/**
+ * Works out the type of a property value, as one of the {@code TYPE_}
+ * constants of {@link BinaryTemplateWriter}, so that every format that writes
+ * property bundles tells the types apart in the same way.
+ *
+ * @version 1.0
+ */
+final class PropertyValues {
+    private PropertyValues() {
+    }
+
+    /**
+     * @return the type of {@code o}, or {@code TYPE_SERIALIZED} if it is not
+     *         one of the types the formats can write
+     */
+    static byte typeOf(Object o) {
+        if (o == null)
+            return TYPE_NULL;
+        if (o instanceof Boolean)
+            return TYPE_BOOLEAN;
+        if (o instanceof Byte)
+            return TYPE_BYTE;
+        if (o instanceof Character)
+            return TYPE_CHAR;
+        if (o instanceof Short)
+            return TYPE_SHORT;
+        if (o instanceof Integer)
+            return TYPE_INT;
+        if (o instanceof Long)
+            return TYPE_LONG;
+        if (o instanceof Float)
+            return TYPE_FLOAT;
+        if (o instanceof Double)
+            return TYPE_DOUBLE;
+        if (o instanceof String)
+            return TYPE_STRING;
+        if (o instanceof ArrayList) {
+            if (isListOf((ArrayList<?>) o, Integer.class))
+                return TYPE_INTEGER_LIST;
+            if (isListOf((ArrayList<?>) o, String.class))
+                return TYPE_STRING_LIST;
+            return TYPE_SERIALIZED;
+        }
+        if (o instanceof boolean[])
+            return TYPE_BOOLEAN_ARRAY;
+        if (o instanceof byte[])
+            return TYPE_BYTE_ARRAY;
+        if (o instanceof short[])
+            return TYPE_SHORT_ARRAY;
+        if (o instanceof char[])
+            return TYPE_CHAR_ARRAY;
+        if (o instanceof int[])
+            return TYPE_INT_ARRAY;
+        if (o instanceof long[])
+            return TYPE_LONG_ARRAY;
+        if (o instanceof float[])
+            return TYPE_FLOAT_ARRAY;
+        if (o instanceof double[])
+            return TYPE_DOUBLE_ARRAY;
+        if (o.getClass() == String[].class)
+            return TYPE_STRING_ARRAY;
+        return TYPE_SERIALIZED;
+    }
+
+    /**
+     * @return {@code o}, with character sequences other than strings, and
+     *         arrays of them, converted to strings, as the formats store them
+     */
+    static Object encodable(Object o) {
+        if (o instanceof CharSequence && !(o instanceof String))
+            return o.toString();
+        if (o instanceof CharSequence[] && o.getClass() != String[].class) {
+            CharSequence[] sequences = (CharSequence[]) o;
+            String[] r_strings = new String[sequences.length];
+            for (int i = 0; i < sequences.length; ++i) {
+                r_strings[i] = sequences[i] == null ? null : sequences[i].toString();
+            }
+            return r_strings;
+        }
+        return o;
+    }
+
+    /**
+     * @return true if every element of {@code list} is of class {@code type},
+     *         allowing nulls in lists of strings
+     */
+    static boolean isListOf(ArrayList<?> list, Class<?> type) {
+        for (Object element : list) {
+            if (element == null ? type != String.class : element.getClass() != type)
+                return false;
+        }
+        return true;
+    }
+}
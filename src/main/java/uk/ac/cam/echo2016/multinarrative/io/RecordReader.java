@@ -0,0 +1,502 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.os.BaseBundle;
+import uk.ac.cam.echo2016.multinarrative.ChoiceNode;
+import uk.ac.cam.echo2016.multinarrative.NarrativeTemplate;
+import uk.ac.cam.echo2016.multinarrative.Node;
+import uk.ac.cam.echo2016.multinarrative.Route;
+import uk.ac.cam.echo2016.multinarrative.SynchronizationNode;
+
+/**
+ * Reads a {@code NarrativeTemplate} written by {@link RecordWriter} in one
+ * pass over the stream. Fields are matched by number, so they may come in any
+ * order, fields that are missing keep their defaults, and fields that are not
+ * known, including property values of unknown types, are skipped. Files from
+ * any version of the writer are read the same way.
+ *
+ * @version 1.0
+ */
+final class RecordReader {
+    private final InputStream in;
+    /** The number of bytes read so far */
+    private long position = 0;
+    /** The end of the record being read */
+    private long limit = Long.MAX_VALUE;
+
+    private RecordReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * @return true if {@code magic} starts with the magic number of the tagged
+     *         record format
+     */
+    static boolean isRecordFile(ByteBuffer magic) {
+        return magic.remaining() >= 4 && magic.getInt(magic.position()) == RecordWriter.MAGIC;
+    }
+
+    /**
+     * Reads a template from {@code in}, which is buffered if it does not
+     * support {@code mark}.
+     *
+     * @throws IOException
+     *             if the file is not in the record format, was written by an
+     *             incompatible version, or describes an inconsistent graph
+     */
+    static NarrativeTemplate readTemplate(InputStream in) throws IOException {
+        return new RecordReader(in.markSupported() ? in : new BufferedInputStream(in)).readTemplate();
+    }
+
+    private NarrativeTemplate readTemplate() throws IOException {
+        int magic = 0;
+        for (int i = 0; i < 4; ++i) {
+            magic = magic << 8 | readByte();
+        }
+        if (magic != RecordWriter.MAGIC)
+            throw new IOException("Not a narrative record file");
+        long version = readVarint();
+        if (version > RecordWriter.VERSION)
+            throw new IOException("Unsupported narrative record version " + version);
+
+        GraphBuilder graph = new GraphBuilder();
+        for (int tag = nextField(); tag != -1; tag = nextField()) {
+            switch (tag) {
+            case RecordWriter.TEMPLATE_START << 3 | RecordWriter.WIRE_BYTES:
+                graph.start = readString();
+                break;
+            case RecordWriter.TEMPLATE_PROPERTIES << 3 | RecordWriter.WIRE_BYTES:
+                graph.properties = readBundle();
+                break;
+            case RecordWriter.TEMPLATE_NODE << 3 | RecordWriter.WIRE_BYTES:
+                graph.addNode(readNode());
+                break;
+            case RecordWriter.TEMPLATE_ROUTE << 3 | RecordWriter.WIRE_BYTES:
+                String[] ends = new String[3];
+                Route route = readRoute(ends);
+                graph.addRoute(route, ends[1], ends[2]);
+                break;
+            default:
+                skip(tag);
+            }
+        }
+
+        return graph.toTemplate();
+    }
+
+    private Node readNode() throws IOException {
+        long end = enter();
+        String id = null;
+        long kind = 0;
+        BaseBundle props = null;
+        for (int tag = nextField(); tag != -1; tag = nextField()) {
+            switch (tag) {
+            case RecordWriter.NODE_ID << 3 | RecordWriter.WIRE_BYTES:
+                id = readString();
+                break;
+            case RecordWriter.NODE_KIND << 3 | RecordWriter.WIRE_VARINT:
+                kind = readVarint();
+                break;
+            case RecordWriter.NODE_PROPERTIES << 3 | RecordWriter.WIRE_BYTES:
+                props = readBundle();
+                break;
+            default:
+                skip(tag);
+            }
+        }
+        leave(end);
+        if (id == null)
+            throw new IOException("Node without an id");
+        Node r_node;
+        if (kind == 1) {
+            r_node = new ChoiceNode(id);
+        } else if (kind == 0) {
+            r_node = new SynchronizationNode(id);
+        } else {
+            throw new IOException("Unknown kind " + kind + " of node " + id);
+        }
+        r_node.setProperties(props);
+        return r_node;
+    }
+
+    /**
+     * Reads a route, which is connected once all nodes have been read.
+     *
+     * @param ends
+     *            set to the ids of the route and its start and end nodes
+     */
+    private Route readRoute(String[] ends) throws IOException {
+        long end = enter();
+        BaseBundle props = null;
+        for (int tag = nextField(); tag != -1; tag = nextField()) {
+            switch (tag) {
+            case RecordWriter.ROUTE_ID << 3 | RecordWriter.WIRE_BYTES:
+                ends[0] = readString();
+                break;
+            case RecordWriter.ROUTE_START << 3 | RecordWriter.WIRE_BYTES:
+                ends[1] = readString();
+                break;
+            case RecordWriter.ROUTE_END << 3 | RecordWriter.WIRE_BYTES:
+                ends[2] = readString();
+                break;
+            case RecordWriter.ROUTE_PROPERTIES << 3 | RecordWriter.WIRE_BYTES:
+                props = readBundle();
+                break;
+            default:
+                skip(tag);
+            }
+        }
+        leave(end);
+        if (ends[0] == null || ends[1] == null || ends[2] == null)
+            throw new IOException("Route without an id, start or end");
+        Route r_route = new Route(ends[0], null, null);
+        r_route.setProperties(props);
+        return r_route;
+    }
+
+    private BaseBundle readBundle() throws IOException {
+        long end = enter();
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        for (int tag = nextField(); tag != -1; tag = nextField()) {
+            if (tag != (RecordWriter.BUNDLE_ENTRY << 3 | RecordWriter.WIRE_BYTES)) {
+                skip(tag);
+                continue;
+            }
+            long entryEnd = enter();
+            String key = null;
+            Object value = null;
+            boolean known = false;
+            for (int field = nextField(); field != -1; field = nextField()) {
+                if (field == (RecordWriter.ENTRY_KEY << 3 | RecordWriter.WIRE_BYTES)) {
+                    key = readString();
+                } else if ((field >>> 3) >= RecordWriter.VALUE_BASE
+                        && (field >>> 3) <= RecordWriter.VALUE_BASE + BinaryTemplateWriter.TYPE_SERIALIZED) {
+                    value = readValue(field);
+                    known = true;
+                } else {
+                    skip(field);
+                }
+            }
+            leave(entryEnd);
+            // Entries whose value is of a type this version does not know are
+            // left out
+            if (key != null && known)
+                values.put(key, value);
+        }
+        leave(end);
+        BaseBundle r_bundle = new BaseBundle(values.size());
+        r_bundle.putAll(values);
+        return r_bundle;
+    }
+
+    private Object readValue(int tag) throws IOException {
+        int type = (tag >>> 3) - RecordWriter.VALUE_BASE;
+        int wire = tag & 7;
+        int expected;
+        switch (type) {
+        case BinaryTemplateWriter.TYPE_FLOAT:
+            expected = RecordWriter.WIRE_FIXED32;
+            break;
+        case BinaryTemplateWriter.TYPE_DOUBLE:
+            expected = RecordWriter.WIRE_FIXED64;
+            break;
+        case BinaryTemplateWriter.TYPE_NULL:
+        case BinaryTemplateWriter.TYPE_BOOLEAN:
+        case BinaryTemplateWriter.TYPE_BYTE:
+        case BinaryTemplateWriter.TYPE_CHAR:
+        case BinaryTemplateWriter.TYPE_SHORT:
+        case BinaryTemplateWriter.TYPE_INT:
+        case BinaryTemplateWriter.TYPE_LONG:
+            expected = RecordWriter.WIRE_VARINT;
+            break;
+        default:
+            expected = RecordWriter.WIRE_BYTES;
+        }
+        if (wire != expected)
+            throw new IOException("Property of type " + type + " has wire type " + wire);
+
+        switch (type) {
+        case BinaryTemplateWriter.TYPE_NULL:
+            readVarint();
+            return null;
+        case BinaryTemplateWriter.TYPE_BOOLEAN:
+            return readVarint() != 0;
+        case BinaryTemplateWriter.TYPE_BYTE:
+            return (byte) unzigzag(readVarint());
+        case BinaryTemplateWriter.TYPE_CHAR:
+            return (char) readVarint();
+        case BinaryTemplateWriter.TYPE_SHORT:
+            return (short) unzigzag(readVarint());
+        case BinaryTemplateWriter.TYPE_INT:
+            return (int) unzigzag(readVarint());
+        case BinaryTemplateWriter.TYPE_LONG:
+            return unzigzag(readVarint());
+        case BinaryTemplateWriter.TYPE_FLOAT:
+            return Float.intBitsToFloat((int) readFixed(4));
+        case BinaryTemplateWriter.TYPE_DOUBLE:
+            return Double.longBitsToDouble(readFixed(8));
+        case BinaryTemplateWriter.TYPE_STRING:
+            return readString();
+        case BinaryTemplateWriter.TYPE_BYTE_ARRAY:
+            return readBytes();
+        case BinaryTemplateWriter.TYPE_SERIALIZED:
+            throw new IOException("Serialized property value in record template");
+        case BinaryTemplateWriter.TYPE_STRING_LIST: {
+            long end = enter();
+            ArrayList<String> r_list = readStrings();
+            leave(end);
+            return r_list;
+        }
+        case BinaryTemplateWriter.TYPE_STRING_ARRAY: {
+            long end = enter();
+            ArrayList<String> list = readStrings();
+            leave(end);
+            return list.toArray(new String[list.size()]);
+        }
+        default:
+            return readPacked(type);
+        }
+    }
+
+    private ArrayList<String> readStrings() throws IOException {
+        ArrayList<String> r_list = new ArrayList<String>();
+        for (int tag = nextField(); tag != -1; tag = nextField()) {
+            if (tag == (RecordWriter.LIST_STRING << 3 | RecordWriter.WIRE_BYTES)) {
+                r_list.add(readString());
+            } else if (tag == (RecordWriter.LIST_NULL << 3 | RecordWriter.WIRE_VARINT)) {
+                readVarint();
+                r_list.add(null);
+            } else {
+                skip(tag);
+            }
+        }
+        return r_list;
+    }
+
+    /**
+     * Reads a packed list or array, whose length is not known until it has
+     * been read.
+     */
+    private Object readPacked(int type) throws IOException {
+        long end = enter();
+        Object r_array;
+        switch (type) {
+        case BinaryTemplateWriter.TYPE_INTEGER_LIST: {
+            ArrayList<Integer> list = new ArrayList<Integer>();
+            while (position < limit) {
+                list.add((int) unzigzag(readVarint()));
+            }
+            r_array = list;
+            break;
+        }
+        case BinaryTemplateWriter.TYPE_BOOLEAN_ARRAY: {
+            boolean[] array = new boolean[(int) (limit - position)];
+            for (int i = 0; i < array.length; ++i) {
+                array[i] = readByte() != 0;
+            }
+            r_array = array;
+            break;
+        }
+        case BinaryTemplateWriter.TYPE_FLOAT_ARRAY: {
+            float[] array = new float[(int) ((limit - position) / 4)];
+            for (int i = 0; i < array.length; ++i) {
+                array[i] = Float.intBitsToFloat((int) readFixed(4));
+            }
+            r_array = array;
+            break;
+        }
+        case BinaryTemplateWriter.TYPE_DOUBLE_ARRAY: {
+            double[] array = new double[(int) ((limit - position) / 8)];
+            for (int i = 0; i < array.length; ++i) {
+                array[i] = Double.longBitsToDouble(readFixed(8));
+            }
+            r_array = array;
+            break;
+        }
+        case BinaryTemplateWriter.TYPE_SHORT_ARRAY:
+        case BinaryTemplateWriter.TYPE_CHAR_ARRAY:
+        case BinaryTemplateWriter.TYPE_INT_ARRAY:
+        case BinaryTemplateWriter.TYPE_LONG_ARRAY: {
+            long[] values = new long[16];
+            int count = 0;
+            while (position < limit) {
+                if (count == values.length)
+                    values = Arrays.copyOf(values, count * 2);
+                values[count++] = readVarint();
+            }
+            if (type == BinaryTemplateWriter.TYPE_SHORT_ARRAY) {
+                short[] array = new short[count];
+                for (int i = 0; i < count; ++i) {
+                    array[i] = (short) unzigzag(values[i]);
+                }
+                r_array = array;
+            } else if (type == BinaryTemplateWriter.TYPE_CHAR_ARRAY) {
+                char[] array = new char[count];
+                for (int i = 0; i < count; ++i) {
+                    array[i] = (char) values[i];
+                }
+                r_array = array;
+            } else if (type == BinaryTemplateWriter.TYPE_INT_ARRAY) {
+                int[] array = new int[count];
+                for (int i = 0; i < count; ++i) {
+                    array[i] = (int) unzigzag(values[i]);
+                }
+                r_array = array;
+            } else {
+                long[] array = new long[count];
+                for (int i = 0; i < count; ++i) {
+                    array[i] = unzigzag(values[i]);
+                }
+                r_array = array;
+            }
+            break;
+        }
+        default:
+            throw new IOException("Unknown property type " + type);
+        }
+        leave(end);
+        return r_array;
+    }
+
+    /**
+     * @return the tag of the next field of the record being read, or -1 at
+     *         its end
+     */
+    private int nextField() throws IOException {
+        if (position >= limit)
+            return -1;
+        if (limit == Long.MAX_VALUE) {
+            // The end of the file ends the template record
+            in.mark(1);
+            int next = in.read();
+            in.reset();
+            if (next == -1)
+                return -1;
+        }
+        long r_tag = readVarint();
+        if (r_tag > Integer.MAX_VALUE || r_tag >>> 3 == 0)
+            throw new IOException("Malformed field tag " + r_tag);
+        return (int) r_tag;
+    }
+
+    /**
+     * Skips the value of a field that is not known.
+     */
+    private void skip(int tag) throws IOException {
+        switch (tag & 7) {
+        case RecordWriter.WIRE_VARINT:
+            readVarint();
+            break;
+        case RecordWriter.WIRE_FIXED64:
+            skipBytes(8);
+            break;
+        case RecordWriter.WIRE_BYTES:
+            skipBytes(readLength());
+            break;
+        case RecordWriter.WIRE_FIXED32:
+            skipBytes(4);
+            break;
+        default:
+            throw new IOException("Unknown wire type " + (tag & 7) + " of field " + (tag >>> 3));
+        }
+    }
+
+    /**
+     * Starts reading a length-delimited record.
+     *
+     * @return the end of the enclosing record, to be passed to
+     *         {@link #leave(long)}
+     */
+    private long enter() throws IOException {
+        long length = readLength();
+        long r_end = limit;
+        limit = position + length;
+        return r_end;
+    }
+
+    private void leave(long end) throws IOException {
+        if (position != limit)
+            throw new IOException("Record overruns its length");
+        limit = end;
+    }
+
+    private long readLength() throws IOException {
+        long r_length = readVarint();
+        if (r_length < 0 || r_length > limit - position)
+            throw new IOException("Field length " + r_length + " overruns its record");
+        return r_length;
+    }
+
+    private String readString() throws IOException {
+        return new String(readBytes(), StandardCharsets.UTF_8);
+    }
+
+    private byte[] readBytes() throws IOException {
+        byte[] r_bytes = new byte[(int) readLength()];
+        for (int read = 0; read < r_bytes.length;) {
+            int count = in.read(r_bytes, read, r_bytes.length - read);
+            if (count < 0)
+                throw new EOFException();
+            read += count;
+        }
+        position += r_bytes.length;
+        return r_bytes;
+    }
+
+    private void skipBytes(long count) throws IOException {
+        if (count > limit - position)
+            throw new IOException("Field overruns its record");
+        for (long skipped = 0; skipped < count;) {
+            long done = in.skip(count - skipped);
+            if (done <= 0) {
+                readByte();
+                --position;
+                done = 1;
+            }
+            skipped += done;
+        }
+        position += count;
+    }
+
+    private int readByte() throws IOException {
+        if (position >= limit)
+            throw new IOException("Field overruns its record");
+        int r_byte = in.read();
+        if (r_byte < 0)
+            throw new EOFException();
+        ++position;
+        return r_byte;
+    }
+
+    private long readVarint() throws IOException {
+        long r_value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            r_value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return r_value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private long readFixed(int size) throws IOException {
+        long r_value = 0;
+        for (int shift = 0; shift < 8 * size; shift += 8) {
+            r_value |= (long) readByte() << shift;
+        }
+        return r_value;
+    }
+
+    private static long unzigzag(long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+}
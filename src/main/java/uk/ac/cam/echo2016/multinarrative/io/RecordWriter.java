@@ -0,0 +1,295 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import android.os.BaseBundle;
+import uk.ac.cam.echo2016.multinarrative.NarrativeTemplate;
+import uk.ac.cam.echo2016.multinarrative.Node;
+import uk.ac.cam.echo2016.multinarrative.Route;
+
+/**
+ * Writes a {@code NarrativeTemplate} in the tagged record format read by
+ * {@link RecordReader}. Unlike the binary template format, every field is
+ * written with a number identifying it and a wire type giving its size, so
+ * fields can be added to any record without changing the version and readers
+ * skip fields they do not know. The file is the big-endian magic number and a
+ * varint version, followed by the fields of the template record:
+ *
+ * <pre>
+ * template  1 start node id, 2 global properties, 3 node (repeated),
+ *           4 route (repeated)
+ * node      1 id, 2 kind (0 synchronization, 1 choice), 3 properties
+ * route     1 id, 2 start node id, 3 end node id, 4 properties
+ * bundle    1 entry (repeated)
+ * entry     1 key, then one value field numbered VALUE_BASE + its type
+ * list      1 string or 2 null (repeated), for lists and arrays of strings
+ * </pre>
+ *
+ * Each field starts with a varint tag of {@code (number << 3) | wire type}.
+ * Varints are little-endian base 128, and signed values are zigzag encoded;
+ * fixed-size values are little-endian. Strings, packed arrays and nested
+ * records are length-delimited. The types of property values are the
+ * {@code TYPE_} constants of {@link BinaryTemplateWriter}.
+ *
+ * @version 1.0
+ */
+final class RecordWriter {
+    static final int MAGIC = 0x4E524543; // 'N' 'R' 'E' 'C'
+    /** Only raised for changes that readers cannot skip */
+    static final int VERSION = 1;
+
+    static final int WIRE_VARINT = 0;
+    static final int WIRE_FIXED64 = 1;
+    static final int WIRE_BYTES = 2;
+    static final int WIRE_FIXED32 = 5;
+
+    static final int TEMPLATE_START = 1;
+    static final int TEMPLATE_PROPERTIES = 2;
+    static final int TEMPLATE_NODE = 3;
+    static final int TEMPLATE_ROUTE = 4;
+    static final int NODE_ID = 1;
+    static final int NODE_KIND = 2;
+    static final int NODE_PROPERTIES = 3;
+    static final int ROUTE_ID = 1;
+    static final int ROUTE_START = 2;
+    static final int ROUTE_END = 3;
+    static final int ROUTE_PROPERTIES = 4;
+    static final int BUNDLE_ENTRY = 1;
+    static final int ENTRY_KEY = 1;
+    static final int VALUE_BASE = 16;
+    static final int LIST_STRING = 1;
+    static final int LIST_NULL = 2;
+
+    /** The bytes of the record being written */
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private RecordWriter() {
+    }
+
+    static void write(OutputStream stream, NarrativeTemplate template) throws IOException {
+        RecordWriter r_file = new RecordWriter();
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            r_file.out.write(MAGIC >>> shift);
+        }
+        r_file.varint(VERSION);
+
+        if (template.getStart() != null)
+            r_file.string(TEMPLATE_START, template.getStart().getId());
+        r_file.bundle(TEMPLATE_PROPERTIES, template.getGlobalProperties());
+        for (Node node : template.getNodes().values()) {
+            RecordWriter record = new RecordWriter();
+            record.string(NODE_ID, node.getId());
+            record.field(NODE_KIND, GraphBuilder.kindOf(node));
+            record.bundle(NODE_PROPERTIES, node.getProperties());
+            r_file.record(TEMPLATE_NODE, record);
+        }
+        for (Route route : GraphBuilder.routesInExitOrder(template)) {
+            RecordWriter record = new RecordWriter();
+            record.string(ROUTE_ID, route.getId());
+            record.string(ROUTE_START, route.getStart().getId());
+            record.string(ROUTE_END, route.getEnd().getId());
+            record.bundle(ROUTE_PROPERTIES, route.getProperties());
+            r_file.record(TEMPLATE_ROUTE, record);
+        }
+        r_file.out.writeTo(stream);
+    }
+
+    private void tag(int field, int wire) {
+        varint(field << 3 | wire);
+    }
+
+    private void field(int field, long value) {
+        tag(field, WIRE_VARINT);
+        varint(value);
+    }
+
+    private void string(int field, String string) {
+        bytes(field, string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void bytes(int field, byte[] bytes) {
+        tag(field, WIRE_BYTES);
+        varint(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private void record(int field, RecordWriter record) throws IOException {
+        tag(field, WIRE_BYTES);
+        varint(record.out.size());
+        record.out.writeTo(out);
+    }
+
+    private void bundle(int field, BaseBundle bundle) throws IOException {
+        if (bundle == null)
+            return;
+        RecordWriter r_bundle = new RecordWriter();
+        RecordWriter entry = new RecordWriter();
+        for (String key : bundle.keySet()) {
+            entry.out.reset();
+            entry.string(ENTRY_KEY, key);
+            entry.value(bundle.get(key));
+            r_bundle.record(BUNDLE_ENTRY, entry);
+        }
+        record(field, r_bundle);
+    }
+
+    private void value(Object o) throws IOException {
+        o = PropertyValues.encodable(o);
+        byte type = PropertyValues.typeOf(o);
+        int field = VALUE_BASE + type;
+        switch (type) {
+        case BinaryTemplateWriter.TYPE_NULL:
+            field(field, 0);
+            break;
+        case BinaryTemplateWriter.TYPE_BOOLEAN:
+            field(field, (Boolean) o ? 1 : 0);
+            break;
+        case BinaryTemplateWriter.TYPE_BYTE:
+            field(field, zigzag((Byte) o));
+            break;
+        case BinaryTemplateWriter.TYPE_CHAR:
+            field(field, (Character) o);
+            break;
+        case BinaryTemplateWriter.TYPE_SHORT:
+            field(field, zigzag((Short) o));
+            break;
+        case BinaryTemplateWriter.TYPE_INT:
+            field(field, zigzag((Integer) o));
+            break;
+        case BinaryTemplateWriter.TYPE_LONG:
+            field(field, zigzag((Long) o));
+            break;
+        case BinaryTemplateWriter.TYPE_FLOAT:
+            tag(field, WIRE_FIXED32);
+            fixed32(Float.floatToRawIntBits((Float) o));
+            break;
+        case BinaryTemplateWriter.TYPE_DOUBLE:
+            tag(field, WIRE_FIXED64);
+            fixed64(Double.doubleToRawLongBits((Double) o));
+            break;
+        case BinaryTemplateWriter.TYPE_STRING:
+            string(field, (String) o);
+            break;
+        case BinaryTemplateWriter.TYPE_INTEGER_LIST: {
+            RecordWriter packed = new RecordWriter();
+            for (Object element : (ArrayList<?>) o) {
+                packed.varint(zigzag((Integer) element));
+            }
+            record(field, packed);
+            break;
+        }
+        case BinaryTemplateWriter.TYPE_STRING_LIST:
+            record(field, strings(((ArrayList<?>) o).toArray()));
+            break;
+        case BinaryTemplateWriter.TYPE_BOOLEAN_ARRAY: {
+            RecordWriter packed = new RecordWriter();
+            for (boolean element : (boolean[]) o) {
+                packed.out.write(element ? 1 : 0);
+            }
+            record(field, packed);
+            break;
+        }
+        case BinaryTemplateWriter.TYPE_BYTE_ARRAY:
+            bytes(field, (byte[]) o);
+            break;
+        case BinaryTemplateWriter.TYPE_SHORT_ARRAY: {
+            RecordWriter packed = new RecordWriter();
+            for (short element : (short[]) o) {
+                packed.varint(zigzag(element));
+            }
+            record(field, packed);
+            break;
+        }
+        case BinaryTemplateWriter.TYPE_CHAR_ARRAY: {
+            RecordWriter packed = new RecordWriter();
+            for (char element : (char[]) o) {
+                packed.varint(element);
+            }
+            record(field, packed);
+            break;
+        }
+        case BinaryTemplateWriter.TYPE_INT_ARRAY: {
+            RecordWriter packed = new RecordWriter();
+            for (int element : (int[]) o) {
+                packed.varint(zigzag(element));
+            }
+            record(field, packed);
+            break;
+        }
+        case BinaryTemplateWriter.TYPE_LONG_ARRAY: {
+            RecordWriter packed = new RecordWriter();
+            for (long element : (long[]) o) {
+                packed.varint(zigzag(element));
+            }
+            record(field, packed);
+            break;
+        }
+        case BinaryTemplateWriter.TYPE_FLOAT_ARRAY: {
+            RecordWriter packed = new RecordWriter();
+            for (float element : (float[]) o) {
+                packed.fixed32(Float.floatToRawIntBits(element));
+            }
+            record(field, packed);
+            break;
+        }
+        case BinaryTemplateWriter.TYPE_DOUBLE_ARRAY: {
+            RecordWriter packed = new RecordWriter();
+            for (double element : (double[]) o) {
+                packed.fixed64(Double.doubleToRawLongBits(element));
+            }
+            record(field, packed);
+            break;
+        }
+        case BinaryTemplateWriter.TYPE_STRING_ARRAY:
+            record(field, strings((String[]) o));
+            break;
+        default:
+            throw new IOException("Property values of " + o.getClass().getName()
+                    + " cannot be written to a record template");
+        }
+    }
+
+    private static RecordWriter strings(Object[] strings) {
+        RecordWriter r_list = new RecordWriter();
+        for (Object element : strings) {
+            if (element == null) {
+                r_list.field(LIST_NULL, 0);
+            } else {
+                r_list.string(LIST_STRING, (String) element);
+            }
+        }
+        return r_list;
+    }
+
+    private void varint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private void fixed32(int value) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            out.write(value >>> shift);
+        }
+    }
+
+    private void fixed64(long value) {
+        for (int shift = 0; shift < 64; shift += 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    private static long zigzag(int value) {
+        return (value << 1 ^ value >> 31) & 0xFFFFFFFFL;
+    }
+
+    private static long zigzag(long value) {
+        return value << 1 ^ value >> 63;
+    }
+}
@@ -0,0 +1,673 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+import uk.ac.cam.echo2016.multinarrative.NarrativeInstance;
+import uk.ac.cam.echo2016.multinarrative.NarrativeTemplate;
+
+/**
+ * A single file holding many save slots, such as the instances of every
+ * player of a server, so that each save does not need a file of its own. The
+ * file is laid out as:
+ *
+ * <pre>
+ * header   magic, version, offset and length of the index
+ * records  the bytes of each slot, one after another
+ * index    for each slot: name, offset, length, CRC-32, time saved and the
+ *          space the record takes in the file
+ * journal  a frame for each save and removal since the index was written
+ * </pre>
+ *
+ * Records are never overwritten. Saving a slot appends a single frame to the
+ * journal holding its name, checksums and new record, so the cost of a save
+ * does not depend on the number of slots. A frame that was cut off by a crash
+ * is discarded when the container is next opened, leaving the previous
+ * contents of the file readable. Once the journal has as many frames as there
+ * are slots, a new index is written after it and the header pointed at it, so
+ * that opening the container reads a bounded number of frames.
+ *
+ * <p>
+ * The space left behind by replaced records is reclaimed by
+ * {@link #compact()}, which copies the live records to a new file and
+ * replaces the container with it atomically. Once the unused space is larger
+ * than the live data it is started on the background executor; slots can be
+ * read and saved while the records are being copied.
+ *
+ * <p>
+ * A container may be used from several threads, but only one
+ * {@code SaveContainer} may have a file open at a time.
+ *
+ * @version 1.0
+ */
+public class SaveContainer implements Closeable {
+    static final int MAGIC = 0x4E534C54; // 'N' 'S' 'L' 'T'
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final byte FRAME_WRITE = 1;
+    static final byte FRAME_REMOVE = 2;
+    /** The fewest frames the journal holds before a new index is written */
+    static final int CHECKPOINT_INTERVAL = 256;
+    /** Longer than the header of any frame, whose slot name is at most 64 KiB */
+    static final int MAX_FRAME_HEADER = 1 << 17;
+    /** Unused space below which the container is not compacted automatically */
+    static final long COMPACT_THRESHOLD = 1 << 16;
+
+    private static Executor defaultExecutor = null;
+
+    private final Path path;
+    private final Executor executor;
+    /** Guarded by {@code this}, as are the fields below */
+    private FileChannel channel;
+    private LinkedHashMap<String, Slot> slots;
+    private long indexLength;
+    /** Bytes of the file in use: the header, the live records and the index */
+    private long liveBytes;
+    /** The number of frames written since the index */
+    private int journalFrames = 0;
+    private boolean compacting = false;
+    private boolean closed = false;
+
+    /** Where the record of a slot is; never changed once created */
+    private static class Slot {
+        final long offset;
+        final int length;
+        final int crc;
+        final long saved;
+        /** The bytes of the file taken by the record, including its frame */
+        final int size;
+
+        Slot(long offset, int length, int crc, long saved, int size) {
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+            this.saved = saved;
+            this.size = size;
+        }
+    }
+
+    private SaveContainer(Path path, Executor executor) {
+        this.path = path;
+        this.executor = executor;
+    }
+
+    /**
+     * Opens the container {@code filename}, creating it if it does not exist,
+     * and compacts it in the background on a shared daemon thread when
+     * needed.
+     *
+     * @throws IOException
+     *             if the file cannot be opened or is not a container
+     */
+    public static SaveContainer open(String filename) throws IOException {
+        return open(filename, getDefaultExecutor());
+    }
+
+    /**
+     * Opens the container {@code filename} as {@link #open(String)} does,
+     * compacting it on {@code executor}, or never compacting it automatically
+     * if {@code executor} is null.
+     */
+    public static SaveContainer open(String filename, Executor executor) throws IOException {
+        SaveContainer r_container = new SaveContainer(Paths.get(filename).toAbsolutePath(), executor);
+        r_container.channel = FileChannel.open(r_container.path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            r_container.readIndex();
+        } catch (IOException | RuntimeException e) {
+            r_container.channel.close();
+            throw e;
+        }
+        return r_container;
+    }
+
+    private static synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor == null)
+            defaultExecutor = BackgroundExecutors.newSingleThread("SaveContainer", true);
+        return defaultExecutor;
+    }
+
+    /**
+     * @return the names of the slots, in the order they were first saved
+     */
+    public synchronized List<String> getSlots() {
+        return new ArrayList<String>(slots.keySet());
+    }
+
+    public synchronized boolean contains(String slot) {
+        return slots.containsKey(slot);
+    }
+
+    /**
+     * @return the time {@code slot} was last saved, in milliseconds since the
+     *         epoch, or -1 if there is no such slot
+     */
+    public synchronized long getSaveTime(String slot) {
+        Slot r_slot = slots.get(slot);
+        return r_slot == null ? -1 : r_slot.saved;
+    }
+
+    /**
+     * @return the size of the record of {@code slot} in bytes, or -1 if there
+     *         is no such slot
+     */
+    public synchronized int getLength(String slot) {
+        Slot r_slot = slots.get(slot);
+        return r_slot == null ? -1 : r_slot.length;
+    }
+
+    /**
+     * @return the size of the file, including unused space
+     */
+    public synchronized long getFileSize() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * @return the space in the file taken by replaced records, old indexes
+     *         and removals
+     */
+    public synchronized long getUnusedSize() throws IOException {
+        return channel.size() - liveBytes;
+    }
+
+    /**
+     * Reads the record of {@code slot}.
+     *
+     * @return the bytes saved, or null if there is no such slot
+     * @throws IOException
+     *             if the record cannot be read or does not match its checksum
+     */
+    public synchronized byte[] read(String slot) throws IOException {
+        Slot r_slot = slots.get(slot);
+        if (r_slot == null)
+            return null;
+        byte[] r_bytes = new byte[r_slot.length];
+        readFully(channel, ByteBuffer.wrap(r_bytes), r_slot.offset);
+        CRC32 crc = new CRC32();
+        crc.update(r_bytes);
+        if ((int) crc.getValue() != r_slot.crc)
+            throw new IOException("Slot " + slot + " of " + path + " is corrupt");
+        return r_bytes;
+    }
+
+    /**
+     * Saves {@code bytes} as the record of {@code slot}, replacing any record
+     * it had. The other slots are not rewritten.
+     */
+    public void write(String slot, byte[] bytes) throws IOException {
+        if (slot == null)
+            throw new NullPointerException("slot");
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        long saved = System.currentTimeMillis();
+        byte[] header = encodeFrameHeader(FRAME_WRITE, slot, saved, (int) crc.getValue(), bytes.length);
+        synchronized (this) {
+            long offset = channel.size();
+            appendFrame(offset, header, bytes);
+            Slot written = new Slot(offset + header.length, bytes.length, (int) crc.getValue(), saved,
+                    header.length + bytes.length);
+            Slot previous = slots.put(slot, written);
+            liveBytes += written.size - (previous == null ? 0 : previous.size);
+            checkpointIfNeeded();
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Saves the contents written by {@code writer} as the record of
+     * {@code slot}.
+     */
+    public void write(String slot, SaveStreams.StreamWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writer.write(bytes);
+        write(slot, bytes.toByteArray());
+    }
+
+    /**
+     * Removes {@code slot}.
+     *
+     * @return true if there was such a slot
+     */
+    public boolean remove(String slot) throws IOException {
+        synchronized (this) {
+            if (!slots.containsKey(slot))
+                return false;
+            appendFrame(channel.size(), encodeFrameHeader(FRAME_REMOVE, slot, 0, 0, 0), null);
+            liveBytes -= slots.remove(slot).size;
+            checkpointIfNeeded();
+        }
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Saves {@code instance} in {@code slot} with Java serialization, as
+     * {@link SaveWriter#saveObject(String, Object)} saves it to a file.
+     */
+    public void putInstance(String slot, NarrativeInstance instance) throws IOException {
+        write(slot, out -> {
+            try (OutputStream compressed = SaveStreams.getDefaultCompression().wrap(out)) {
+                ObjectOutputStream oos = new ObjectOutputStream(compressed);
+                oos.writeObject(instance);
+                oos.flush();
+            }
+        });
+    }
+
+    /**
+     * @return the instance saved in {@code slot} with
+     *         {@link #putInstance(String, NarrativeInstance)}, or null if there
+     *         is no such slot
+     */
+    public NarrativeInstance getInstance(String slot) throws IOException {
+        try (InputStream in = openSlot(slot)) {
+            if (in == null)
+                return null;
+            return (NarrativeInstance) new ObjectInputStream(in).readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Slot " + slot + " does not hold an instance", e);
+        }
+    }
+
+    /**
+     * Saves {@code instance} in {@code slot} as the differences between it
+     * and {@code template}, as
+     * {@link SaveWriter#saveInstanceDelta(String, NarrativeInstance, NarrativeTemplate)}
+     * saves it to a file.
+     */
+    public void putInstanceDelta(String slot, NarrativeInstance instance, NarrativeTemplate template)
+            throws IOException {
+        SaveStreams.StreamWriter delta = SaveWriter.snapshotInstanceDelta(instance, template);
+        write(slot, out -> {
+            try (OutputStream compressed = SaveStreams.getDefaultCompression().wrap(out)) {
+                delta.write(compressed);
+            }
+        });
+    }
+
+    /**
+     * @return the instance saved in {@code slot} with
+     *         {@link #putInstanceDelta(String, NarrativeInstance, NarrativeTemplate)},
+     *         or null if there is no such slot
+     */
+    public NarrativeInstance getInstanceDelta(String slot, NarrativeTemplate template) throws IOException {
+        try (InputStream in = openSlot(slot)) {
+            if (in == null)
+                return null;
+            return SaveReader.readInstanceDelta(in, path + ":" + slot, template);
+        }
+    }
+
+    private InputStream openSlot(String slot) throws IOException {
+        byte[] bytes = read(slot);
+        return bytes == null ? null : SaveStreams.openInput(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Starts {@link #compact()} on the background executor.
+     *
+     * @return a future completed once the container has been compacted
+     */
+    public CompletableFuture<Void> compactInBackground() {
+        CompletableFuture<Void> r_future = new CompletableFuture<Void>();
+        Executor background = executor == null ? getDefaultExecutor() : executor;
+        background.execute(() -> {
+            try {
+                compact();
+                r_future.complete(null);
+            } catch (IOException | RuntimeException e) {
+                r_future.completeExceptionally(e);
+            }
+        });
+        return r_future;
+    }
+
+    /**
+     * Copies the live records to a new file and replaces the container with
+     * it. Records are copied without holding the lock on the container, so
+     * slots can be read and saved meanwhile; those saved during the copy are
+     * copied again at the end. Does nothing if the container is already being
+     * compacted.
+     */
+    public void compact() throws IOException {
+        LinkedHashMap<String, Slot> snapshot;
+        FileChannel source;
+        synchronized (this) {
+            if (compacting || closed)
+                return;
+            compacting = true;
+            snapshot = new LinkedHashMap<String, Slot>(slots);
+            source = channel;
+        }
+        Path temp = null;
+        FileChannel target = null;
+        boolean replaced = false;
+        try {
+            temp = SaveStreams.createTempFile(path);
+            target = FileChannel.open(temp, StandardOpenOption.WRITE);
+            LinkedHashMap<String, Slot> moved = new LinkedHashMap<String, Slot>();
+            long position = HEADER_SIZE;
+            // Records are never overwritten, so they can be read while the
+            // container is in use
+            for (Map.Entry<String, Slot> entry : snapshot.entrySet()) {
+                Slot slot = entry.getValue();
+                copy(source, slot.offset, slot.length, target, position);
+                moved.put(entry.getKey(), new Slot(position, slot.length, slot.crc, slot.saved, slot.length));
+                position += slot.length;
+            }
+            synchronized (this) {
+                if (closed)
+                    return;
+                LinkedHashMap<String, Slot> r_slots = new LinkedHashMap<String, Slot>();
+                for (Map.Entry<String, Slot> entry : slots.entrySet()) {
+                    Slot slot = entry.getValue();
+                    if (snapshot.get(entry.getKey()) == slot) {
+                        r_slots.put(entry.getKey(), moved.get(entry.getKey()));
+                    } else {
+                        // Saved while the records were being copied
+                        copy(channel, slot.offset, slot.length, target, position);
+                        r_slots.put(entry.getKey(),
+                                new Slot(position, slot.length, slot.crc, slot.saved, slot.length));
+                        position += slot.length;
+                    }
+                }
+                byte[] index = encodeIndex(r_slots);
+                writeFully(target, ByteBuffer.wrap(index), position);
+                writeFully(target, encodeHeader(position, index.length), 0);
+                target.force(true);
+                target.close();
+
+                channel.close();
+                SaveStreams.replace(temp, path);
+                replaced = true;
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                slots = r_slots;
+                indexLength = index.length;
+                liveBytes = position + index.length;
+                journalFrames = 0;
+            }
+        } finally {
+            if (target != null && target.isOpen())
+                target.close();
+            if (temp != null && !replaced)
+                Files.deleteIfExists(temp);
+            synchronized (this) {
+                compacting = false;
+                if (!replaced && !closed && !channel.isOpen()) {
+                    // The old file was closed but could not be replaced
+                    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        // Stops a compaction in progress from reopening the file
+        closed = true;
+        channel.close();
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (executor == null)
+            return;
+        synchronized (this) {
+            long unused = channel.size() - liveBytes;
+            if (compacting || unused < COMPACT_THRESHOLD || unused < liveBytes)
+                return;
+        }
+        compactInBackground();
+    }
+
+    private void readIndex() throws IOException {
+        slots = new LinkedHashMap<String, Slot>();
+        if (channel.size() == 0) {
+            liveBytes = HEADER_SIZE;
+            writeIndex(HEADER_SIZE);
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != MAGIC)
+            throw new IOException(path + " is not a save container");
+        int version = header.getInt(4);
+        if (version != VERSION)
+            throw new IOException("Unsupported save container version " + version);
+        long indexOffset = header.getLong(8);
+        indexLength = header.getInt(16);
+        if (indexOffset < HEADER_SIZE || indexLength < 4 || indexOffset + indexLength > channel.size())
+            throw new IOException(path + " has a corrupt index");
+        byte[] index = new byte[(int) indexLength];
+        readFully(channel, ByteBuffer.wrap(index), indexOffset);
+        liveBytes = HEADER_SIZE + indexLength;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+        for (int count = in.readInt(); count > 0; --count) {
+            String name = in.readUTF();
+            Slot slot = new Slot(in.readLong(), in.readInt(), in.readInt(), in.readLong(), in.readInt());
+            if (slot.offset < HEADER_SIZE || slot.length < 0 || slot.offset + slot.length > indexOffset)
+                throw new IOException(path + " has a corrupt index");
+            slots.put(name, slot);
+            liveBytes += slot.size;
+        }
+        readJournal(indexOffset + indexLength);
+    }
+
+    /**
+     * Applies the frames written after the index, which start at
+     * {@code position}. The journal ends at the first frame that is cut off or
+     * does not match its checksum, and anything after it is removed.
+     */
+    private void readJournal(long position) throws IOException {
+        long size = channel.size();
+        ByteBuffer length = ByteBuffer.allocate(4);
+        String lastName = null;
+        Slot lastPrevious = null;
+        Slot last = null;
+        while (position + 8 <= size) {
+            length.clear();
+            readFully(channel, length, position);
+            int headerLength = length.getInt(0);
+            if (headerLength < 8 || headerLength > MAX_FRAME_HEADER || position + headerLength > size)
+                break;
+            byte[] header = new byte[headerLength];
+            readFully(channel, ByteBuffer.wrap(header), position);
+            CRC32 crc = new CRC32();
+            crc.update(header, 0, headerLength - 4);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(header, 4, headerLength - 4));
+            byte type = in.readByte();
+            String name = in.readUTF();
+            long saved = in.readLong();
+            int dataCrc = in.readInt();
+            int dataLength = in.readInt();
+            if ((int) crc.getValue() != ByteBuffer.wrap(header).getInt(headerLength - 4) || dataLength < 0
+                    || position + headerLength + dataLength > size)
+                break;
+            Slot previous;
+            if (type == FRAME_WRITE) {
+                last = new Slot(position + headerLength, dataLength, dataCrc, saved, headerLength + dataLength);
+                previous = slots.put(name, last);
+                liveBytes += last.size;
+            } else if (type == FRAME_REMOVE) {
+                last = null;
+                previous = slots.remove(name);
+            } else {
+                break;
+            }
+            if (previous != null)
+                liveBytes -= previous.size;
+            lastName = name;
+            lastPrevious = previous;
+            position += headerLength + dataLength;
+            ++journalFrames;
+        }
+        if (last != null) {
+            // Only the last record can have been torn by a crash, as each
+            // frame is forced to disk before the next is written
+            byte[] bytes = new byte[last.length];
+            readFully(channel, ByteBuffer.wrap(bytes), last.offset);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if ((int) crc.getValue() != last.crc) {
+                position -= last.size;
+                liveBytes -= last.size;
+                if (lastPrevious == null) {
+                    slots.remove(lastName);
+                } else {
+                    slots.put(lastName, lastPrevious);
+                    liveBytes += lastPrevious.size;
+                }
+                --journalFrames;
+            }
+        }
+        if (position < size)
+            channel.truncate(position);
+    }
+
+    /**
+     * Appends a frame with {@code header} and {@code data}, removing any part
+     * of it that was written if it could not be written in full. Must be
+     * called holding the lock.
+     */
+    private void appendFrame(long offset, byte[] header, byte[] data) throws IOException {
+        try {
+            writeFully(channel, ByteBuffer.wrap(header), offset);
+            if (data != null)
+                writeFully(channel, ByteBuffer.wrap(data), offset + header.length);
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            try {
+                channel.truncate(offset);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        ++journalFrames;
+    }
+
+    /**
+     * Writes a new index once the journal is long enough that reading it
+     * would cost more than the index. Must be called holding the lock.
+     */
+    private void checkpointIfNeeded() throws IOException {
+        if (journalFrames >= Math.max(CHECKPOINT_INTERVAL, slots.size()))
+            writeIndex(channel.size());
+    }
+
+    /**
+     * Writes the index at {@code offset}, the end of the file, and then points
+     * the header at it, emptying the journal. Must be called holding the lock.
+     */
+    private void writeIndex(long offset) throws IOException {
+        byte[] index = encodeIndex(slots);
+        writeFully(channel, ByteBuffer.wrap(index), offset);
+        channel.force(false);
+        writeFully(channel, encodeHeader(offset, index.length), 0);
+        channel.force(false);
+        liveBytes += index.length - indexLength;
+        indexLength = index.length;
+        journalFrames = 0;
+    }
+
+    private static byte[] encodeIndex(Map<String, Slot> slots) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(slots.size());
+        for (Map.Entry<String, Slot> entry : slots.entrySet()) {
+            Slot slot = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeLong(slot.offset);
+            out.writeInt(slot.length);
+            out.writeInt(slot.crc);
+            out.writeLong(slot.saved);
+            out.writeInt(slot.size);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the header of a frame: its length, the type, slot name, time
+     *         saved, CRC-32 and length of the record that follows it, and a
+     *         CRC-32 of the header
+     */
+    private static byte[] encodeFrameHeader(byte type, String slot, long saved, int crc, int length)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeByte(type);
+        out.writeUTF(slot);
+        out.writeLong(saved);
+        out.writeInt(crc);
+        out.writeInt(length);
+        out.writeInt(0);
+        out.flush();
+        ByteBuffer r_header = ByteBuffer.wrap(bytes.toByteArray());
+        r_header.putInt(0, r_header.capacity());
+        CRC32 check = new CRC32();
+        check.update(r_header.array(), 0, r_header.capacity() - 4);
+        r_header.putInt(r_header.capacity() - 4, (int) check.getValue());
+        return r_header.array();
+    }
+
+    private static ByteBuffer encodeHeader(long indexOffset, int indexLength) {
+        ByteBuffer r_header = ByteBuffer.allocate(HEADER_SIZE);
+        r_header.putInt(MAGIC);
+        r_header.putInt(VERSION);
+        r_header.putLong(indexOffset);
+        r_header.putInt(indexLength);
+        r_header.clear();
+        return r_header;
+    }
+
+    private static void copy(FileChannel from, long offset, int length, FileChannel to, long position)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, SaveStreams.BUFFER_SIZE));
+        for (long done = 0; done < length;) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - done));
+            readFully(from, buffer, offset + done);
+            buffer.flip();
+            writeFully(to, buffer, position + done);
+            done += buffer.limit();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of save container");
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
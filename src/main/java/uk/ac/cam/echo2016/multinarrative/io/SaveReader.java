@@ -1,47 +1,312 @@
 package uk.ac.cam.echo2016.multinarrative.io;
 
-import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import uk.ac.cam.echo2016.multinarrative.BatchResult;
+import uk.ac.cam.echo2016.multinarrative.CompiledNarrative;
 import uk.ac.cam.echo2016.multinarrative.GUINarrative;
+import uk.ac.cam.echo2016.multinarrative.GraphElementNotFoundException;
+import uk.ac.cam.echo2016.multinarrative.InvalidGraphException;
+import uk.ac.cam.echo2016.multinarrative.NarrativeEvent;
 import uk.ac.cam.echo2016.multinarrative.NarrativeInstance;
 import uk.ac.cam.echo2016.multinarrative.NarrativeTemplate;
 
 public class SaveReader {
     public static GUINarrative loadGUINarrative(String filename) throws IOException {
-        ObjectInputStream ois = null;
-        try {
-            ois = new ObjectInputStream(new FileInputStream(filename));
-            return (GUINarrative) ois.readObject();
-        } catch (ClassNotFoundException e) {
-            throw new IOException();
-        } finally {
-            ois.close();
-        }
+        return loadObject(filename, GUINarrative.class);
     }
 
     public static NarrativeInstance loadNarrativeInstance(String filename) throws IOException {
-        ObjectInputStream ois = null;
-        try {
-            ois = new ObjectInputStream(new FileInputStream(filename));
-            return (NarrativeInstance) ois.readObject();
+        return loadObject(filename, NarrativeInstance.class);
+    }
+
+    /**
+     * Reads an object saved with {@link SaveWriter#saveObject(String, Object)},
+     * with any compression.
+     */
+    public static <T> T loadObject(String filename, Class<T> type) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(SaveStreams.openInput(filename))) {
+            return type.cast(ois.readObject());
         } catch (ClassNotFoundException e) {
-            throw new IOException();
-        } finally {
-            ois.close();
+            throw new IOException(e);
         }
     }
 
+    /**
+     * Loads a template saved either with
+     * {@link SaveWriter#saveTemplate(String, NarrativeTemplate)}, in which
+     * case the file is mapped into memory and read in place unless it is
+     * compressed, with {@link SaveWriter#saveTemplateRecords(String, NarrativeTemplate)},
+     * or with {@link SaveWriter#saveObject(String, Object)}.
+     */
     public static NarrativeTemplate loadNarrativeTemplate(String filename) throws IOException {
-        ObjectInputStream ois = null;
-        try {
-            ois = new ObjectInputStream(new FileInputStream(filename));
+        return loadNarrativeTemplate(filename, false);
+    }
+
+    /**
+     * Loads a template as {@link #loadNarrativeTemplate(String)} does. If
+     * {@code lazyProperties} is set and the file is a binary template, only
+     * the graph and the global properties are read straight away; the
+     * properties of each node and route are decoded from the file the first
+     * time they are requested.
+     * 
+     * @param filename
+     *            the file to read
+     * @param lazyProperties
+     *            whether to put off decoding node and route properties
+     */
+    public static NarrativeTemplate loadNarrativeTemplate(String filename, boolean lazyProperties)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            channel.read(magic, 0);
+            magic.flip();
+            if (BinaryTemplateReader.isBinaryTemplate(magic)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return new BinaryTemplateReader(buffer).readTemplate(lazyProperties);
+            }
+        }
+        try (InputStream in = new BufferedInputStream(SaveStreams.openInput(filename))) {
+            in.mark(4);
+            byte[] magic = new byte[4];
+            int read = in.read(magic);
+            in.reset();
+            if (read == 4 && BinaryTemplateReader.isBinaryTemplate(ByteBuffer.wrap(magic))) {
+                // A compressed binary template, so it cannot be mapped
+                byte[] bytes = new byte[SaveStreams.BUFFER_SIZE];
+                int length = 0;
+                while ((read = in.read(bytes, length, bytes.length - length)) != -1) {
+                    length += read;
+                    if (length == bytes.length)
+                        bytes = Arrays.copyOf(bytes, length * 2);
+                }
+                return new BinaryTemplateReader(ByteBuffer.wrap(bytes, 0, length).slice())
+                        .readTemplate(lazyProperties);
+            }
+            if (read == 4 && RecordReader.isRecordFile(ByteBuffer.wrap(magic)))
+                return RecordReader.readTemplate(in);
+            ObjectInputStream ois = new ObjectInputStream(in);
             return (NarrativeTemplate) ois.readObject();
         } catch (ClassNotFoundException e) {
-            throw new IOException();
-        } finally {
-            ois.close();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Loads an instance saved with
+     * {@link SaveWriter#saveInstanceEvents(String, NarrativeInstance)} by
+     * generating a new shared instance of {@code template} and replaying the
+     * saved events and properties on it.
+     * 
+     * @param filename
+     *            the file to read
+     * @param template
+     *            the template the instance was generated from
+     * @return the loaded instance
+     * @throws IOException
+     *             if the file is not an instance event file, was saved from a
+     *             different template, or its events cannot be replayed
+     */
+    public static NarrativeInstance loadInstanceEvents(String filename, NarrativeTemplate template)
+            throws IOException {
+        try (DataInputStream in = new DataInputStream(SaveStreams.openInput(filename))) {
+            if (in.readInt() != SaveWriter.EVENTS_MAGIC)
+                throw new IOException(filename + " is not an instance event file");
+            int version = in.readInt();
+            if (version != SaveWriter.EVENTS_VERSION)
+                throw new IOException("Unsupported instance event file version " + version);
+            if (in.readLong() != template.getFingerprint())
+                throw new IOException(filename + " was saved from a different template");
+
+            NarrativeInstance instance;
+            try {
+                instance = template.generateSharedInstance();
+            } catch (InvalidGraphException e) {
+                throw new IOException(e);
+            }
+            int record;
+            while ((record = in.read()) != -1) {
+                if (record != SaveWriter.RECORD_SAVE)
+                    throw new IOException("Unknown record " + record + " in " + filename);
+                byte[] save;
+                try {
+                    int length = in.readInt();
+                    if (length < 0)
+                        throw new IOException("Corrupt record in " + filename);
+                    save = SaveStreams.readFully(in, length);
+                } catch (EOFException e) {
+                    // The last append was cut off, so the file ends with the save before it
+                    break;
+                }
+                applySave(instance, new DataInputStream(new ByteArrayInputStream(save)), filename);
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Applies one save of an instance event file: its events in order, then
+     * the property entries that had changed by the end of them.
+     */
+    private static void applySave(NarrativeInstance instance, DataInputStream in, String filename)
+            throws IOException {
+        ArrayList<NarrativeEvent> events = new ArrayList<NarrativeEvent>();
+        int record;
+        while ((record = in.read()) != -1) {
+            if (record == SaveWriter.RECORD_EVENT) {
+                int type = in.readByte();
+                events.add(new NarrativeEvent(type, in.readUTF()));
+                continue;
+            }
+            replay(instance, events);
+            events.clear();
+            // Elements killed by the events are skipped
+            PropertyChanges.read(in, record, (kind, id) -> {
+                if (kind == SaveWriter.RECORD_GLOBAL)
+                    return instance.getGlobalProperties();
+                if (kind == SaveWriter.RECORD_ROUTE)
+                    return instance.getRoute(id) == null ? null : instance.getRouteProperties(id);
+                return instance.getNode(id) == null ? null : instance.getNodeProperties(id);
+            }, filename);
+        }
+        replay(instance, events);
+    }
+
+    /**
+     * Loads a narrative saved as JSON with
+     * {@link SaveWriter#saveJson(String, GUINarrative)} or by another tool.
+     */
+    public static GUINarrative loadGUINarrativeJson(String filename) throws IOException {
+        try (Reader in = utf8(SaveStreams.openInput(filename))) {
+            return JsonNarrativeReader.readGUINarrative(in);
+        }
+    }
+
+    /**
+     * Loads a template from any narrative saved as JSON.
+     */
+    public static NarrativeTemplate loadNarrativeTemplateJson(String filename) throws IOException {
+        try (Reader in = utf8(SaveStreams.openInput(filename))) {
+            return JsonNarrativeReader.readTemplate(in);
+        }
+    }
+
+    /**
+     * Loads an instance saved as JSON with
+     * {@link SaveWriter#saveJson(String, NarrativeInstance)}, as a shared
+     * instance of a template read from the same file.
+     */
+    public static NarrativeInstance loadNarrativeInstanceJson(String filename) throws IOException {
+        try (Reader in = utf8(SaveStreams.openInput(filename))) {
+            return JsonNarrativeReader.readInstance(in);
+        }
+    }
+
+    private static Reader utf8(InputStream in) {
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Loads an instance saved with
+     * {@link SaveWriter#saveInstanceDelta(String, NarrativeInstance)} by
+     * applying the saved differences to a new shared instance of
+     * {@code template}. The event log of the instance starts empty.
+     * 
+     * @param filename
+     *            the file to read
+     * @param template
+     *            the template the instance was generated from
+     * @return the loaded instance
+     * @throws IOException
+     *             if the file is not an instance delta file, was saved from a
+     *             different template, or refers to elements not in the graph
+     */
+    public static NarrativeInstance loadInstanceDelta(String filename, NarrativeTemplate template)
+            throws IOException {
+        try (InputStream stream = SaveStreams.openInput(filename)) {
+            return readInstanceDelta(stream, filename, template);
+        }
+    }
+
+    /**
+     * Reads an instance delta from {@code stream}, which must already be
+     * decompressed.
+     * 
+     * @param name
+     *            the name of the file or slot being read, for error messages
+     */
+    static NarrativeInstance readInstanceDelta(InputStream stream, String name, NarrativeTemplate template)
+            throws IOException {
+        DataInputStream data = new DataInputStream(stream);
+        if (data.readInt() != SaveWriter.DELTA_MAGIC)
+            throw new IOException(name + " is not an instance delta file");
+        int version = data.readInt();
+        if (version != SaveWriter.DELTA_VERSION)
+            throw new IOException("Unsupported instance delta file version " + version);
+        if (data.readLong() != template.getFingerprint())
+            throw new IOException(name + " was saved from a different template");
+
+        NarrativeInstance instance;
+        try {
+            instance = template.generateSharedInstance();
+            List<String> killedNodes = readIds(data);
+            List<String> killedRoutes = readIds(data);
+            List<String> completedRoutes = readIds(data);
+            instance.restoreState(killedNodes, killedRoutes, completedRoutes, readIds(data));
+        } catch (InvalidGraphException | GraphElementNotFoundException e) {
+            throw new IOException(e);
+        }
+        CompiledNarrative graph = instance.getGraph();
+        for (int changed = data.readInt(); changed > 0; --changed) {
+            PropertyChanges.read(data, data.readByte(), (kind, id) -> {
+                if (kind == SaveWriter.RECORD_GLOBAL)
+                    return instance.getGlobalProperties();
+                int route = graph.getRouteId(id);
+                int node = graph.getNodeId(id);
+                if (kind == SaveWriter.RECORD_ROUTE && route >= 0)
+                    return instance.getRouteProperties(graph.getRoute(route));
+                if (kind == SaveWriter.RECORD_NODE && node >= 0)
+                    return instance.getNodeProperties(graph.getNode(node));
+                throw new IOException("Unknown element " + id + " in " + name);
+            }, name);
+        }
+        return instance;
+    }
+
+    private static List<String> readIds(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        ArrayList<String> r_ids = new ArrayList<String>(Math.min(count, 1024));
+        for (int i = 0; i < count; ++i) {
+            r_ids.add(in.readUTF());
+        }
+        return r_ids;
+    }
+
+    private static void replay(NarrativeInstance instance, ArrayList<NarrativeEvent> events) throws IOException {
+        if (events.isEmpty())
+            return;
+        BatchResult result = instance.apply(events);
+        if (result.hasFailures()) {
+            int index = result.getFailures().firstKey();
+            throw new IOException("Could not replay " + events.get(index), result.getFailures().get(index));
         }
     }
 }
@@ -0,0 +1,299 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import uk.ac.cam.echo2016.multinarrative.GUINarrative;
+import uk.ac.cam.echo2016.multinarrative.NarrativeInstance;
+import uk.ac.cam.echo2016.multinarrative.NarrativeTemplate;
+import uk.ac.cam.echo2016.multinarrative.NonUniqueStartException;
+
+/**
+ * Saves narratives in the background. Each save takes a snapshot of what is
+ * being saved on the calling thread, so the caller can carry on changing it
+ * straight away, and serializes and writes the snapshot on an executor. Files
+ * are replaced atomically, as with {@code SaveWriter}.
+ *
+ * <p>
+ * Saves to the same file are written one at a time, in order. If a file is
+ * saved again before an earlier save of it has started, the earlier snapshot
+ * is dropped and only the latest one is written; the futures of both saves
+ * complete once it has been.
+ *
+ * <p>
+ * Each method returns a {@code CompletableFuture} that completes when the file
+ * has been written, or completes exceptionally with whatever stopped it,
+ * usually an {@code IOException}. Callbacks that have to run on a particular thread, such as
+ * the JavaFX application thread, can be added with
+ * {@code whenCompleteAsync(action, Platform::runLater)}.
+ *
+ * @version 1.0
+ * @see SaveStreams#write(String, Compression, SaveStreams.StreamWriter)
+ */
+public class SaveService implements Closeable {
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private final HashMap<Path, Target> targets = new HashMap<Path, Target>();
+    private boolean closed;
+
+    /** The saves of one file */
+    private static class Target {
+        /** The save waiting to be written, or null */
+        Save queued;
+        boolean running;
+    }
+
+    private static class Save {
+        Compression compression;
+        SaveStreams.StreamWriter writer;
+        final ArrayList<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(1);
+    }
+
+    /**
+     * Creates a service with its own background thread, which stops when it
+     * has had nothing to save for a few seconds. The thread is not a daemon,
+     * so saves already taken are finished before the program exits.
+     */
+    public SaveService() {
+        ExecutorService pool = BackgroundExecutors.newSingleThread("SaveService", false);
+        this.executor = pool;
+        this.ownExecutor = pool;
+    }
+
+    /**
+     * Creates a service that writes files on {@code executor}, such as the
+     * worker pool of a game server. Different files may be written at the
+     * same time if the executor has more than one thread.
+     */
+    public SaveService(Executor executor) {
+        if (executor == null)
+            throw new NullPointerException("executor");
+        this.executor = executor;
+        this.ownExecutor = null;
+    }
+
+    /**
+     * Saves a copy of {@code narrative} with Java serialization, as
+     * {@link SaveWriter#saveObject(String, Object)} does.
+     */
+    public CompletableFuture<Void> saveNarrative(String filename, GUINarrative narrative) {
+        GUINarrative snapshot = narrative.copy();
+        return save(filename, SaveStreams.getDefaultCompression(), out -> {
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(snapshot);
+            oos.flush();
+        });
+    }
+
+    /**
+     * Generates the template of {@code narrative} and saves it in the binary
+     * template format, as {@link GUINarrative#saveTemplate(String)} does.
+     *
+     * @throws NonUniqueStartException
+     *             if the template cannot be generated, in which case nothing is
+     *             saved
+     */
+    public CompletableFuture<Void> exportTemplate(String filename, GUINarrative narrative)
+            throws NonUniqueStartException {
+        return saveTemplate(filename, narrative.generateTemplate());
+    }
+
+    /**
+     * Saves {@code template} in the binary template format, as
+     * {@link SaveWriter#saveTemplate(String, NarrativeTemplate)} does. The
+     * template is not copied, so it must not be changed while it is saved.
+     */
+    public CompletableFuture<Void> saveTemplate(String filename, NarrativeTemplate template) {
+        return save(filename, Compression.NONE, out -> {
+            DataOutputStream data = new DataOutputStream(out);
+            BinaryTemplateWriter.write(data, template);
+            data.flush();
+        });
+    }
+
+    /**
+     * Saves a shared {@code instance} in the format of
+     * {@link SaveWriter#saveInstanceEvents(String, NarrativeInstance)}. Only
+     * the events of the instance and the properties it has changed are
+     * encoded on the calling thread.
+     *
+     * @throws IOException
+     *             if the properties cannot be serialized
+     */
+    public CompletableFuture<Void> saveInstanceEvents(String filename, NarrativeInstance instance)
+            throws IOException {
+        return save(filename, Compression.NONE, SaveWriter.snapshotInstanceEvents(instance));
+    }
+
+    /**
+     * Saves {@code instance} in the format of
+     * {@link SaveWriter#saveInstanceDelta(String, NarrativeInstance, NarrativeTemplate)}.
+     * The differences from {@code template} are worked out on the calling
+     * thread.
+     */
+    public CompletableFuture<Void> saveInstanceDelta(String filename, NarrativeInstance instance,
+            NarrativeTemplate template) {
+        return save(filename, SaveStreams.getDefaultCompression(),
+                SaveWriter.snapshotInstanceDelta(instance, template));
+    }
+
+    /**
+     * Saves {@code instance} with Java serialization, as
+     * {@link SaveWriter#saveObject(String, Object)} does. An instance cannot be
+     * copied cheaply, so it is serialized on the calling thread and only
+     * compressed and written in the background; prefer
+     * {@link #saveInstanceEvents(String, NarrativeInstance)} for shared
+     * instances.
+     *
+     * @throws IOException
+     *             if the instance cannot be serialized
+     */
+    public CompletableFuture<Void> saveInstance(String filename, NarrativeInstance instance) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(instance);
+        }
+        return save(filename, SaveStreams.getDefaultCompression(), bytes::writeTo);
+    }
+
+    /**
+     * Writes {@code filename} in the background with {@code writer}, which
+     * must only use data that will not change before it is run.
+     *
+     * @param filename
+     *            the file to write
+     * @param compression
+     *            the compression to apply
+     * @param writer
+     *            writes the contents of the file
+     * @return a future completed when the file, or a later save of it, has
+     *         been written
+     * @throws IllegalStateException
+     *             if the service has been closed
+     */
+    public CompletableFuture<Void> save(String filename, Compression compression, SaveStreams.StreamWriter writer) {
+        if (compression == null)
+            throw new NullPointerException("compression");
+        Path path = Paths.get(filename).toAbsolutePath().normalize();
+        CompletableFuture<Void> r_future = new CompletableFuture<Void>();
+        synchronized (targets) {
+            if (closed)
+                throw new IllegalStateException("SaveService has been closed");
+            Target target = targets.get(path);
+            if (target == null) {
+                target = new Target();
+                targets.put(path, target);
+            }
+            if (target.queued == null) {
+                target.queued = new Save();
+            }
+            // Replaces any snapshot that has not been written yet
+            target.queued.compression = compression;
+            target.queued.writer = writer;
+            target.queued.futures.add(r_future);
+            if (!target.running) {
+                schedule(path, target);
+            }
+        }
+        return r_future;
+    }
+
+    /**
+     * @return the number of files with a save waiting or being written
+     */
+    public int getPendingCount() {
+        synchronized (targets) {
+            return targets.size();
+        }
+    }
+
+    /**
+     * Waits until every save taken so far has been written or has failed.
+     */
+    public void awaitPending() throws InterruptedException {
+        synchronized (targets) {
+            while (!targets.isEmpty()) {
+                targets.wait();
+            }
+        }
+    }
+
+    /**
+     * Stops the service taking new saves. Saves already taken are still
+     * written, after which the service's own thread, if it has one, stops.
+     */
+    @Override
+    public void close() {
+        synchronized (targets) {
+            closed = true;
+            if (targets.isEmpty() && ownExecutor != null) {
+                ownExecutor.shutdown();
+            }
+        }
+    }
+
+    /** Must be called holding the lock on {@code targets} */
+    private void schedule(Path path, Target target) {
+        target.running = true;
+        try {
+            executor.execute(() -> run(path, target));
+        } catch (RejectedExecutionException e) {
+            Save save = target.queued;
+            target.queued = null;
+            target.running = false;
+            targets.remove(path);
+            targets.notifyAll();
+            IOException error = new IOException("Could not schedule save of " + path, e);
+            for (CompletableFuture<Void> future : save.futures) {
+                future.completeExceptionally(error);
+            }
+        }
+    }
+
+    private void run(Path path, Target target) {
+        Save save;
+        synchronized (targets) {
+            save = target.queued;
+            target.queued = null;
+        }
+        Throwable error = null;
+        try {
+            SaveStreams.write(path.toString(), save.compression, save.writer);
+        } catch (Throwable e) {
+            // Errors as well, so that the futures complete and awaitPending()
+            // returns whatever went wrong
+            error = e;
+        } finally {
+            for (CompletableFuture<Void> future : save.futures) {
+                if (error == null) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(error);
+                }
+            }
+            synchronized (targets) {
+                if (target.queued != null) {
+                    schedule(path, target);
+                } else {
+                    target.running = false;
+                    targets.remove(path);
+                    targets.notifyAll();
+                    if (closed && targets.isEmpty() && ownExecutor != null) {
+                        ownExecutor.shutdown();
+                    }
+                }
+            }
+        }
+    }
+}
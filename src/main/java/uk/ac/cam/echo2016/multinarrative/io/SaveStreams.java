@@ -0,0 +1,212 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Opens the streams used by {@code SaveWriter} and {@code SaveReader}. Output
+ * is buffered, optionally compressed, and written to a temporary file that
+ * replaces the target only once it is complete, so a failed save never leaves
+ * a partly written file behind. Input is buffered and decompressed according
+ * to the header of the file.
+ * 
+ * @version 1.0
+ */
+public final class SaveStreams {
+    static final int BUFFER_SIZE = 1 << 16;
+
+    private static volatile Compression defaultCompression = Compression.NONE;
+
+    /**
+     * Writes the contents of a save file to an open stream.
+     */
+    public interface StreamWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private SaveStreams() {
+    }
+
+    /**
+     * Reads {@code length} bytes, growing the array as they arrive rather
+     * than trusting a length that may be corrupt.
+     * 
+     * @throws EOFException
+     *             if the stream ends first
+     */
+    static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] r_bytes = new byte[Math.min(length, BUFFER_SIZE)];
+        int read = 0;
+        while (read < length) {
+            if (read == r_bytes.length)
+                r_bytes = Arrays.copyOf(r_bytes, (int) Math.min(length, 2L * read));
+            int count = in.read(r_bytes, read, r_bytes.length - read);
+            if (count < 0)
+                throw new EOFException();
+            read += count;
+        }
+        return r_bytes;
+    }
+
+    /**
+     * @return the compression used by {@code SaveWriter} methods that are not
+     *         given one
+     */
+    public static Compression getDefaultCompression() {
+        return defaultCompression;
+    }
+
+    public static void setDefaultCompression(Compression compression) {
+        if (compression == null)
+            throw new NullPointerException("compression");
+        defaultCompression = compression;
+    }
+
+    /**
+     * Writes {@code filename} atomically: {@code writer} is given a buffered,
+     * compressed stream to a temporary file in the same directory, which is
+     * flushed to disk and moved over {@code filename} once the stream has been
+     * closed without error. The stream must not be closed by {@code writer}.
+     * 
+     * @param filename
+     *            the file to write
+     * @param compression
+     *            the compression to apply
+     * @param writer
+     *            writes the contents of the file
+     * @throws IOException
+     *             if the file cannot be written, in which case it is left
+     *             unchanged
+     */
+    public static void write(String filename, Compression compression, StreamWriter writer) throws IOException {
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path temp = createTempFile(target);
+        boolean written = false;
+        try {
+            try (OutputStream out = compression.wrap(
+                    new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE))) {
+                writer.write(out);
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            replace(temp, target);
+            written = true;
+        } finally {
+            if (!written)
+                Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Creates an empty temporary file in the directory of {@code target}, to be
+     * moved over it with {@link #replace(Path, Path)}. Unlike
+     * {@code Files.createTempFile}, which makes files only their owner can
+     * read, the file has the permissions of {@code target}, or those of any
+     * new file if {@code target} does not exist, so replacing a file keeps its
+     * permissions.
+     */
+    static Path createTempFile(Path target) throws IOException {
+        String prefix = target.getFileName().toString();
+        for (;;) {
+            Path r_temp = target.resolveSibling(
+                    prefix + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                Files.createFile(r_temp);
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+            try {
+                if (Files.exists(target))
+                    Files.setPosixFilePermissions(r_temp, Files.getPosixFilePermissions(target));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system, so new files take the permissions
+                // of their directory
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(r_temp);
+                throw e;
+            }
+            return r_temp;
+        }
+    }
+
+    /**
+     * Moves {@code temp} over {@code target}, atomically if the file system
+     * allows it.
+     */
+    static void replace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Opens {@code filename} for reading, decompressing it if it starts with a
+     * GZIP or zlib (DEFLATE) header.
+     * 
+     * @param filename
+     *            the file to read
+     * @return a buffered stream of the uncompressed contents
+     * @throws IOException
+     *             if the file cannot be opened
+     */
+    public static InputStream openInput(String filename) throws IOException {
+        return openInput(Files.newInputStream(Paths.get(filename)));
+    }
+
+    /**
+     * Buffers {@code stream} and decompresses it as
+     * {@link #openInput(String)} does. {@code stream} is closed if this fails.
+     */
+    static InputStream openInput(InputStream stream) throws IOException {
+        InputStream in = new BufferedInputStream(stream, BUFFER_SIZE);
+        try {
+            switch (detect(in)) {
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            case DEFLATE:
+                return new BufferedInputStream(new InflaterInputStream(in), BUFFER_SIZE);
+            default:
+                return in;
+            }
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the compression of the file read by {@code in}, which must
+     *         support {@code mark}
+     */
+    static Compression detect(InputStream in) throws IOException {
+        in.mark(2);
+        int b0 = in.read();
+        int b1 = in.read();
+        in.reset();
+        if (b0 == 0x1f && b1 == 0x8b)
+            return Compression.GZIP;
+        // zlib header: compression method 8 and a check value divisible by 31
+        if (b0 >= 0 && b1 >= 0 && (b0 & 0x0f) == 8 && (b0 << 8 | b1) % 31 == 0)
+            return Compression.DEFLATE;
+        return Compression.NONE;
+    }
+}
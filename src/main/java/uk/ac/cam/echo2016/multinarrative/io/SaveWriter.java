@@ -1,17 +1,445 @@
 package uk.ac.cam.echo2016.multinarrative.io;
 
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.BaseBundle;
+import uk.ac.cam.echo2016.multinarrative.CompiledNarrative;
+import uk.ac.cam.echo2016.multinarrative.GUINarrative;
+import uk.ac.cam.echo2016.multinarrative.NarrativeEvent;
+import uk.ac.cam.echo2016.multinarrative.NarrativeInstance;
+import uk.ac.cam.echo2016.multinarrative.NarrativeTemplate;
+import uk.ac.cam.echo2016.multinarrative.Node;
+import uk.ac.cam.echo2016.multinarrative.Route;
 
 public class SaveWriter {
+    /** Starts a save file holding a {@code NarrativeInstance} as events */
+    static final int EVENTS_MAGIC = 0x4E455631;
+    static final int EVENTS_VERSION = 1;
+    static final int RECORD_EVENT = 1;
+    static final int RECORD_GLOBAL = 2;
+    static final int RECORD_ROUTE = 3;
+    static final int RECORD_NODE = 4;
+    /** Holds the records of one save of an event file */
+    static final int RECORD_SAVE = 5;
+    /** The magic number, version and fingerprint at the start of an event file */
+    static final int EVENTS_HEADER_SIZE = 16;
+    /** Starts a save file holding a {@code NarrativeInstance} as a delta */
+    static final int DELTA_MAGIC = 0x4E444C31;
+    static final int DELTA_VERSION = 1;
+    /** Engine state kept in bitsets, and so left out of deltas */
+    static final String COMPLETED_KEY = "System.isCompleted";
+
     public static void saveObject(String filename, Object toSave) throws IOException {
-        ObjectOutputStream oos = null;
-        try {
-            oos = new ObjectOutputStream(new FileOutputStream(filename));
+        saveObject(filename, toSave, SaveStreams.getDefaultCompression());
+    }
+
+    /**
+     * Saves {@code toSave} with Java serialization, replacing
+     * {@code filename} only once the whole object has been written.
+     * 
+     * @param filename
+     *            the file to write
+     * @param toSave
+     *            the object to save
+     * @param compression
+     *            the compression to apply to the file
+     * @throws IOException
+     */
+    public static void saveObject(String filename, Object toSave, Compression compression) throws IOException {
+        SaveStreams.write(filename, compression, out -> {
+            ObjectOutputStream oos = new ObjectOutputStream(out);
             oos.writeObject(toSave);
-        } finally {
-            oos.close();
+            oos.flush();
+        });
+    }
+
+    /**
+     * Saves {@code template} in the binary template format, which
+     * {@link SaveReader#loadNarrativeTemplate(String)} maps into memory rather
+     * than deserializing. The file is not compressed, so that it can be
+     * mapped.
+     * 
+     * @param filename
+     *            the file to write
+     * @param template
+     *            the template to save
+     * @throws IOException
+     *             if the file cannot be written or the template is not a valid
+     *             graph
+     */
+    public static void saveTemplate(String filename, NarrativeTemplate template) throws IOException {
+        saveTemplate(filename, template, Compression.NONE);
+    }
+
+    /**
+     * Saves {@code template} in the binary template format with
+     * {@code compression}. A compressed template has to be read into memory
+     * rather than mapped.
+     */
+    public static void saveTemplate(String filename, NarrativeTemplate template, Compression compression)
+            throws IOException {
+        SaveStreams.write(filename, compression, out -> {
+            DataOutputStream data = new DataOutputStream(out);
+            BinaryTemplateWriter.write(data, template);
+            data.flush();
+        });
+    }
+
+    /**
+     * Saves {@code template} in the tagged record format described by
+     * {@link RecordWriter}. Unlike the binary template format, it is read by
+     * streaming rather than mapped, but files written by later versions, with
+     * fields this version does not know, can still be loaded. Read it back with
+     * {@link SaveReader#loadNarrativeTemplate(String)}.
+     */
+    public static void saveTemplateRecords(String filename, NarrativeTemplate template) throws IOException {
+        saveTemplateRecords(filename, template, Compression.NONE);
+    }
+
+    public static void saveTemplateRecords(String filename, NarrativeTemplate template, Compression compression)
+            throws IOException {
+        SaveStreams.write(filename, compression, out -> RecordWriter.write(out, template));
+    }
+
+    /**
+     * Saves {@code narrative} as JSON, in the format described by
+     * {@link JsonNarrativeWriter}, for exchange with other tools.
+     */
+    public static void saveJson(String filename, GUINarrative narrative) throws IOException {
+        SaveStreams.write(filename, Compression.NONE, out -> JsonNarrativeWriter.write(utf8(out), narrative));
+    }
+
+    /**
+     * Saves {@code template} as JSON, in the format described by
+     * {@link JsonNarrativeWriter}.
+     */
+    public static void saveJson(String filename, NarrativeTemplate template) throws IOException {
+        SaveStreams.write(filename, Compression.NONE, out -> JsonNarrativeWriter.write(utf8(out), template));
+    }
+
+    /**
+     * Saves the graph and state of {@code instance} as JSON, in the format
+     * described by {@link JsonNarrativeWriter}.
+     */
+    public static void saveJson(String filename, NarrativeInstance instance) throws IOException {
+        SaveStreams.write(filename, Compression.NONE, out -> JsonNarrativeWriter.write(utf8(out), instance));
+    }
+
+    private static Writer utf8(OutputStream out) {
+        return new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * What an event file holds, as last written by
+     * {@link SaveWriter#saveInstanceEvents(String, NarrativeInstance)} or
+     * {@link SaveWriter#appendInstanceEvents(String, NarrativeInstance, SavedEvents)},
+     * from which the next append works out what has changed.
+     */
+    public static final class SavedEvents {
+        final int eventCount;
+        /**
+         * Copies of the saved property bundles by identifier, with null for
+         * the global properties
+         */
+        final HashMap<String, BaseBundle> properties;
+        /** The length of the file once written */
+        final long length;
+
+        SavedEvents(int eventCount, HashMap<String, BaseBundle> properties, long length) {
+            this.eventCount = eventCount;
+            this.properties = properties;
+            this.length = length;
+        }
+
+        /**
+         * @return the number of events of the instance in the file
+         */
+        public int getEventCount() {
+            return eventCount;
+        }
+    }
+
+    /**
+     * Saves a shared {@code NarrativeInstance} as the fingerprint of its
+     * template, the property entries it has changed and the events it has
+     * recorded, rather than the whole graph. Load the file with
+     * {@link SaveReader#loadInstanceEvents(String, uk.ac.cam.echo2016.multinarrative.NarrativeTemplate)}.
+     * 
+     * @param filename
+     *            the file to write
+     * @param instance
+     *            the instance to save, generated with
+     *            {@code generateSharedInstance()}
+     * @return what was saved, to pass to
+     *         {@link #appendInstanceEvents(String, NarrativeInstance, SavedEvents)}
+     * @throws IOException
+     */
+    public static SavedEvents saveInstanceEvents(String filename, NarrativeInstance instance) throws IOException {
+        ByteArrayOutputStream save = new ByteArrayOutputStream();
+        SavedEvents r_saved = encodeEvents(instance, null, EVENTS_HEADER_SIZE, save);
+        // Not compressed, so that events can be appended
+        SaveStreams.write(filename, Compression.NONE, eventsWriter(instance, save));
+        return r_saved;
+    }
+
+    /**
+     * Copies the events and changed properties of {@code instance} and
+     * returns a writer that saves the copy in the format of
+     * {@link #saveInstanceEvents(String, NarrativeInstance)}, so that the
+     * instance can carry on changing while the file is written.
+     * 
+     * @throws IOException
+     *             if the properties cannot be serialized
+     */
+    static SaveStreams.StreamWriter snapshotInstanceEvents(NarrativeInstance instance) throws IOException {
+        ByteArrayOutputStream save = new ByteArrayOutputStream();
+        encodeEvents(instance, null, EVENTS_HEADER_SIZE, save);
+        return eventsWriter(instance, save);
+    }
+
+    private static SaveStreams.StreamWriter eventsWriter(NarrativeInstance instance, ByteArrayOutputStream save) {
+        long fingerprint = instance.getTemplate().getFingerprint();
+        return stream -> {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(EVENTS_MAGIC);
+            out.writeInt(EVENTS_VERSION);
+            out.writeLong(fingerprint);
+            save.writeTo(out);
+            out.flush();
+        };
+    }
+
+    /**
+     * Adds the events recorded by {@code instance} and the property entries it
+     * has changed since {@code saved} to a file written by
+     * {@link #saveInstanceEvents(String, NarrativeInstance)}, so the cost of
+     * an append depends only on what has changed. The additions are written
+     * as one record, which is ignored when loading if it was cut off by a
+     * crash, and are removed again if they cannot be written in full.
+     * 
+     * @param filename
+     *            the file to add to
+     * @param instance
+     *            the instance that was saved to the file
+     * @param saved
+     *            what the file holds, as returned when it was last written
+     * @return what was saved, to pass to the next append
+     * @throws IOException
+     *             if the file cannot be written or has been changed since
+     *             {@code saved} was returned
+     */
+    public static SavedEvents appendInstanceEvents(String filename, NarrativeInstance instance, SavedEvents saved)
+            throws IOException {
+        ByteArrayOutputStream save = new ByteArrayOutputStream();
+        SavedEvents r_saved = encodeEvents(instance, saved, saved.length, save);
+        if (save.size() == 0)
+            return saved;
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE)) {
+            if (channel.size() != saved.length)
+                throw new IOException(filename + " has changed since it was last saved");
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(save.toByteArray());
+                for (long position = saved.length; buffer.hasRemaining();) {
+                    position += channel.write(buffer, position);
+                }
+                channel.force(false);
+            } catch (IOException | RuntimeException e) {
+                try {
+                    channel.truncate(saved.length);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+        }
+        return r_saved;
+    }
+
+    /**
+     * Writes to {@code save} a record of the events of {@code instance} and
+     * the property entries it has changed since {@code previous}, or since it
+     * was generated if {@code previous} is null. Nothing is written if nothing
+     * has changed.
+     * 
+     * @param offset
+     *            where in the file the record will be written
+     * @return what the file will hold once the record is written
+     */
+    private static SavedEvents encodeEvents(NarrativeInstance instance, SavedEvents previous, long offset,
+            ByteArrayOutputStream save) throws IOException {
+        if (!instance.isShared())
+            throw new IllegalArgumentException("Only shared instances can be saved as events");
+        CompiledNarrative graph = instance.getGraph();
+        int from = previous == null ? 0 : previous.eventCount;
+        List<NarrativeEvent> events = instance.getEventLog(from);
+        LinkedHashMap<String, BaseBundle> current = new LinkedHashMap<String, BaseBundle>();
+        current.put(null, instance.getGlobalProperties());
+        current.putAll(instance.getCopiedProperties());
+
+        PropertyChanges changes = new PropertyChanges();
+        HashMap<String, BaseBundle> properties = new HashMap<String, BaseBundle>();
+        for (Map.Entry<String, BaseBundle> entry : current.entrySet()) {
+            String id = entry.getKey();
+            BaseBundle original;
+            boolean wasSaved = previous != null && previous.properties.containsKey(id);
+            if (wasSaved) {
+                original = previous.properties.get(id);
+            } else if (id == null) {
+                original = instance.getTemplate().getGlobalProperties();
+            } else {
+                int route = graph.getRouteId(id);
+                original = route >= 0 ? graph.getRoute(route).getProperties()
+                        : graph.getNode(graph.getNodeId(id)).getProperties();
+            }
+            changes.diff(id, original, entry.getValue());
+            boolean changed = changes.contains(id);
+            properties.put(id, wasSaved && !changed ? original : BaseBundle.deepcopy(entry.getValue()));
+        }
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        writeEvents(out, events);
+        changes.write(out, graph);
+        out.flush();
+        if (records.size() > 0) {
+            DataOutputStream data = new DataOutputStream(save);
+            data.writeByte(RECORD_SAVE);
+            data.writeInt(records.size());
+            records.writeTo(data);
+            data.flush();
+        }
+        return new SavedEvents(from + events.size(), properties, offset + save.size());
+    }
+
+    /**
+     * Saves a shared {@code NarrativeInstance} as the differences between it
+     * and its template: the identifiers of the killed nodes and routes, the
+     * completed routes and the active nodes, and the property entries that
+     * have been changed, added or removed. Load the file with
+     * {@link SaveReader#loadInstanceDelta(String, NarrativeTemplate)}.
+     * 
+     * @param filename
+     *            the file to write
+     * @param instance
+     *            the instance to save, generated with
+     *            {@code generateSharedInstance()}
+     * @throws IOException
+     */
+    public static void saveInstanceDelta(String filename, NarrativeInstance instance) throws IOException {
+        saveInstanceDelta(filename, instance, instance.getTemplate());
+    }
+
+    /**
+     * Saves {@code instance} as the differences between it and
+     * {@code template}, which it must have been generated from. Unlike
+     * {@link #saveInstanceDelta(String, NarrativeInstance)} this also works
+     * for an instance that owns a copy of the graph.
+     */
+    public static void saveInstanceDelta(String filename, NarrativeInstance instance, NarrativeTemplate template)
+            throws IOException {
+        SaveStreams.write(filename, SaveStreams.getDefaultCompression(), snapshotInstanceDelta(instance, template));
+    }
+
+    /**
+     * Works out the differences between {@code instance} and
+     * {@code template} and returns a writer that saves them, so that the
+     * instance can carry on changing while the file is written.
+     */
+    static SaveStreams.StreamWriter snapshotInstanceDelta(NarrativeInstance instance, NarrativeTemplate template) {
+        if (template == null)
+            throw new IllegalArgumentException("Deltas of instances that own their graph need a template");
+        long fingerprint = template.getFingerprint();
+        CompiledNarrative graph = instance.getGraph();
+        ArrayList<String> killedNodes = new ArrayList<String>();
+        ArrayList<String> killedRoutes = new ArrayList<String>();
+        ArrayList<String> completedRoutes = new ArrayList<String>();
+        ArrayList<String> activeNodes = new ArrayList<String>();
+        PropertyChanges changes = new PropertyChanges();
+
+        for (int node = 0; node < graph.getNodeCount(); ++node) {
+            if (instance.getNode(node) == null) {
+                killedNodes.add(graph.getNode(node).getId());
+            } else if (!instance.isShared()) {
+                String id = graph.getNode(node).getId();
+                Node original = template.getNode(id);
+                changes.diff(id, original == null ? null : original.getProperties(),
+                        graph.getNode(node).getProperties());
+            }
+        }
+        for (int route = 0; route < graph.getRouteCount(); ++route) {
+            Route r_route = instance.getRoute(route);
+            if (r_route == null) {
+                killedRoutes.add(graph.getRoute(route).getId());
+                continue;
+            }
+            if (instance.isCompleted(r_route))
+                completedRoutes.add(r_route.getId());
+            if (!instance.isShared()) {
+                Route original = template.getRoute(r_route.getId());
+                changes.diff(r_route.getId(), original == null ? null : original.getProperties(),
+                        r_route.getProperties());
+            }
+        }
+        if (instance.isShared()) {
+            // Only the bundles copied from the template can have changed
+            for (Map.Entry<String, BaseBundle> entry : instance.getCopiedProperties().entrySet()) {
+                int route = graph.getRouteId(entry.getKey());
+                int node = graph.getNodeId(entry.getKey());
+                if (route >= 0 ? instance.getRoute(route) == null : node < 0 || instance.getNode(node) == null)
+                    continue;
+                BaseBundle original = route >= 0 ? graph.getRoute(route).getProperties()
+                        : graph.getNode(node).getProperties();
+                changes.diff(entry.getKey(), original, entry.getValue());
+            }
+        }
+        changes.diff(null, template.getGlobalProperties(), instance.getGlobalProperties());
+        for (Node node : instance.getActiveNodes()) {
+            activeNodes.add(node.getId());
+        }
+
+        return stream -> {
+            DataOutputStream data = new DataOutputStream(stream);
+            data.writeInt(DELTA_MAGIC);
+            data.writeInt(DELTA_VERSION);
+            data.writeLong(fingerprint);
+            writeIds(data, killedNodes);
+            writeIds(data, killedRoutes);
+            writeIds(data, completedRoutes);
+            writeIds(data, activeNodes);
+            data.writeInt(changes.size());
+            changes.write(data, graph);
+            data.flush();
+        };
+    }
+
+    private static void writeIds(DataOutputStream out, List<String> ids) throws IOException {
+        out.writeInt(ids.size());
+        for (String id : ids) {
+            out.writeUTF(id);
+        }
+    }
+
+    private static void writeEvents(DataOutputStream out, List<NarrativeEvent> events) throws IOException {
+        for (NarrativeEvent event : events) {
+            out.writeByte(RECORD_EVENT);
+            out.writeByte(event.getType());
+            out.writeUTF(event.getId());
         }
     }
 }
@@ -0,0 +1,327 @@
+package uk.ac.cam.echo2016.multinarrative.io;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import uk.ac.cam.echo2016.multinarrative.NarrativeTemplate;
+import uk.ac.cam.echo2016.multinarrative.dev.Debug;
+
+/**
+ * Keeps loaded templates so that starting a session does not read the
+ * template file again. Templates are cached by canonical path, and each call
+ * to {@link #get(String)} checks the modification time and size of the file,
+ * which costs one {@code stat}. If the file has changed, the cached template
+ * is still returned and the new one is loaded in the background, to be
+ * returned once it is ready. Only the first load of a file is waited for, and
+ * threads asking for a file that is being loaded share the one load.
+ *
+ * <p>
+ * Templates are compiled and their properties frozen when they are loaded,
+ * though the properties of nodes and routes are only decoded when they are
+ * first used. They are shared between all callers, so they must only be used
+ * to generate instances, never modified.
+ * The memory they use is approximated by the size of their files; when the
+ * total exceeds the budget, the least recently used templates are dropped.
+ *
+ * @version 1.0
+ * @see SaveReader#loadNarrativeTemplate(String)
+ */
+public class TemplateCache {
+    /** The budget of the shared cache, in bytes */
+    public static final long DEFAULT_BUDGET = 64L << 20;
+    private static final TemplateCache shared = new TemplateCache(DEFAULT_BUDGET);
+
+    private final long budget;
+    private final Executor executor;
+    private final Loader loader;
+    /** Guarded by {@code this}, as are the fields of each entry */
+    private final HashMap<Path, Entry> entries = new HashMap<Path, Entry>();
+    private long usage = 0;
+    private long clock = 0;
+
+    private static class Entry {
+        final Path path;
+        NarrativeTemplate template;
+        long modified;
+        long size;
+        long lastUsed;
+        /**
+         * The modification time and size of the file when it last failed to
+         * reload, so that it is not tried again until it changes
+         */
+        long failedModified = -1;
+        long failedSize = -1;
+        /** The load in progress, or null */
+        CompletableFuture<NarrativeTemplate> loading;
+
+        Entry(Path path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * Reads a template file, by default with
+     * {@link SaveReader#loadNarrativeTemplate(String, boolean)} putting off
+     * decoding node and route properties. Called from the threads of the
+     * executor, so must be thread-safe.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        NarrativeTemplate load(String filename) throws IOException;
+    }
+
+    /**
+     * @return the cache shared by the whole process, with a budget of
+     *         {@link #DEFAULT_BUDGET}
+     */
+    public static TemplateCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Creates a cache that reloads changed templates on its own daemon thread.
+     *
+     * @param budget
+     *            the total size, in bytes, of the template files to keep
+     */
+    public TemplateCache(long budget) {
+        this(budget, BackgroundExecutors.newSingleThread("TemplateCache", true));
+    }
+
+    /**
+     * Creates a cache that reloads changed templates on {@code executor}.
+     */
+    public TemplateCache(long budget, Executor executor) {
+        this(budget, executor, filename -> SaveReader.loadNarrativeTemplate(filename, true));
+    }
+
+    /**
+     * Creates a cache that reloads changed templates on {@code executor},
+     * reading them with {@code loader}.
+     */
+    public TemplateCache(long budget, Executor executor, Loader loader) {
+        if (executor == null)
+            throw new NullPointerException("executor");
+        if (loader == null)
+            throw new NullPointerException("loader");
+        this.budget = budget;
+        this.executor = executor;
+        this.loader = loader;
+    }
+
+    /**
+     * Returns the template saved in {@code filename}, loading it if it is not
+     * cached. If the file has changed since it was loaded, the cached template
+     * is returned while the file is loaded again in the background.
+     *
+     * @param filename
+     *            a file saved with
+     *            {@link SaveWriter#saveTemplate(String, NarrativeTemplate)} or
+     *            {@link SaveWriter#saveObject(String, Object)}
+     * @return the shared template, which must not be modified
+     * @throws IOException
+     *             if the file does not exist, or has not been loaded before
+     *             and cannot be loaded
+     */
+    public NarrativeTemplate get(String filename) throws IOException {
+        Path path = Paths.get(filename).toRealPath();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().toMillis();
+        Entry entry;
+        NarrativeTemplate cached;
+        boolean reload;
+        synchronized (this) {
+            entry = entries.get(path);
+            if (entry == null) {
+                entry = new Entry(path);
+                entries.put(path, entry);
+            }
+            entry.lastUsed = ++clock;
+            cached = entry.template;
+            reload = cached != null && (entry.modified != modified || entry.size != attributes.size())
+                    && (entry.failedModified != modified || entry.failedSize != attributes.size());
+        }
+        if (cached != null) {
+            if (reload)
+                load(entry, true);
+            return cached;
+        }
+        try {
+            return load(entry, false).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + path, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Starts loading {@code filename} in the background if it is not cached,
+     * so that a server can load its templates before the first session asks
+     * for them.
+     *
+     * @return the load, or a completed future if the template is cached
+     * @throws IOException
+     *             if the file does not exist
+     */
+    public CompletableFuture<NarrativeTemplate> preload(String filename) throws IOException {
+        Path path = Paths.get(filename).toRealPath();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+            if (entry == null) {
+                entry = new Entry(path);
+                entries.put(path, entry);
+            }
+            entry.lastUsed = ++clock;
+            if (entry.template != null)
+                return CompletableFuture.completedFuture(entry.template);
+        }
+        return load(entry, true);
+    }
+
+    /**
+     * Drops the template saved in {@code filename}, if it is cached. A load in
+     * progress still completes, but its template is not kept.
+     */
+    public void invalidate(String filename) throws IOException {
+        Path path = Paths.get(filename).toRealPath();
+        synchronized (this) {
+            remove(entries.get(path));
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        usage = 0;
+    }
+
+    /**
+     * @return the number of templates cached
+     */
+    public synchronized int size() {
+        int r_size = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.template != null)
+                ++r_size;
+        }
+        return r_size;
+    }
+
+    /**
+     * @return the total size, in bytes, of the files of the cached templates
+     */
+    public synchronized long getMemoryUsage() {
+        return usage;
+    }
+
+    /**
+     * Starts loading {@code entry}, unless it is already being loaded.
+     *
+     * @param background
+     *            whether to load on the executor rather than the calling
+     *            thread
+     * @return the load
+     */
+    private CompletableFuture<NarrativeTemplate> load(Entry entry, boolean background) {
+        CompletableFuture<NarrativeTemplate> future;
+        synchronized (this) {
+            if (entry.loading != null)
+                return entry.loading;
+            future = new CompletableFuture<NarrativeTemplate>();
+            entry.loading = future;
+        }
+        if (background) {
+            try {
+                executor.execute(() -> run(entry, future));
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    entry.loading = null;
+                }
+                future.completeExceptionally(new IOException("Could not load " + entry.path, e));
+            }
+        } else {
+            run(entry, future);
+        }
+        return future;
+    }
+
+    private void run(Entry entry, CompletableFuture<NarrativeTemplate> future) {
+        BasicFileAttributes attributes = null;
+        try {
+            // Read before the file, so that a change made while it is loaded
+            // is noticed by the next call
+            attributes = Files.readAttributes(entry.path, BasicFileAttributes.class);
+            NarrativeTemplate template = loader.load(entry.path.toString());
+            template.compile();
+            template.freezeProperties();
+            synchronized (this) {
+                entry.loading = null;
+                if (entries.get(entry.path) == entry) {
+                    usage += attributes.size() - (entry.template == null ? 0 : entry.size);
+                    entry.template = template;
+                    entry.modified = attributes.lastModifiedTime().toMillis();
+                    entry.size = attributes.size();
+                    evict(entry);
+                }
+            }
+            future.complete(template);
+        } catch (Throwable e) {
+            // Errors as well, as get() waits on the future and later calls
+            // share it until loading is cleared
+            boolean reloading;
+            synchronized (this) {
+                entry.loading = null;
+                reloading = entry.template != null;
+                if (!reloading) {
+                    remove(entry);
+                } else if (attributes != null) {
+                    entry.failedModified = attributes.lastModifiedTime().toMillis();
+                    entry.failedSize = attributes.size();
+                }
+            }
+            // The template already cached is kept
+            if (reloading)
+                Debug.logError("Could not reload " + entry.path + ": " + e, 2, Debug.SYSTEM_IO);
+            future.completeExceptionally(
+                    e instanceof IOException ? e : new IOException("Could not load " + entry.path, e));
+        }
+    }
+
+    /**
+     * Drops the least recently used templates other than {@code keep} until
+     * the cache is within its budget. Must be called holding the lock.
+     */
+    private void evict(Entry keep) {
+        while (usage > budget) {
+            Entry oldest = null;
+            for (Entry entry : entries.values()) {
+                if (entry != keep && entry.template != null && (oldest == null || entry.lastUsed < oldest.lastUsed))
+                    oldest = entry;
+            }
+            if (oldest == null)
+                return;
+            remove(oldest);
+        }
+    }
+
+    /** Must be called holding the lock */
+    private void remove(Entry entry) {
+        if (entry == null || entries.get(entry.path) != entry)
+            return;
+        entries.remove(entry.path);
+        if (entry.template != null)
+            usage -= entry.size;
+    }
+}
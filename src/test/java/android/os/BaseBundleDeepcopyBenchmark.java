@@ -0,0 +1,61 @@
+package android.os;
+
+import java.util.ArrayList;
+
+/**
+ * Compares {@link BaseBundle#deepcopy(BaseBundle)} with the serialization
+ * round-trip it replaced, using bundles shaped like the properties of nodes
+ * and routes. Not run as part of the tests; run the main method directly.
+ */
+public class BaseBundleDeepcopyBenchmark {
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 100000;
+
+    public static void main(String[] args) {
+        BaseBundle[] bundles = { createRouteBundle(), createNodeBundle(), new BaseBundle(4) };
+
+        for (int i = 0; i < WARMUP; ++i) {
+            BaseBundle.deepcopy(bundles[i % bundles.length]);
+            BaseBundle.serialcopy(bundles[i % bundles.length]);
+        }
+
+        long typed = time(bundles, false);
+        long serial = time(bundles, true);
+        System.out.println("deepcopy:   " + (typed / ITERATIONS) + " ns/copy");
+        System.out.println("serialcopy: " + (serial / ITERATIONS) + " ns/copy");
+        System.out.println("speed-up:   " + ((double) serial / typed) + "x");
+    }
+
+    private static long time(BaseBundle[] bundles, boolean serial) {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            BaseBundle bundle = bundles[i % bundles.length];
+            if (serial) {
+                BaseBundle.serialcopy(bundle);
+            } else {
+                BaseBundle.deepcopy(bundle);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static BaseBundle createRouteBundle() {
+        BaseBundle bundle = new BaseBundle(4);
+        bundle.putString("Character", "Sarah");
+        bundle.putBoolean("System.isCompleted", true);
+        bundle.putInt("Chapter", 3);
+        return bundle;
+    }
+
+    private static BaseBundle createNodeBundle() {
+        BaseBundle bundle = new BaseBundle(4);
+        ArrayList<String> keys = new ArrayList<String>();
+        keys.add("dialogue.intro");
+        keys.add("dialogue.outro");
+        bundle.putStringArrayList("Dialogue", keys);
+        bundle.putFloat("GUI.X", 120.5f);
+        bundle.putFloat("GUI.Y", 42.0f);
+        bundle.putIntArray("Flags", new int[] { 1, 0, 1, 1 });
+        return bundle;
+    }
+}
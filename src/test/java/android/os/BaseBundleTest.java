@@ -4,6 +4,12 @@ import android.os.BaseBundle;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
 public class BaseBundleTest {
     @Test
     public void testSetAndGetBoolean() {
@@ -21,4 +27,244 @@ public class BaseBundleTest {
         assertEquals(baseBundle.getBoolean(testKey1), testVal1);
         assertEquals(baseBundle.getBoolean(testKey2), testVal2);
     }
+
+    @Test
+    public void testDeepcopy() {
+        BaseBundle baseBundle = new BaseBundle();
+        ArrayList<String> list = new ArrayList<String>();
+        list.add("a");
+        StringBuilder builder = new StringBuilder("builder");
+
+        baseBundle.putInt("Int", 3);
+        baseBundle.putString("String", "value");
+        baseBundle.putIntArray("IntArray", new int[] { 1, 2, 3 });
+        baseBundle.putStringArrayList("List", list);
+        baseBundle.putCharSequence("Builder", builder);
+        baseBundle.putString("Null", null);
+
+        BaseBundle copy = BaseBundle.deepcopy(baseBundle);
+
+        assertEquals(baseBundle.size(), copy.size());
+        assertEquals(3, copy.getInt("Int"));
+        assertSame("Immutable values are shared", baseBundle.get("String"), copy.get("String"));
+        assertArrayEquals(new int[] { 1, 2, 3 }, copy.getIntArray("IntArray"));
+        assertNotSame(baseBundle.get("IntArray"), copy.get("IntArray"));
+        assertEquals(list, copy.getStringArrayList("List"));
+        assertNotSame(list, copy.getStringArrayList("List"));
+        assertEquals("Unknown types fall back to serialization", "builder",
+                copy.getCharSequence("Builder").toString());
+        assertNotSame(builder, copy.getCharSequence("Builder"));
+        assertTrue(copy.containsKey("Null"));
+
+        copy.getIntArray("IntArray")[0] = 5;
+        copy.getStringArrayList("List").add("b");
+        assertEquals(1, baseBundle.getIntArray("IntArray")[0]);
+        assertEquals(1, baseBundle.getStringArrayList("List").size());
+        assertNull(BaseBundle.deepcopy(null));
+    }
+
+    @Test
+    public void testPrimitiveStorage() {
+        BaseBundle baseBundle = new BaseBundle(4);
+        for (int i = 0; i < 100; ++i) {
+            baseBundle.putInt("Key" + i, i);
+        }
+        baseBundle.putDouble("Key7", 0.25);
+        baseBundle.putLong("Long", Long.MIN_VALUE);
+        baseBundle.putFloat("Float", -1.5f);
+        baseBundle.putChar("Char", 'x');
+        baseBundle.putString(null, "null key");
+        for (int i = 0; i < 100; i += 2) {
+            baseBundle.remove("Key" + i);
+        }
+
+        assertEquals(54, baseBundle.size());
+        assertEquals(99, baseBundle.getInt("Key99"));
+        assertFalse(baseBundle.containsKey("Key98"));
+        assertEquals(0.25, baseBundle.getDouble("Key7"), 0);
+        assertEquals("Check mismatched types give the default", 3, baseBundle.getInt("Key7", 3));
+        assertEquals(Long.MIN_VALUE, baseBundle.getLong("Long"));
+        assertEquals(-1.5f, baseBundle.getFloat("Float"), 0);
+        assertEquals('x', baseBundle.getChar("Char"));
+        assertEquals("null key", baseBundle.getString(null));
+        assertEquals("Check values are boxed on demand", Integer.valueOf(99), baseBundle.get("Key99"));
+        assertTrue(baseBundle.keySet().contains(null));
+        assertTrue(baseBundle.valueSet().contains(-1.5f));
+
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("Boxed", 5);
+        baseBundle.putAll(map);
+        assertEquals(5, baseBundle.getInt("Boxed"));
+
+        BaseBundle copy = BaseBundle.serialcopy(baseBundle);
+        assertEquals(baseBundle.keySet(), copy.keySet());
+        assertEquals(99, copy.getInt("Key99"));
+        assertEquals(Long.MIN_VALUE, copy.getLong("Long"));
+        copy.putInt("Key99", 1);
+        assertEquals(99, new BaseBundle(baseBundle).getInt("Key99"));
+
+        baseBundle.clear();
+        assertTrue(baseBundle.isEmpty());
+        assertNull(baseBundle.get("Key99"));
+    }
+
+    @Test
+    public void testSmallBundles() {
+        BaseBundle baseBundle = new BaseBundle(4);
+        assertEquals(4, baseBundle.mKeys.length);
+        for (int i = 0; i < BaseBundle.SMALL_CAPACITY; ++i) {
+            baseBundle.putInt("Key" + i, i);
+        }
+        assertEquals("Check small bundles are packed", BaseBundle.SMALL_CAPACITY, baseBundle.mKeys.length);
+        baseBundle.remove("Key0");
+        assertEquals(7, baseBundle.getInt("Key7"));
+        assertFalse(baseBundle.containsKey("Key0"));
+
+        for (int i = 0; i < 20; ++i) {
+            baseBundle.putInt("Key" + i, i);
+            for (int j = 0; j <= i; ++j) {
+                assertEquals(j, baseBundle.getInt("Key" + j, -1));
+            }
+        }
+        assertTrue("Check large bundles are hashed", baseBundle.mKeys.length > BaseBundle.SMALL_CAPACITY);
+        assertEquals(20, baseBundle.size());
+
+        BaseBundle empty = new BaseBundle();
+        assertEquals(0, empty.mKeys.length);
+        assertNull(empty.get("Key"));
+        empty.putString("Key", "value");
+        empty.remove("Key");
+        assertTrue(empty.isEmpty());
+        assertEquals(2, BaseBundle.serialcopy(baseBundle).getInt("Key2"));
+    }
+
+    @Test
+    public void testFreeze() {
+        BaseBundle baseBundle = new BaseBundle();
+        baseBundle.putInt("Int", 3);
+        baseBundle.putString("String", "value");
+        baseBundle.putIntArray("IntArray", new int[] { 1, 2, 3 });
+        BaseBundle frozen = baseBundle.freeze();
+        baseBundle.putInt("Int", 4);
+        assertTrue(frozen.isFrozen());
+        assertSame(frozen, frozen.freeze());
+        assertEquals("Check frozen bundle is a copy", 3, frozen.getInt("Int"));
+        try {
+            frozen.putInt("Int", 5);
+            fail("Frozen bundles cannot be changed");
+        } catch (UnsupportedOperationException e) {
+        }
+
+        BaseBundle overlay = BaseBundle.deepcopy(frozen);
+        assertFalse(overlay.isFrozen());
+        overlay.getIntArray("IntArray")[0] = 99;
+        assertEquals("Check overlays keep their copy", 99, overlay.getIntArray("IntArray")[0]);
+        assertEquals("Check frozen values are not handed out", 1, frozen.getIntArray("IntArray")[0]);
+        frozen.getIntArray("IntArray")[0] = 99;
+        assertEquals(1, frozen.newOverlay().getIntArray("IntArray")[0]);
+        overlay.putInt("Int", 6);
+        overlay.putLong("Long", 7L);
+        overlay.remove("String");
+        assertEquals(6, overlay.getInt("Int"));
+        assertEquals(3, frozen.getInt("Int"));
+        assertNull(overlay.getString("String"));
+        assertEquals("value", frozen.getString("String"));
+        assertEquals(3, overlay.size());
+        assertEquals(new HashSet<String>(Arrays.asList("Int", "Long", "IntArray")), overlay.keySet());
+        overlay.putString("String", "again");
+        assertEquals("again", overlay.getString("String"));
+
+        BaseBundle copy = new BaseBundle(overlay);
+        copy.putInt("Int", 8);
+        assertEquals(6, overlay.getInt("Int"));
+        BaseBundle refrozen = overlay.freeze();
+        assertEquals(4, refrozen.size());
+        assertEquals(7L, refrozen.getLong("Long"));
+        BaseBundle serialized = BaseBundle.serialcopy(overlay);
+        assertFalse(serialized.isFrozen());
+        assertEquals(6, serialized.getInt("Int"));
+        assertEquals("again", serialized.getString("String"));
+
+        overlay.clear();
+        assertTrue(overlay.isEmpty());
+        assertEquals(3, frozen.getInt("Int"));
+        try {
+            frozen.newOverlay().newOverlay();
+            fail("Only frozen bundles can have overlays");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testOverlayTypeMismatch() {
+        BaseBundle baseBundle = new BaseBundle();
+        baseBundle.putIntArray("IntArray", new int[] { 1, 2, 3 });
+        BaseBundle overlay = baseBundle.freeze().newOverlay();
+        int symbol = Symbols.of("IntArray");
+
+        assertNull(overlay.getLongArray("IntArray"));
+        assertNull(overlay.getStringArrayList("IntArray"));
+        assertNull(overlay.getCharSequence("IntArray"));
+        assertFalse("Check gets of the wrong type leave the overlay as it was",
+                Arrays.stream(overlay.mKeys).anyMatch(key -> key == symbol));
+        assertArrayEquals(new int[] { 1, 2, 3 }, overlay.getIntArray("IntArray"));
+        assertTrue("Check the overlay keeps values it hands out",
+                Arrays.stream(overlay.mKeys).anyMatch(key -> key == symbol));
+    }
+
+    @Test
+    public void testSymbols() {
+        int score = Symbols.of("Score");
+        assertEquals(score, Symbols.of(new String("Score")));
+        assertEquals(score, Symbols.lookup("Score"));
+        assertEquals("Score", Symbols.name(score));
+        assertEquals(-1, Symbols.lookup("Never used as a key"));
+
+        BaseBundle baseBundle = new BaseBundle();
+        baseBundle.putInt(score, 1);
+        baseBundle.putInt(score, baseBundle.getInt(score) + 1);
+        assertEquals(2, baseBundle.getInt("Score"));
+        assertTrue(baseBundle.containsKey(score));
+        baseBundle.putBoolean("Flag", true);
+        assertTrue(baseBundle.getBoolean(Symbols.of("Flag")));
+        baseBundle.putString(Symbols.of(null), "null key");
+        assertEquals("null key", baseBundle.getString((String) null));
+        assertTrue(baseBundle.keySet().contains(null));
+        baseBundle.remove(score);
+        assertFalse(baseBundle.containsKey("Score"));
+        assertFalse(baseBundle.containsKey("Never used as a key"));
+
+        try {
+            baseBundle.putInt(Integer.MAX_VALUE, 1);
+            fail("Check symbols are validated");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testTypeMismatches() {
+        BaseBundle baseBundle = new BaseBundle();
+        baseBundle.putDouble("Mismatched", 0.5);
+        baseBundle.putString("MismatchedString", "value");
+        baseBundle.putString("Null", null);
+        BaseBundle.getTypeMismatchCounts(true);
+
+        assertEquals(3, baseBundle.getInt("Mismatched", 3));
+        assertFalse(baseBundle.getBoolean(Symbols.of("Mismatched")));
+        assertNull(baseBundle.getIntArray("MismatchedString"));
+        assertNull(baseBundle.getStringArrayList("MismatchedString"));
+        assertEquals("value", baseBundle.getCharSequence("MismatchedString"));
+        assertEquals(4, baseBundle.getInt("Null", 4));
+        assertNull(baseBundle.getIntArray("Null"));
+        assertEquals(0, baseBundle.getInt("Missing"));
+
+        assertEquals(2, BaseBundle.getTypeMismatchCount("Mismatched"));
+        assertEquals(2, BaseBundle.getTypeMismatchCount("MismatchedString"));
+        assertEquals("Check null values are not mismatches", 0, BaseBundle.getTypeMismatchCount("Null"));
+        Map<String, Long> counts = BaseBundle.getTypeMismatchCounts(true);
+        assertEquals(2, counts.size());
+        assertEquals(Long.valueOf(2), counts.get("Mismatched"));
+        assertEquals(0, BaseBundle.getTypeMismatchCount("Mismatched"));
+        assertTrue(BaseBundle.getTypeMismatchCounts(false).isEmpty());
+    }
 }
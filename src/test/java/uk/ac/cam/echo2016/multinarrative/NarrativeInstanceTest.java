@@ -5,8 +5,17 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
-
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -345,6 +354,397 @@ public class NarrativeInstanceTest {
         assertTrue("Testing load test constructor: ", loadInst.routes.containsKey("route10101"));
     }
 
+    @Test
+    public void sharedKillAndGetPlayableTest() throws InvalidGraphException, GraphElementNotFoundException {
+        NarrativeInstance sharedInst = sampleTemplate.generateSharedInstance();
+
+        assertTrue(sharedInst.isShared());
+        assertEquals("Testing playable routes: ", 5, sharedInst.getPlayableRoutes().size());
+
+        sharedInst.kill("routeMike1");
+        assertEquals("Testing kill method: ", 20, sharedInst.getRoutes().size());
+        assertEquals("Testing kill method: ", 10, sharedInst.getNodes().size());
+        assertEquals("Testing killed route is hidden: ", null, sharedInst.getRoute("routeMike4"));
+        assertEquals("Testing playable routes: ", 4, sharedInst.getPlayableRoutes().size());
+
+        sharedInst.startRoute("routeSarah1");
+        sharedInst.endRoute("routeSarah1");
+        assertEquals("", 2, sharedInst.activeNodes.size());
+        assertEquals("Testing playable routes: ", 5, sharedInst.getPlayableRoutes().size());
+
+        sharedInst.kill("routeSarah4");
+        assertEquals("Testing kill method: ", 18, sharedInst.getRoutes().size());
+        assertEquals("Testing kill method: ", 10, sharedInst.getNodes().size());
+
+        // The template must be left untouched
+        assertEquals("Testing template routes: ", 24, sampleTemplate.routes.size());
+        assertEquals("Testing template nodes: ", 11, sampleTemplate.nodes.size());
+        assertEquals("Testing template structure: ", 2, sampleTemplate.getNode("choiceMike1").getExiting().size());
+        assertEquals("Testing template structure: ", 2, sampleTemplate.getNode("sync1").getEntering().size());
+        assertFalse("Testing template properties: ",
+                sampleTemplate.getRoute("routeSarah1").getProperties().containsKey("System.isCompleted"));
+
+        // A second instance starts from the unmodified template
+        NarrativeInstance otherInst = sampleTemplate.generateSharedInstance();
+        assertEquals("Testing playable routes: ", 5, otherInst.getPlayableRoutes().size());
+        assertEquals("Testing instance is independent: ", 24, otherInst.getRoutes().size());
+    }
+
+    @Test
+    public void sharedPropertiesTest() throws InvalidGraphException, GraphElementNotFoundException {
+        NarrativeInstance sharedInst = sampleTemplate.generateSharedInstance();
+        assertTrue("Testing nothing copied up front: ", sharedInst.localProperties.isEmpty());
+
+        BaseBundle started = sharedInst.startRoute("routeMike1");
+        started.putBoolean("Correct", true);
+        assertEquals("Check template properties copied: ", "Mike", started.getString("Character"));
+        assertTrue("Check properties returned correctly",
+                sharedInst.getRouteProperties("routeMike1").getBoolean("Correct"));
+        assertFalse("Check template properties not modified",
+                sampleTemplate.getRoute("routeMike1").getProperties().containsKey("Correct"));
+
+        GameChoice choice = sharedInst.endRoute("routeMike1");
+        assertEquals("Check choice has correct action", GameChoice.ACTION_MAJOR_DECISION, choice.getAction());
+        assertEquals("Check choice has correct number of exiting routes", 2, choice.getOptions().size());
+        assertEquals("Check only touched bundles copied: ", 1, sharedInst.localProperties.size());
+
+        sharedInst.startRoute("routeMike3");
+        assertEquals("Check other option killed", null, sharedInst.getRoute("routeMike2"));
+        assertEquals("Check other option killed", 1, sharedInst.getExiting(sharedInst.getNode("choiceMike1")).size());
+        assertEquals("Check template keeps option", 2, sampleTemplate.getNode("choiceMike1").getExiting().size());
+    }
+
+    @Test
+    public void compileTest() throws InvalidGraphException {
+        CompiledNarrative graph = sampleTemplate.compile();
+        assertTrue("Testing graph is cached: ", graph == sampleTemplate.compile());
+        assertEquals(11, graph.getNodeCount());
+        assertEquals(24, graph.getRouteCount());
+        assertEquals("syncStart", graph.getNode(graph.getStart()).getId());
+
+        int choice = graph.getNodeId("choiceMike1");
+        assertTrue(graph.isChoice(choice));
+        assertEquals("Testing exits are contiguous: ", 2, graph.getFirstExit(choice + 1) - graph.getFirstExit(choice));
+        assertEquals("routeMike2", graph.getRoute(graph.getFirstExit(choice)).getId());
+        int route = graph.getRouteId("routeSarah5");
+        assertEquals("sync1", graph.getNode(graph.getRouteStart(route)).getId());
+        assertEquals("sync3", graph.getNode(graph.getRouteEnd(route)).getId());
+        assertEquals(-1, graph.getRouteId("missing"));
+    }
+
+    @Test
+    public void handleTest() throws InvalidGraphException, GraphElementNotFoundException {
+        NarrativeInstance sharedInst = sampleTemplate.generateSharedInstance();
+        int mike1 = sharedInst.getRouteHandle("routeMike1");
+        int mike2 = sharedInst.getRouteHandle("routeMike2");
+        int mike3 = sharedInst.getRouteHandle("routeMike3");
+        assertEquals("routeMike1", sharedInst.getRoute(mike1).getId());
+
+        sharedInst.startRoute(mike1);
+        GameChoice choice = sharedInst.endRoute(mike1);
+        assertEquals(GameChoice.ACTION_MAJOR_DECISION, choice.getAction());
+        assertTrue(sharedInst.isCompleted(sharedInst.getRoute(mike1)));
+
+        sharedInst.startRoute(mike3);
+        assertEquals("Check other option killed", -1, sharedInst.getRouteHandle("routeMike2"));
+        assertEquals("Check other option killed", null, sharedInst.getRoute(mike2));
+        try {
+            sharedInst.startRoute(mike2);
+            fail("Killed routes cannot be started");
+        } catch (GraphElementNotFoundException e) {
+            assertEquals("routeMike2", e.getItem());
+        }
+
+        NarrativeInstance copyInst = sampleTemplate.generateInstance2();
+        int route = copyInst.getRouteHandle("routeMike1");
+        assertTrue(copyInst.killRoute(route));
+        assertFalse("Check route only killed once", copyInst.killRoute(route));
+        assertEquals(-1, copyInst.getNodeHandle("choiceMike1"));
+        assertEquals("Testing kill method: ", 20, copyInst.routes.size());
+        assertEquals("Testing kill method: ", 10, copyInst.nodes.size());
+    }
+
+    @Test
+    public void killReportTest() throws InvalidGraphException, GraphElementNotFoundException {
+        NarrativeInstance copyInst = sampleTemplate.generateInstance2();
+        NarrativeInstance sharedInst = sampleTemplate.generateSharedInstance();
+        assertTrue(sharedInst.getLastKilled().isEmpty());
+
+        copyInst.kill("routeMike1");
+        sharedInst.kill("routeMike1");
+        for (NarrativeInstance inst : new NarrativeInstance[] { copyInst, sharedInst }) {
+            KillReport report = inst.getLastKilled();
+            assertEquals(4, report.getRouteIds().size());
+            assertEquals(1, report.getNodeIds().size());
+            assertEquals("choiceMike1", report.getNodeIds().get(0));
+            for (String id : report.getRouteIds()) {
+                assertEquals("Check killed routes are removed", null, inst.getRoute(id));
+            }
+        }
+        assertTrue(new HashSet<String>(copyInst.getLastKilled().getRouteIds())
+                .equals(new HashSet<String>(sharedInst.getLastKilled().getRouteIds())));
+
+        sharedInst.startRoute("routeSarah1");
+        sharedInst.endRoute("routeSarah1");
+        sharedInst.startRoute("routeSarah4");
+        assertEquals(Arrays.asList("routeSarah2"), sharedInst.getLastKilled().getRouteIds());
+    }
+
+    @Test
+    public void deepKillTest() throws InvalidGraphException {
+        NarrativeTemplate chain = new NarrativeTemplate();
+        SynchronizationNode start = new SynchronizationNode("start");
+        chain.nodes.put(start.getId(), start);
+        chain.start = start;
+        Node prev = start;
+        for (int i = 0; i < 100000; ++i) {
+            Node node = new SynchronizationNode("node" + i);
+            Route route = new Route("route" + i, prev, node);
+            route.setup();
+            chain.nodes.put(node.getId(), node);
+            chain.routes.put(route.getId(), route);
+            prev = node;
+        }
+
+        NarrativeInstance inst = chain.generateSharedInstance();
+        assertTrue(inst.kill("route0"));
+        assertEquals(100000, inst.getLastKilled().getRoutes().length);
+        assertEquals(100000, inst.getLastKilled().getNodes().length);
+        assertEquals(1, inst.getNodes().size());
+    }
+
+    @Test
+    public void foreignNodeTest() throws InvalidGraphException {
+        NarrativeInstance inst = sampleTemplate.generateSharedInstance();
+        Node elsewhere = new SynchronizationNode("elsewhere");
+        new Route("into", new ChoiceNode("before"), elsewhere).setup();
+        assertTrue("Check nodes not in the instance have no routes", inst.getEntering(elsewhere).isEmpty());
+        assertTrue(inst.getExiting(elsewhere).isEmpty());
+        assertEquals(0, inst.getEnteringCount(elsewhere));
+        assertEquals(0, inst.getExitingCount(elsewhere));
+        assertFalse(inst.isCompleted(elsewhere));
+        assertEquals(2, inst.getEntering(inst.getNode("sync1")).size());
+    }
+
+    @Test
+    public void killWithoutTypesTest() throws InvalidGraphException {
+        NarrativeTemplate branch = new NarrativeTemplate();
+        SynchronizationNode start = new SynchronizationNode("start");
+        ChoiceNode mid = new ChoiceNode("mid");
+        SynchronizationNode end = new SynchronizationNode("end");
+        Route first = new Route("first", start, mid);
+        Route second = new Route("second", start, mid);
+        Route last = new Route("last", mid, end);
+        for (Node node : new Node[] { start, mid, end }) {
+            branch.nodes.put(node.getId(), node);
+        }
+        for (Route route : new Route[] { first, second, last }) {
+            route.setup();
+            branch.routes.put(route.getId(), route);
+        }
+        branch.start = start;
+        first.createProperties();
+        first.getProperties().putString("Mood", "Happy");
+
+        NarrativeInstance inst = branch.generateSharedInstance();
+        inst.getGlobalProperties().remove("System.Types");
+        assertTrue(inst.kill("first"));
+        assertEquals("Check no property is a type without System.Types", 1,
+                inst.getLastKilled().getRoutes().length);
+    }
+
+    @Test
+    public void syncCompletionTest() throws InvalidGraphException, GraphElementNotFoundException {
+        NarrativeTemplate converge = new NarrativeTemplate();
+        SynchronizationNode start = new SynchronizationNode("start");
+        SynchronizationNode meet = new SynchronizationNode("meet");
+        converge.nodes.put(start.getId(), start);
+        converge.nodes.put(meet.getId(), meet);
+        converge.start = start;
+        for (int i = 0; i < 3; ++i) {
+            Route route = new Route("route" + i, start, meet);
+            route.setup();
+            converge.routes.put(route.getId(), route);
+        }
+
+        for (NarrativeInstance inst : new NarrativeInstance[] { converge.generateInstance2(),
+                converge.generateSharedInstance() }) {
+            Node r_meet = inst.getNode("meet");
+            assertEquals(3, inst.getEnteringCount(r_meet));
+            inst.startRoute("route0");
+            GameChoice choice = inst.endRoute("route0");
+            assertFalse(inst.isCompleted(r_meet));
+            assertFalse(choice.hasEvent());
+
+            inst.kill("route2");
+            assertEquals(2, inst.getEnteringCount(r_meet));
+            assertFalse(inst.isCompleted(r_meet));
+
+            inst.startRoute("route1");
+            choice = inst.endRoute("route1");
+            assertTrue(inst.isCompleted(r_meet));
+            assertTrue(choice.hasEvent());
+            assertEquals("meet", choice.getEventIdentifier());
+
+            // Ending a route twice does not count it twice
+            inst.endRoute("route1");
+            assertTrue(inst.isCompleted(r_meet));
+        }
+    }
+
+    @Test
+    public void completionStateTest() throws Exception {
+        NarrativeInstance inst = sampleTemplate.generateInstance2();
+        Route sarah1 = inst.getRoute("routeSarah1");
+        inst.startRoute("routeSarah1");
+        inst.endRoute("routeSarah1");
+        assertTrue(inst.isCompleted(sarah1));
+        assertFalse("Check completion is not stored in the bundle",
+                sarah1.getProperties().containsKey("System.isCompleted"));
+        assertFalse("Check reading the properties does not add completion",
+                inst.getRouteProperties(sarah1).containsKey("System.isCompleted"));
+        assertFalse(inst.getRouteProperties("routeMike1").containsKey("System.isCompleted"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(inst);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            NarrativeInstance loaded = (NarrativeInstance) in.readObject();
+            assertTrue(loaded.isCompleted(loaded.getRoute("routeSarah1")));
+            assertFalse(loaded.isCompleted(loaded.getRoute("routeMike1")));
+        }
+    }
+
+    @Test
+    public void applyEventsTest() throws InvalidGraphException, GraphElementNotFoundException {
+        NarrativeInstance stepInst = sampleTemplate.generateSharedInstance();
+        NarrativeInstance batchInst = sampleTemplate.generateSharedInstance();
+        String[] played = { "routeMike1", "routeMike3", "routeSarah1", "routeSarah4" };
+
+        GameChoice stepChoice = null;
+        ArrayList<NarrativeEvent> events = new ArrayList<NarrativeEvent>();
+        for (String id : played) {
+            stepInst.startRoute(id);
+            stepChoice = stepInst.endRoute(id);
+            events.add(NarrativeEvent.start(id));
+            events.add(NarrativeEvent.end(id));
+        }
+        events.add(2, NarrativeEvent.end("routeMissing"));
+        events.add(NarrativeEvent.start("routeMike2"));
+
+        BatchResult result = batchInst.apply(events);
+        assertEquals(2, result.getFailures().size());
+        assertEquals("routeMissing", result.getFailures().get(2).getItem());
+        assertEquals("Check killed route is reported", "routeMike2", result.getFailures().get(9).getItem());
+        assertEquals(stepChoice.getAction(), result.getChoice().getAction());
+        assertEquals(stepChoice.getEventIdentifier(), result.getChoice().getEventIdentifier());
+        assertEquals(stepChoice.getOptions(), result.getChoice().getOptions());
+        assertEquals(stepInst.getPlayableRoutes(), batchInst.getPlayableRoutes());
+        assertEquals(stepInst.getRoutes().keySet(), batchInst.getRoutes().keySet());
+    }
+
+    @Test
+    public void playableSnapshotTest() throws InvalidGraphException, GraphElementNotFoundException {
+        for (NarrativeInstance inst : new NarrativeInstance[] { sampleTemplate.generateInstance(),
+                sampleTemplate.generateSharedInstance() }) {
+            List<Route> view = inst.getPlayableRoutes();
+            assertTrue("Check the view is not allocated on each call", view == inst.getPlayableRoutes());
+            try {
+                view.clear();
+                fail("The playable routes cannot be changed by callers");
+            } catch (UnsupportedOperationException e) {
+            }
+            ArrayList<Route> playable = new ArrayList<Route>(view);
+            int played = 0;
+            for (Route route : playable) {
+                inst.startRoute(route.getId());
+                inst.endRoute(route.getId());
+                ++played;
+            }
+            assertEquals("Check every route of the snapshot is played", 5, played);
+            assertEquals(5, playable.size());
+            assertFalse(inst.getPlayableRoutes().contains(playable.get(0)));
+            assertFalse("Check the view is kept up to date", view.contains(playable.get(0)));
+        }
+    }
+
+    @Test
+    public void resetTest() throws InvalidGraphException, GraphElementNotFoundException {
+        InstancePool pool = new InstancePool(sampleTemplate, 1);
+        NarrativeInstance inst = pool.acquire();
+        List<Route> initial = inst.getPlayableRoutes();
+        inst.startRoute("routeMike1");
+        inst.endRoute("routeMike1");
+        inst.startRoute("routeMike3");
+        inst.kill("routeSarah1");
+        inst.getRouteProperties("routeMike3").putBoolean("Visited", true);
+        inst.getGlobalProperties().putInt("Score", 10);
+
+        pool.release(inst);
+        assertEquals(1, pool.size());
+        assertTrue("Check instance is reused", inst == pool.acquire());
+        assertEquals(0, pool.size());
+        assertEquals(initial, inst.getPlayableRoutes());
+        assertEquals(24, inst.getRoutes().size());
+        assertEquals(11, inst.getNodes().size());
+        assertEquals(0, inst.getEventCount());
+        assertFalse(inst.isCompleted(inst.getRoute("routeMike1")));
+        assertFalse(inst.getRouteProperties("routeMike3").containsKey("Visited"));
+        assertFalse(inst.getGlobalProperties().containsKey("Score"));
+
+        // The reset instance plays the same as a new one
+        NarrativeInstance fresh = sampleTemplate.generateSharedInstance();
+        for (NarrativeInstance i : new NarrativeInstance[] { inst, fresh }) {
+            i.startRoute("routeSarah1");
+            i.endRoute("routeSarah1");
+            i.startRoute("routeSarah4");
+        }
+        assertEquals(fresh.getPlayableRoutes(), inst.getPlayableRoutes());
+        assertEquals(fresh.getRoutes().keySet(), inst.getRoutes().keySet());
+        assertEquals(fresh.isCompleted(fresh.getNode("sync1")), inst.isCompleted(inst.getNode("sync1")));
+
+        // Releasing an instance twice would let two callers acquire it
+        pool.release(inst);
+        try {
+            pool.release(inst);
+            fail("Instances cannot be released twice");
+        } catch (IllegalStateException e) {
+        }
+        assertEquals(1, pool.size());
+        assertTrue(inst == pool.acquire());
+        assertTrue(inst != pool.acquire());
+    }
+
+    @Test
+    public void playableRoutesTest() throws InvalidGraphException, GraphElementNotFoundException {
+        NarrativeInstance sharedInst = sampleTemplate.generateSharedInstance();
+        List<Route> playable = sharedInst.getPlayableRoutes();
+        List<Route> snapshot = new ArrayList<Route>(playable);
+        assertEquals("routeMike1", playable.get(0).getId());
+
+        sharedInst.startRoute("routeChris1");
+        sharedInst.endRoute("routeChris1");
+        assertEquals("Testing copy is unchanged: ", 5, snapshot.size());
+        assertEquals("Testing view is up to date: ", 6, playable.size());
+        playable = sharedInst.getPlayableRoutes();
+        assertEquals(6, playable.size());
+        assertFalse(playable.contains(sharedInst.getRoute("routeChris1")));
+        assertTrue(playable.contains(sharedInst.getRoute("routeChris2")));
+
+        sharedInst.startRoute("routeChris4");
+        assertFalse("Testing choice node deactivated: ",
+                sharedInst.getPlayableRoutes().contains(sharedInst.getRoute("routeChris4")));
+        sharedInst.kill("routeSarah1");
+        playable = sharedInst.getPlayableRoutes();
+        assertEquals(3, playable.size());
+        assertEquals("routeMike1", playable.get(0).getId());
+
+        snapshot = new ArrayList<Route>(playable);
+        snapshot.clear();
+        assertEquals("Testing copy can be changed: ", 3, sharedInst.getPlayableRoutes().size());
+    }
+
     @Test(expected = InvalidGraphException.class)
     public void testErrorThrownIn1() throws InvalidGraphException {
         sampleTemplate.start = null;
@@ -3,10 +3,42 @@ package uk.ac.cam.echo2016.multinarrative;
 import org.junit.Test;
 import org.junit.Before;
 import static org.junit.Assert.*;
+import uk.ac.cam.echo2016.multinarrative.io.BulkLoader;
+import uk.ac.cam.echo2016.multinarrative.io.Compression;
+import uk.ac.cam.echo2016.multinarrative.io.SaveContainer;
 import uk.ac.cam.echo2016.multinarrative.io.SaveReader;
+import uk.ac.cam.echo2016.multinarrative.io.SaveService;
+import uk.ac.cam.echo2016.multinarrative.io.TemplateCache;
 import uk.ac.cam.echo2016.multinarrative.io.SaveWriter;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.BaseBundle;
 
 public class SaveTest {
 
@@ -90,4 +122,814 @@ public class SaveTest {
         template = SaveReader.loadNarrativeTemplate("test.template");
         assertEquals("Check NarrativeTemplate loaded correctly", NarrativeTemplate.class, template.getClass());
     }
+
+    @Test
+    public void instanceEventsTest() throws Exception {
+        NarrativeTemplate template = gNarr.generateTemplate();
+        NarrativeInstance inst = template.generateSharedInstance();
+        inst.startRoute("link1");
+        inst.endRoute("link1");
+        inst.startRoute("link3");
+        inst.getRouteProperties("link3").putInt("Score", 5);
+        inst.getGlobalProperties().putString("Player", "Alice");
+        char[] story = new char[10000];
+        Arrays.fill(story, 'a');
+        inst.getGlobalProperties().putString("Story", new String(story));
+        SaveWriter.SavedEvents saved = SaveWriter.saveInstanceEvents("test.events", inst);
+
+        SaveWriter.saveObject("test.template", template);
+        NarrativeTemplate loadedTemplate = SaveReader.loadNarrativeTemplate("test.template");
+        assertEquals("Check fingerprint survives saving", template.getFingerprint(), loadedTemplate.getFingerprint());
+        NarrativeInstance loaded = SaveReader.loadInstanceEvents("test.events", loadedTemplate);
+        assertTrue(loaded.isCompleted(loaded.getRoute("link1")));
+        assertEquals("Check choice replayed", null, loaded.getRoute("link2"));
+        assertEquals(5, loaded.getRouteProperties("link3").getInt("Score"));
+        assertEquals("Alice", loaded.getGlobalProperties().getString("Player"));
+        assertEquals(inst.getEventCount(), loaded.getEventCount());
+
+        assertEquals(inst.getEventCount(), saved.getEventCount());
+        Path file = Paths.get("test.events");
+        long length = Files.size(file);
+        assertSame("Check nothing appended without changes", saved,
+                SaveWriter.appendInstanceEvents("test.events", inst, saved));
+        assertEquals(length, Files.size(file));
+
+        inst.endRoute("link3");
+        inst.getRouteProperties("link3").putInt("Score", 6);
+        inst.getGlobalProperties().remove("Player");
+        saved = SaveWriter.appendInstanceEvents("test.events", inst, saved);
+        long appended = Files.size(file);
+        assertTrue("Check only the changes are appended", appended - length < 1000);
+        loaded = SaveReader.loadInstanceEvents("test.events", loadedTemplate);
+        assertTrue("Check appended event replayed", loaded.isCompleted(loaded.getRoute("link3")));
+        assertEquals(6, loaded.getRouteProperties("link3").getInt("Score"));
+        assertFalse(loaded.getGlobalProperties().containsKey("Player"));
+        assertEquals(10000, loaded.getGlobalProperties().getString("Story").length());
+
+        // An append cut off by a crash is ignored
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(appended - 1);
+        }
+        loaded = SaveReader.loadInstanceEvents("test.events", loadedTemplate);
+        assertFalse(loaded.isCompleted(loaded.getRoute("link3")));
+        assertEquals(5, loaded.getRouteProperties("link3").getInt("Score"));
+        assertEquals("Alice", loaded.getGlobalProperties().getString("Player"));
+        inst.getGlobalProperties().putInt("Turn", 1);
+        try {
+            SaveWriter.appendInstanceEvents("test.events", inst, saved);
+            fail("Appends must not be made to a changed file");
+        } catch (IOException e) {
+        }
+
+        NarrativeTemplate changed = gNarr.generateTemplate();
+        changed.getGlobalProperties().putBoolean("Changed", true);
+        try {
+            SaveReader.loadInstanceEvents("test.events", changed);
+            fail("Saves must only load against their own template");
+        } catch (IOException e) {
+        }
+
+        // Corrupt lengths are rejected, or taken as a cut-off append, rather
+        // than allocated
+        byte[] header = Arrays.copyOf(Files.readAllBytes(file), 16);
+        ByteBuffer corrupt = ByteBuffer.allocate(30).put(header);
+        corrupt.put((byte) 5).putInt(5).put((byte) 2).putInt(-5);
+        Files.write(file, Arrays.copyOf(corrupt.array(), corrupt.position()));
+        try {
+            SaveReader.loadInstanceEvents("test.events", loadedTemplate);
+            fail("Bundles with negative lengths cannot be loaded");
+        } catch (IOException e) {
+        }
+        corrupt = ByteBuffer.allocate(30).put(header);
+        corrupt.put((byte) 5).putInt(5).put((byte) 2).putInt(Integer.MAX_VALUE);
+        Files.write(file, Arrays.copyOf(corrupt.array(), corrupt.position()));
+        try {
+            SaveReader.loadInstanceEvents("test.events", loadedTemplate);
+            fail("Bundles longer than their record cannot be loaded");
+        } catch (IOException e) {
+        }
+        corrupt = ByteBuffer.allocate(30).put(header);
+        corrupt.put((byte) 5).putInt(Integer.MAX_VALUE).put((byte) 2);
+        Files.write(file, Arrays.copyOf(corrupt.array(), corrupt.position()));
+        assertEquals(0, SaveReader.loadInstanceEvents("test.events", loadedTemplate).getEventCount());
+    }
+
+    @Test
+    public void instanceDeltaTest() throws Exception {
+        NarrativeTemplate template = gNarr.generateTemplate();
+        template.getNode("right").getProperties().putString("Scene", "forest");
+        NarrativeInstance inst = template.generateSharedInstance();
+        inst.startRoute("link1");
+        inst.endRoute("link1");
+        inst.startRoute("link3");
+        inst.getRouteProperties("link3").putInt("Score", 5);
+        inst.getNodeProperties("right").remove("Scene");
+        inst.getGlobalProperties().putString("Player", "Alice");
+        SaveWriter.saveInstanceDelta("test.delta", inst);
+
+        NarrativeInstance loaded = SaveReader.loadInstanceDelta("test.delta", template);
+        assertTrue(loaded.isCompleted(loaded.getRoute("link1")));
+        assertEquals("Check killed routes restored", null, loaded.getRoute("link2"));
+        assertEquals(null, loaded.getNode("left"));
+        assertEquals(5, loaded.getRouteProperties("link3").getInt("Score"));
+        assertEquals("Alice", loaded.getGlobalProperties().getString("Player"));
+        assertEquals(inst.getPlayableRoutes(), loaded.getPlayableRoutes());
+        GameChoice choice = loaded.endRoute("link3");
+        assertEquals("Check loaded instance can be played on", "link5", choice.getOptions().get(0).getId());
+
+        inst = template.generateSharedInstance();
+        inst.getNodeProperties("right").remove("Scene");
+        SaveWriter.saveInstanceDelta("test.delta", inst);
+        loaded = SaveReader.loadInstanceDelta("test.delta", template);
+        assertFalse("Check removed entries stay removed", loaded.getNodeProperties("right").containsKey("Scene"));
+        assertEquals("forest", template.getNode("right").getProperties().getString("Scene"));
+
+        // Instances that own their graph are compared with the template given
+        inst = template.generateInstance();
+        inst.startRoute("link1");
+        inst.endRoute("link1");
+        inst.getNodeProperties("left").putBoolean("Seen", true);
+        SaveWriter.saveInstanceDelta("test.delta", inst, template);
+        loaded = SaveReader.loadInstanceDelta("test.delta", template);
+        assertTrue(loaded.isCompleted(loaded.getRoute("link1")));
+        assertTrue(loaded.getNodeProperties("left").getBoolean("Seen"));
+        assertFalse(loaded.getNodeProperties("end").containsKey("Seen"));
+        SaveWriter.saveObject("test.instance", inst);
+        assertTrue("Check delta is smaller than the whole instance",
+                new File("test.delta").length() < new File("test.instance").length());
+    }
+
+    @Test
+    public void binaryTemplateTest() throws Exception {
+        NarrativeTemplate template = gNarr.generateTemplate();
+        template.getRoute("link2").createProperties();
+        BaseBundle props = template.getRoute("link2").getProperties();
+        props.putInt("Int", 42);
+        props.putString("String", "dialogue.key");
+        props.putDouble("Double", 0.5);
+        props.putChar("Char", 'x');
+        props.putLong("Long", 1L << 40);
+        props.putIntArray("IntArray", new int[] { 1, 2, 3 });
+        props.putStringArray("StringArray", new String[] { "a", null, "dialogue.key" });
+        ArrayList<String> list = new ArrayList<String>();
+        list.add("one");
+        props.putStringArrayList("StringList", list);
+        props.putCharSequence("Builder", new StringBuilder("serialized"));
+        template.getNode("choice1").getProperties().putBoolean("Flag", true);
+        template.getGlobalProperties().putFloat("Version", 1.5f);
+
+        SaveWriter.saveTemplate("test.ntmp", template);
+        NarrativeTemplate loaded = SaveReader.loadNarrativeTemplate("test.ntmp");
+        assertEquals("Check contents survive saving", template.getFingerprint(), loaded.getFingerprint());
+        assertEquals(ChoiceNode.class, loaded.getNode("choice1").getClass());
+        assertEquals("start", loaded.compile().getNode(loaded.compile().getStart()).getId());
+        for (int i = 0; i < 2; ++i) {
+            assertEquals("Check order of entering routes is kept",
+                    template.getNode("end").getEntering().get(i).getId(),
+                    loaded.getNode("end").getEntering().get(i).getId());
+        }
+        BaseBundle loadedProps = loaded.getRoute("link2").getProperties();
+        assertEquals(42, loadedProps.getInt("Int"));
+        assertArrayEquals(new String[] { "a", null, "dialogue.key" }, loadedProps.getStringArray("StringArray"));
+        assertEquals("serialized", loadedProps.getCharSequence("Builder").toString());
+        assertEquals(null, loaded.getRoute("link1").getProperties());
+
+        // A file cut off within the header is rejected rather than misread
+        byte[] bytes = Files.readAllBytes(Paths.get("test.ntmp"));
+        Files.write(Paths.get("test.ntmp"), Arrays.copyOf(bytes, 52));
+        try {
+            SaveReader.loadNarrativeTemplate("test.ntmp");
+            fail("Truncated templates cannot be loaded");
+        } catch (IOException e) {
+        }
+
+        // Templates saved with Java serialization still load
+        SaveWriter.saveObject("test.template", template);
+        assertEquals(template.getFingerprint(), SaveReader.loadNarrativeTemplate("test.template").getFingerprint());
+    }
+
+    @Test
+    public void recordTemplateTest() throws Exception {
+        NarrativeTemplate template = gNarr.generateTemplate();
+        template.getRoute("link2").createProperties();
+        BaseBundle props = template.getRoute("link2").getProperties();
+        props.putInt("Int", -42);
+        props.putLong("Long", Long.MIN_VALUE);
+        props.putDouble("Double", 0.5);
+        props.putFloat("Float", -1.5f);
+        props.putChar("Char", 'x');
+        props.putShortArray("ShortArray", new short[] { -1, 300 });
+        props.putIntArray("IntArray", new int[] { 1, Integer.MIN_VALUE, 3 });
+        props.putStringArray("StringArray", new String[] { "a", null, "b" });
+        props.putString("Null", null);
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        list.add(7);
+        props.putIntegerArrayList("IntegerList", list);
+        props.putCharSequence("Builder", new StringBuilder("serialized"));
+        template.getGlobalProperties().putBoolean("Flag", true);
+        SaveWriter.saveTemplateRecords("test.nrec", template);
+
+        NarrativeTemplate loaded = SaveReader.loadNarrativeTemplate("test.nrec");
+        assertEquals(template.getFingerprint(), loaded.getFingerprint());
+        BaseBundle loadedProps = loaded.getRoute("link2").getProperties();
+        assertEquals(-42, loadedProps.getInt("Int"));
+        assertEquals(Long.MIN_VALUE, loadedProps.getLong("Long"));
+        assertEquals(-1.5f, loadedProps.getFloat("Float"), 0);
+        assertTrue(Arrays.equals(new short[] { -1, 300 }, loadedProps.getShortArray("ShortArray")));
+        assertArrayEquals(new int[] { 1, Integer.MIN_VALUE, 3 }, loadedProps.getIntArray("IntArray"));
+        assertArrayEquals(new String[] { "a", null, "b" }, loadedProps.getStringArray("StringArray"));
+        assertTrue(loadedProps.containsKey("Null"));
+        assertEquals(list, loadedProps.getIntegerArrayList("IntegerList"));
+        assertEquals("serialized", loadedProps.getCharSequence("Builder").toString());
+        assertTrue(loaded.getGlobalProperties().getBoolean("Flag"));
+        assertEquals("Check route order kept", template.getNode("choice1").getExiting().get(0).getId(),
+                loaded.getNode("choice1").getExiting().get(0).getId());
+
+        // Fields added by a later version are skipped
+        byte[] bytes = Files.readAllBytes(Paths.get("test.nrec"));
+        byte[] extended = Arrays.copyOf(bytes, bytes.length + 7);
+        byte[] unknown = { (byte) (40 << 3 | 0), (byte) 0x96, 0x01, (byte) (41 << 3 | 2), 2, 'h', 'i' };
+        System.arraycopy(unknown, 0, extended, bytes.length, unknown.length);
+        Files.write(Paths.get("test.nrec"), extended);
+        assertEquals(template.getFingerprint(), SaveReader.loadNarrativeTemplate("test.nrec").getFingerprint());
+
+        SaveWriter.saveTemplateRecords("test.nrec", template, Compression.GZIP);
+        assertEquals(-42, SaveReader.loadNarrativeTemplate("test.nrec").getRoute("link2").getProperties()
+                .getInt("Int"));
+
+        bytes[4] = 2;
+        Files.write(Paths.get("test.nrec"), bytes);
+        try {
+            SaveReader.loadNarrativeTemplate("test.nrec");
+            fail("Incompatible versions cannot be loaded");
+        } catch (IOException e) {
+        }
+        new File("test.nrec").delete();
+    }
+
+    @Test
+    public void unwritableTemplateTest() throws Exception {
+        NarrativeTemplate template = gNarr.generateTemplate();
+        template.getRoute("link2").createProperties();
+        BaseBundle props = template.getRoute("link2").getProperties();
+        ArrayList<CharSequence> list = new ArrayList<CharSequence>();
+        list.add(new StringBuilder("no type for this"));
+        props.putCharSequenceArrayList("Builders", list);
+        try {
+            SaveWriter.saveTemplate("test.ntmp", template);
+            fail("Values of types the binary format cannot store are rejected");
+        } catch (IOException e) {
+        }
+        try {
+            SaveWriter.saveTemplateRecords("test.nrec", template);
+            fail("Values of types the record format cannot store are rejected");
+        } catch (IOException e) {
+        }
+        props.remove("Builders");
+
+        // Serialized values are not read back, whatever wrote them
+        props.putString("Marker", "marker");
+        SaveWriter.saveTemplateRecords("test.nrec", template);
+        byte[] bytes = Files.readAllBytes(Paths.get("test.nrec"));
+        String contents = new String(bytes, StandardCharsets.ISO_8859_1);
+        int p = contents.indexOf("\u00CA\u0001\u0006marker");
+        assertTrue(p > 0);
+        // The field of a string value, VALUE_BASE + 9, becomes VALUE_BASE + 21
+        bytes[p] = (byte) 0xAA;
+        bytes[p + 1] = 0x02;
+        Files.write(Paths.get("test.nrec"), bytes);
+        try {
+            SaveReader.loadNarrativeTemplate("test.nrec").getRoute("link2").getProperties();
+            fail("Serialized values cannot be loaded");
+        } catch (IOException | UncheckedIOException e) {
+        }
+
+        // Nodes of other classes would be read back as another kind of node
+        template = gNarr.generateTemplate();
+        template.getNodes().put("odd", new ChoiceNode("odd") {
+            private static final long serialVersionUID = 1L;
+        });
+        try {
+            SaveWriter.saveTemplateRecords("test.nrec", template);
+            fail("Nodes of other classes cannot be written as records");
+        } catch (IOException e) {
+        }
+        try {
+            SaveWriter.saveJson("test.json", template);
+            fail("Nodes of other classes cannot be written as JSON");
+        } catch (IOException e) {
+        }
+        try {
+            SaveWriter.saveTemplate("test.ntmp", template);
+            fail("Nodes of other classes cannot be written to binary templates");
+        } catch (IOException e) {
+        }
+        new File("test.nrec").delete();
+        new File("test.ntmp").delete();
+        new File("test.json").delete();
+    }
+
+    @Test
+    public void lazyTemplateTest() throws Exception {
+        NarrativeTemplate template = gNarr.generateTemplate();
+        template.getRoute("link2").createProperties();
+        template.getRoute("link2").getProperties().putString("String", "dialogue.key");
+        template.getNode("choice1").getProperties().putBoolean("Flag", true);
+        SaveWriter.saveTemplate("test.ntmp", template);
+
+        NarrativeTemplate loaded = SaveReader.loadNarrativeTemplate("test.ntmp", true);
+        assertEquals("Check fingerprint is read without decoding properties", template.getFingerprint(),
+                loaded.getFingerprint());
+        loaded.freezeProperties();
+        NarrativeInstance instance = loaded.generateInstance();
+        assertFalse("Check freezing and generating instances decode nothing",
+                loaded.getRoute("link2").isPropertiesLoaded());
+        assertFalse(loaded.getNode("choice1").isPropertiesLoaded());
+        instance.getRoute("link2").getProperties().putInt("Turn", 1);
+        assertTrue("Check template properties are frozen once decoded",
+                loaded.getRoute("link2").getProperties().isFrozen());
+        assertFalse("Check instance has its own copy", loaded.getRoute("link2").getProperties().containsKey("Turn"));
+        assertFalse(loaded.getNode("choice1").isPropertiesLoaded());
+        assertEquals("dialogue.key", loaded.getRoute("link2").getProperties().getString("String"));
+        assertEquals(true, loaded.getNode("choice1").getProperties().getBoolean("Flag"));
+        assertEquals(null, loaded.getRoute("link1").getProperties());
+
+        // Properties not yet decoded are still written out by serialization
+        loaded = SaveReader.loadNarrativeTemplate("test.ntmp", true);
+        SaveWriter.saveObject("test.template", loaded);
+        NarrativeTemplate reloaded = SaveReader.loadNarrativeTemplate("test.template");
+        assertEquals("Check recomputed fingerprint matches", template.getFingerprint(), reloaded.getFingerprint());
+        assertEquals("dialogue.key", reloaded.getRoute("link2").getProperties().getString("String"));
+    }
+
+    @Test
+    public void jsonTest() throws Exception {
+        gNarr.getNode("choice1").createProperties();
+        gNarr.getNode("choice1").getProperties().putDouble("GUI.X", 12.5);
+        gNarr.getNode("choice1").getProperties().putDouble("GUI.Y", -3.0);
+        gNarr.getRoute("link2").createProperties();
+        BaseBundle props = gNarr.getRoute("link2").getProperties();
+        props.putFloat("Float", 0.1f);
+        props.putLong("Long", Long.MAX_VALUE);
+        props.putChar("Char", '"');
+        props.putShortArray("Shorts", new short[] { 1, -2 });
+        props.putStringArray("Strings", new String[] { "a", null });
+        props.putDouble("NaN", Double.NaN);
+        props.putFloatArray("Infinities", new float[] { Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY });
+        props.putInt("Big", 300);
+        props.putCharSequence("Builder", new StringBuilder("serialized"));
+        gNarr.createMapping();
+        BaseBundle mapped = new BaseBundle();
+        mapped.putInt("Default", 3);
+        gNarr.getPropertyMapping().put("Mood", mapped);
+        gNarr.setPropertyType("Mood", "Integer");
+
+        SaveWriter.saveJson("test.json", gNarr);
+        GUINarrative loaded = SaveReader.loadGUINarrativeJson("test.json");
+        assertEquals(ChoiceNode.class, loaded.getNode("choice1").getClass());
+        assertEquals(12.5, loaded.getNode("choice1").getProperties().getDouble("GUI.X"), 0);
+        assertEquals("start", loaded.getStart().getId());
+        assertEquals(gNarr.getNode("choice1").getExiting().get(0).getId(),
+                loaded.getNode("choice1").getExiting().get(0).getId());
+        BaseBundle loadedProps = loaded.getRoute("link2").getProperties();
+        assertEquals(0.1f, loadedProps.getFloat("Float"), 0);
+        assertEquals(Long.MAX_VALUE, loadedProps.getLong("Long"));
+        assertEquals('"', loadedProps.getChar("Char"));
+        assertTrue(Arrays.equals(new short[] { 1, -2 }, loadedProps.getShortArray("Shorts")));
+        assertArrayEquals(new String[] { "a", null }, loadedProps.getStringArray("Strings"));
+        assertTrue(Double.isNaN(loadedProps.getDouble("NaN")));
+        assertTrue(Arrays.equals(new float[] { Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY },
+                loadedProps.getFloatArray("Infinities")));
+        assertEquals("serialized", loadedProps.getCharSequence("Builder").toString());
+
+        // Only standard JSON is written, and values that would need Java
+        // serialization or do not fit their type are rejected
+        String json = new String(Files.readAllBytes(Paths.get("test.json")), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"NaN\""));
+        assertTrue(json.contains("\"string\": \"serialized\""));
+        for (String bad : new String[] { json.replace("\"string\": \"serialized\"", "\"serialized\": \"rO0ABXQAAA==\""),
+                json.replace("\"int\": 300", "\"byte\": 300"), json.replace("\"NaN\"", "NaN") }) {
+            Files.write(Paths.get("test.json"), bad.getBytes(StandardCharsets.UTF_8));
+            try {
+                SaveReader.loadGUINarrativeJson("test.json");
+                fail("Unsafe or out of range values cannot be loaded");
+            } catch (IOException e) {
+            }
+        }
+        SaveWriter.saveJson("test.json", gNarr);
+        assertEquals(null, loaded.getRoute("link1").getProperties());
+        assertEquals(3, loaded.getPropertyMapping().get("Mood").getInt("Default"));
+        assertEquals("Integer", loaded.getPropertyTypes().get("Mood"));
+        assertEquals(gNarr.getGlobalProperties().getStringArrayList("System.Types"),
+                loaded.getGlobalProperties().getStringArrayList("System.Types"));
+
+        NarrativeTemplate template = gNarr.generateTemplate();
+        SaveWriter.saveJson("test.json", template);
+        assertEquals("Check templates survive JSON", template.getFingerprint(),
+                SaveReader.loadNarrativeTemplateJson("test.json").getFingerprint());
+
+        NarrativeInstance inst = template.generateSharedInstance();
+        inst.startRoute("link1");
+        inst.endRoute("link1");
+        inst.startRoute("link3");
+        inst.getGlobalProperties().putString("Player", "Alice");
+        SaveWriter.saveJson("test.json", inst);
+        NarrativeInstance loadedInst = SaveReader.loadNarrativeInstanceJson("test.json");
+        assertTrue(loadedInst.isCompleted(loadedInst.getRoute("link1")));
+        assertEquals(null, loadedInst.getRoute("link2"));
+        assertEquals("Alice", loadedInst.getGlobalProperties().getString("Player"));
+        assertEquals(inst.getPlayableRoutes().size(), loadedInst.getPlayableRoutes().size());
+    }
+
+    @Test
+    public void templateCacheTest() throws Exception {
+        NarrativeTemplate template = gNarr.generateTemplate();
+        SaveWriter.saveTemplate("test.ntmp", template);
+        ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        TemplateCache cache = new TemplateCache(1 << 20, tasks::add);
+
+        NarrativeTemplate loaded = cache.get("test.ntmp");
+        assertSame("Check template is cached", loaded, cache.get("./test.ntmp"));
+        assertTrue("Check cached properties are frozen", loaded.getGlobalProperties().isFrozen());
+        assertFalse("Check node properties are decoded when used", loaded.getNode("choice1").isPropertiesLoaded());
+        NarrativeInstance inst = loaded.generateSharedInstance();
+        inst.getGlobalProperties().putBoolean("Played", true);
+        assertFalse(loaded.getGlobalProperties().containsKey("Played"));
+        int types = loaded.getGlobalProperties().getStringArrayList("System.Types").size();
+        inst.getGlobalProperties().getStringArrayList("System.Types").add("Shared");
+        assertEquals(types + 1, inst.getGlobalProperties().getStringArrayList("System.Types").size());
+        assertEquals("Check instances cannot change the template", types,
+                loaded.generateSharedInstance().getGlobalProperties().getStringArrayList("System.Types").size());
+        assertEquals(template.getFingerprint(), loaded.getFingerprint());
+        assertEquals(new File("test.ntmp").length(), cache.getMemoryUsage());
+
+        template.getGlobalProperties().putBoolean("Changed", true);
+        SaveWriter.saveTemplate("test.ntmp", template);
+        Files.setLastModifiedTime(Paths.get("test.ntmp"),
+                FileTime.fromMillis(new File("test.ntmp").lastModified() + 2000));
+        assertSame("Check old template is used while reloading", loaded, cache.get("test.ntmp"));
+        assertSame(loaded, cache.get("test.ntmp"));
+        assertEquals("Check one reload at a time", 1, tasks.size());
+        tasks.poll().run();
+        NarrativeTemplate reloaded = cache.get("test.ntmp");
+        assertNotSame(loaded, reloaded);
+        assertTrue(reloaded.getGlobalProperties().getBoolean("Changed"));
+
+        // A file that cannot be loaded is only tried again once it changes
+        long modified = new File("test.ntmp").lastModified();
+        Files.write(Paths.get("test.ntmp"), new byte[] { 1, 2, 3 });
+        Files.setLastModifiedTime(Paths.get("test.ntmp"), FileTime.fromMillis(modified + 2000));
+        assertSame(reloaded, cache.get("test.ntmp"));
+        tasks.poll().run();
+        assertSame("Check failed reload keeps the cached template", reloaded, cache.get("test.ntmp"));
+        assertTrue("Check failed reload is not retried", tasks.isEmpty());
+        SaveWriter.saveTemplate("test.ntmp", template);
+        Files.setLastModifiedTime(Paths.get("test.ntmp"), FileTime.fromMillis(modified + 4000));
+        cache.get("test.ntmp");
+        assertEquals(1, tasks.size());
+        tasks.poll().run();
+
+        // A budget smaller than two templates keeps only the last one used
+        SaveWriter.saveTemplate("test2.ntmp", template);
+        cache = new TemplateCache(new File("test.ntmp").length() + 1, tasks::add);
+        cache.get("test.ntmp");
+        cache.get("test2.ntmp");
+        assertEquals(1, cache.size());
+        assertNotSame(reloaded, cache.get("test.ntmp"));
+        new File("test2.ntmp").delete();
+
+        try {
+            cache.get("missing.ntmp");
+            fail("Missing templates cannot be loaded");
+        } catch (IOException e) {
+        }
+
+        // A loader that throws an Error still completes the load, and the
+        // next call tries again rather than waiting on it
+        AtomicInteger loads = new AtomicInteger();
+        cache = new TemplateCache(1 << 20, tasks::add, filename -> {
+            if (loads.getAndIncrement() == 0)
+                throw new StackOverflowError();
+            return SaveReader.loadNarrativeTemplate(filename);
+        });
+        try {
+            cache.get("test.ntmp");
+            fail("Templates whose loader fails cannot be loaded");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof StackOverflowError);
+        }
+        CompletableFuture<NarrativeTemplate> preload = cache.preload("test.ntmp");
+        assertEquals("Check the failed load is not shared", 1, tasks.size());
+        tasks.poll().run();
+        assertEquals(template.getFingerprint(), preload.get().getFingerprint());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void compressionTest() throws Exception {
+        NarrativeTemplate template = gNarr.generateTemplate();
+        for (Compression compression : Compression.values()) {
+            SaveWriter.saveObject("test.gui", gNarr, compression);
+            assertEquals("start", SaveReader.loadGUINarrative("test.gui").start.getId());
+            SaveWriter.saveTemplate("test.ntmp", template, compression);
+            assertEquals(template.getFingerprint(), SaveReader.loadNarrativeTemplate("test.ntmp").getFingerprint());
+        }
+
+        try (InputStream in = new FileInputStream("test.ntmp")) {
+            assertEquals("Check file is compressed", 0x1f, in.read());
+        }
+    }
+
+    @Test
+    public void atomicSaveTest() throws Exception {
+        SaveWriter.saveObject("test.gui", gNarr);
+        long length = new File("test.gui").length();
+        try {
+            SaveWriter.saveObject("test.gui", new Object());
+            fail("Objects that are not serializable cannot be saved");
+        } catch (NotSerializableException e) {
+        }
+        assertEquals("Check failed save leaves file alone", length, new File("test.gui").length());
+        File[] temps = new File(".").getAbsoluteFile().listFiles((dir, name) -> name.endsWith(".tmp"));
+        assertEquals("Check temporary file removed", 0, temps.length);
+
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r--r--");
+            Files.setPosixFilePermissions(Paths.get("test.gui"), permissions);
+            SaveWriter.saveObject("test.gui", gNarr);
+            assertEquals("Check saves keep the permissions of the file", permissions,
+                    Files.getPosixFilePermissions(Paths.get("test.gui")));
+        }
+
+        try {
+            SaveReader.loadGUINarrative("missing.gui");
+            fail("Missing files cannot be loaded");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void saveServiceTest() throws Exception {
+        ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        SaveService service = new SaveService(tasks::add);
+
+        CompletableFuture<Void> first = service.saveNarrative("test.gui", gNarr);
+        gNarr.newSynchronizationNode("extra");
+        CompletableFuture<Void> second = service.saveNarrative("test.gui", gNarr);
+        gNarr.newSynchronizationNode("later");
+        assertEquals("Check saves of one file are coalesced", 1, tasks.size());
+        assertFalse(first.isDone());
+
+        tasks.poll().run();
+        assertTrue(first.isDone() && second.isDone());
+        assertEquals(0, tasks.size());
+        assertEquals(0, service.getPendingCount());
+        GUINarrative loaded = SaveReader.loadGUINarrative("test.gui");
+        assertNotNull("Check latest snapshot is written", loaded.getNode("extra"));
+        assertNull("Check changes after the snapshot are not written", loaded.getNode("later"));
+        assertEquals(gNarr.getNode("choice1").getExiting().size(), loaded.getNode("choice1").getExiting().size());
+
+        gNarr.removeNode("extra");
+        gNarr.removeNode("later");
+        NarrativeInstance instance = gNarr.generateTemplate().generateSharedInstance();
+        CompletableFuture<Void> events = service.saveInstanceEvents("test.nev", instance);
+        instance.startRoute("link1");
+        tasks.poll().run();
+        events.get();
+        assertEquals(0, SaveReader.loadInstanceEvents("test.nev", instance.getTemplate()).getEventCount());
+
+        CompletableFuture<Void> failed = service.saveNarrative("missing/test.gui", gNarr);
+        tasks.poll().run();
+        try {
+            failed.get();
+            fail("Saves to a missing directory fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        // An Error still completes the save and frees the file
+        CompletableFuture<Void> broken = service.save("test.gui", Compression.NONE, out -> {
+            throw new AssertionError("broken");
+        });
+        tasks.poll().run();
+        assertTrue(broken.isCompletedExceptionally());
+        assertEquals(0, service.getPendingCount());
+        service.awaitPending();
+
+        service.close();
+        try {
+            service.saveNarrative("test.gui", gNarr);
+            fail("Closed services take no saves");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void bulkLoaderTest() throws Exception {
+        NarrativeTemplate template = gNarr.generateTemplate();
+        ArrayList<Path> files = new ArrayList<Path>();
+        for (int i = 0; i < 6; ++i) {
+            NarrativeInstance inst = template.generateSharedInstance();
+            inst.getGlobalProperties().putInt("Player", i);
+            SaveWriter.saveInstanceDelta("test" + i + ".delta", inst);
+            files.add(Paths.get("test" + i + ".delta"));
+        }
+        files.add(2, Paths.get("missing.delta"));
+        files.add(Paths.get("test.gui"));
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        AtomicInteger decoding = new AtomicInteger();
+        AtomicInteger mostDecoding = new AtomicInteger();
+        ArrayList<Integer> players = new ArrayList<Integer>();
+        ArrayList<Path> failed = new ArrayList<Path>();
+        try {
+            int loaded = new BulkLoader(pool, 2).load(files, filename -> {
+                mostDecoding.accumulateAndGet(decoding.incrementAndGet(), Math::max);
+                try {
+                    return SaveReader.loadInstanceDelta(filename, template);
+                } finally {
+                    decoding.decrementAndGet();
+                }
+            }, new BulkLoader.Handler() {
+                @Override
+                public void loaded(Path file, NarrativeInstance instance) {
+                    players.add(instance.getGlobalProperties().getInt("Player"));
+                }
+
+                @Override
+                public void failed(Path file, IOException error) {
+                    failed.add(file);
+                }
+            });
+            assertEquals(6, loaded);
+            assertTrue("Check at most two files in flight", mostDecoding.get() <= 2);
+        } finally {
+            pool.shutdown();
+        }
+        players.sort(null);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), players);
+        assertEquals("Check failures do not stop the batch", 2, failed.size());
+        assertTrue(failed.contains(Paths.get("missing.delta")) && failed.contains(Paths.get("test.gui")));
+
+        // An Error from the decoder is reported rather than lost
+        ArrayList<IOException> errors = new ArrayList<IOException>();
+        pool = Executors.newFixedThreadPool(1);
+        try {
+            assertEquals(0, new BulkLoader(pool, 1).load(files.subList(0, 1), filename -> {
+                throw new AssertionError("broken");
+            }, new BulkLoader.Handler() {
+                @Override
+                public void loaded(Path file, NarrativeInstance instance) {
+                }
+
+                @Override
+                public void failed(Path file, IOException error) {
+                    errors.add(error);
+                }
+            }));
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).getCause() instanceof AssertionError);
+
+        ArrayList<Path> found = new ArrayList<Path>();
+        new BulkLoader(Runnable::run, 1).loadDirectory(".", "test*.delta",
+                filename -> SaveReader.loadInstanceDelta(filename, template), (file, instance) -> found.add(file));
+        assertEquals(6, found.size());
+
+        // By default files are decoded on the loader's own threads
+        ArrayList<String> threads = new ArrayList<String>();
+        assertEquals(6, new BulkLoader().load(found, filename -> {
+            synchronized (threads) {
+                threads.add(Thread.currentThread().getName());
+            }
+            return SaveReader.loadInstanceDelta(filename, template);
+        }, (file, instance) -> {
+        }));
+        for (String thread : threads) {
+            assertTrue(thread, thread.startsWith("BulkLoader-"));
+        }
+        for (Path file : found) {
+            file.toFile().delete();
+        }
+    }
+
+    @Test
+    public void saveContainerTest() throws Exception {
+        new File("test.nslt").delete();
+        NarrativeTemplate template = gNarr.generateTemplate();
+        try (SaveContainer container = SaveContainer.open("test.nslt", null)) {
+            container.write("alice", new byte[] { 1, 2, 3 });
+            container.write("bob", new byte[1000]);
+            container.write("carol", new byte[] { 4 });
+        }
+
+        SaveContainer container = SaveContainer.open("test.nslt", null);
+        assertEquals("Check slots listed from the index", Arrays.asList("alice", "bob", "carol"),
+                container.getSlots());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, container.read("alice")));
+        assertEquals(1000, container.getLength("bob"));
+        assertNull(container.read("dave"));
+
+        container.write("alice", new byte[] { 5, 6 });
+        assertTrue(Arrays.equals(new byte[] { 5, 6 }, container.read("alice")));
+        assertTrue("Check other slots are kept", Arrays.equals(new byte[] { 4 }, container.read("carol")));
+        assertTrue(container.remove("bob"));
+        assertFalse(container.remove("bob"));
+        assertEquals(Arrays.asList("alice", "carol"), container.getSlots());
+        assertTrue("Check replaced records are unused", container.getUnusedSize() > 1000);
+
+        long size = container.getFileSize();
+        container.compact();
+        assertTrue("Check compacting shrinks the file", container.getFileSize() < size - 1000);
+        assertEquals(0, container.getUnusedSize());
+        assertTrue(Arrays.equals(new byte[] { 5, 6 }, container.read("alice")));
+        assertTrue(Arrays.equals(new byte[] { 4 }, container.read("carol")));
+
+        NarrativeInstance inst = template.generateSharedInstance();
+        inst.startRoute("link1");
+        inst.endRoute("link1");
+        inst.getGlobalProperties().putString("Player", "Alice");
+        container.putInstanceDelta("alice", inst, template);
+        container.putInstance("carol", template.generateInstance());
+        container.close();
+
+        container = SaveContainer.open("test.nslt", null);
+        NarrativeInstance loaded = container.getInstanceDelta("alice", template);
+        assertTrue(loaded.isCompleted(loaded.getRoute("link1")));
+        assertEquals("Alice", loaded.getGlobalProperties().getString("Player"));
+        assertNotNull(container.getInstance("carol").getNode("start"));
+        assertNull(container.getInstance("bob"));
+        container.close();
+        File[] temps = new File(".").getAbsoluteFile().listFiles((dir, name) -> name.endsWith(".tmp"));
+        assertEquals("Check temporary file removed", 0, temps.length);
+
+        ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        container = SaveContainer.open("test.nslt", tasks::add);
+        for (int i = 0; i < 3; ++i) {
+            container.write("alice", new byte[50000]);
+        }
+        assertEquals("Check compacted in the background", 1, tasks.size());
+        container.write("carol", new byte[] { 7 });
+        tasks.poll().run();
+        assertTrue(container.getFileSize() < 60000);
+        assertTrue(Arrays.equals(new byte[] { 7 }, container.read("carol")));
+
+        // A compaction queued before the container is closed does nothing
+        for (int i = 0; i < 3; ++i) {
+            container.write("alice", new byte[50000]);
+        }
+        assertFalse(tasks.isEmpty());
+        container.close();
+        while (!tasks.isEmpty()) {
+            tasks.poll().run();
+        }
+        try {
+            container.getFileSize();
+            fail("Closed containers stay closed");
+        } catch (IOException e) {
+        }
+        new File("test.nslt").delete();
+
+        // Saves append to a journal rather than rewriting the index
+        container = SaveContainer.open("test.nslt", null);
+        for (int i = 0; i < 1000; ++i) {
+            container.write("slot" + i, new byte[10]);
+        }
+        size = container.getFileSize();
+        for (int i = 0; i < 1000; ++i) {
+            container.write("slot" + i, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 });
+        }
+        assertTrue("Check saves do not grow with the slots", container.getFileSize() - size < 200000);
+        container.write("carol", new byte[] { 7 });
+        container.write("carol", new byte[] { 8, 9, 10 });
+        container.close();
+
+        // A frame cut off by a crash is discarded
+        try (java.nio.channels.FileChannel file = java.nio.channels.FileChannel.open(Paths.get("test.nslt"),
+                java.nio.file.StandardOpenOption.WRITE)) {
+            file.truncate(file.size() - 1);
+        }
+        container = SaveContainer.open("test.nslt", null);
+        assertEquals(1001, container.getSlots().size());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, container.read("slot999")));
+        assertTrue("Check previous record is kept", Arrays.equals(new byte[] { 7 }, container.read("carol")));
+        container.remove("slot0");
+        container.write("carol", new byte[] { 11 });
+        container.close();
+        container = SaveContainer.open("test.nslt", null);
+        assertTrue(Arrays.equals(new byte[] { 11 }, container.read("carol")));
+        assertFalse(container.contains("slot0"));
+        container.close();
+        new File("test.nslt").delete();
+
+        Files.write(Paths.get("test.nslt"), new byte[40]);
+        try {
+            SaveContainer.open("test.nslt", null);
+            fail("Other files are not containers");
+        } catch (IOException e) {
+        }
+        new File("test.nslt").delete();
+    }
 }